@@ -23,7 +23,9 @@ import static java.util.Arrays.asList;
 
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 
+import org.nnsoft.guice.rocoto.variables.Namespaces;
 import org.nnsoft.guice.rocoto.variables.VariablesMap;
 
 import com.google.inject.AbstractModule;
@@ -49,67 +51,130 @@ public final class Rocoto
 
     public static Module expandVariables( Iterable<? extends Module> baseModules )
     {
-        return override( baseModules ).with( new Rocoto( getElements( baseModules ) ) );
+        return override( baseModules ).with( new Rocoto( getElements( baseModules ), false, Namespaces.NONE ) );
+    }
+
+    /**
+     * Same as {@link #expandVariables(Module...)}, but keys of the given namespaces missing from the modules, such as
+     * <tt>${env:NAME}</tt> or <tt>${sys:name}</tt> with {@link Namespaces#DEFAULT}, are looked up when referenced.
+     *
+     * @since 6.4
+     */
+    public static Module expandVariables( Namespaces namespaces, Module...baseModules )
+    {
+        return expandVariables( namespaces, asList( baseModules ) );
+    }
+
+    /**
+     * Same as {@link #expandVariables(Iterable)}, but keys of the given namespaces missing from the modules, such as
+     * <tt>${env:NAME}</tt> or <tt>${sys:name}</tt> with {@link Namespaces#DEFAULT}, are looked up when referenced.
+     *
+     * @since 6.4
+     */
+    public static Module expandVariables( Namespaces namespaces, Iterable<? extends Module> baseModules )
+    {
+        return override( baseModules ).with( new Rocoto( getElements( baseModules ), false, namespaces ) );
+    }
+
+    /**
+     * Same as {@link #expandVariables(Module...)}, but cyclic variables are reported as injector creation errors.
+     *
+     * @since 6.4
+     */
+    public static Module expandVariablesRejectingCycles( Module...baseModules )
+    {
+        return expandVariablesRejectingCycles( asList( baseModules ) );
+    }
+
+    /**
+     * Same as {@link #expandVariables(Iterable)}, but cyclic variables are reported as injector creation errors.
+     *
+     * @since 6.4
+     */
+    public static Module expandVariablesRejectingCycles( Iterable<? extends Module> baseModules )
+    {
+        return override( baseModules ).with( new Rocoto( getElements( baseModules ), true, Namespaces.NONE ) );
     }
 
     private final TypeLiteral<String> stringLiteral = new TypeLiteral<String>(){};
 
     private final List<Element> elements;
 
+    /** True to report cyclic variables as errors */
+    private final boolean rejectingCycles;
+
+    /** Namespaces of the keys looked up when missing from the modules */
+    private final Namespaces namespaces;
+
     /**
      * Do nothing, this class cannot be instantiated
      */
-    private Rocoto( List<Element> elements )
+    private Rocoto( List<Element> elements, boolean rejectingCycles, Namespaces namespaces )
     {
         this.elements = elements;
+        this.rejectingCycles = rejectingCycles;
+        this.namespaces = namespaces;
     }
 
     @Override
     protected void configure()
     {
-        final VariablesMap variablesMap = new VariablesMap();
+        // Namespaced keys such as ${env:X} are looked up when referenced only, if enabled
+        final VariablesMap.Builder variables = new VariablesMap.Builder().withNamespaces( namespaces );
 
-        for ( final Element element : elements )
+        // First collect all named String constants...
+        DefaultElementVisitor<Void> collector = new DefaultElementVisitor<Void>()
         {
-            element.acceptVisitor( new DefaultElementVisitor<Void>()
+
+            @Override
+            public <T> Void visit( Binding<T> binding )
             {
+                Key<?> bindingKey = binding.getKey();
 
-                @Override
-                public <T> Void visit( Binding<T> binding )
+                if ( stringLiteral.equals( bindingKey.getTypeLiteral() )
+                        && bindingKey.getAnnotation() != null
+                        && ( Named.class.isAssignableFrom( bindingKey.getAnnotationType() )
+                                        || javax.inject.Named.class.isAssignableFrom( bindingKey.getAnnotationType() ) ) )
                 {
-                    Key<?> bindingKey = binding.getKey();
+                    String propertyKey;
 
-                    if ( stringLiteral.equals( bindingKey.getTypeLiteral() )
-                            && bindingKey.getAnnotation() != null
-                            && ( Named.class.isAssignableFrom( bindingKey.getAnnotationType() )
-                                            || javax.inject.Named.class.isAssignableFrom( bindingKey.getAnnotationType() ) ) )
+                    if ( Named.class.isAssignableFrom( bindingKey.getAnnotationType() ) )
+                    {
+                        propertyKey = ( (Named) bindingKey.getAnnotation() ).value();
+                    }
+                    else
                     {
-                        String propertyKey;
+                        propertyKey = ( (javax.inject.Named) bindingKey.getAnnotation() ).value();
+                    }
 
-                        if ( Named.class.isAssignableFrom( bindingKey.getAnnotationType() ) )
-                        {
-                            propertyKey = ( (Named) bindingKey.getAnnotation() ).value();
-                        }
-                        else
-                        {
-                            propertyKey = ( (javax.inject.Named) bindingKey.getAnnotation() ).value();
-                        }
+                    String propertyValue = (String) binding.getProvider().get();
 
-                        String propertyValue = (String) binding.getProvider().get();
+                    variables.put( propertyKey, propertyValue );
+                }
 
-                        variablesMap.put( propertyKey, propertyValue );
-                    }
+                return super.visit( binding );
+            }
 
-                    return super.visit( binding );
-                }
+        };
 
-            });
+        for ( Element element : elements )
+        {
+            element.acceptVisitor( collector );
         }
 
-        for ( Entry<String, String> variable : variablesMap.entrySet() )
+        // ...then resolve them all at once
+        for ( Entry<String, String> variable : variables.build().entrySet() )
         {
             bindConstant().annotatedWith( named( variable.getKey() ) ).to( variable.getValue() );
         }
+
+        if ( rejectingCycles )
+        {
+            for ( Set<String> cycle : variables.getCycles().getCycles() )
+            {
+                addError( "Cyclic variables %s", cycle );
+            }
+        }
     }
 
 }
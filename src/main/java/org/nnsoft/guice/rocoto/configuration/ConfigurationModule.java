@@ -35,6 +35,7 @@ import java.util.Properties;
 
 import org.nnsoft.guice.rocoto.configuration.binder.PropertyValueBindingBuilder;
 import org.nnsoft.guice.rocoto.configuration.binder.XMLPropertiesFormatBindingBuilder;
+import org.nnsoft.guice.rocoto.variables.StringPool;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.ProvisionException;
@@ -58,6 +59,9 @@ public abstract class ConfigurationModule
 
     private List<PropertiesURLReader> readers;
 
+    /** Pool sharing identical property names and values, null if none */
+    private StringPool stringPool;
+
     @Override
     protected final void configure()
     {
@@ -93,6 +97,18 @@ public abstract class ConfigurationModule
      */
     protected abstract void bindConfigurations();
 
+    /**
+     * Intern the names and values of the properties bound from now on in the given pool, so that modules and injectors
+     * reading the same configurations share one instance of each.
+     *
+     * @param stringPool Pool to use, null to keep strings as read
+     * @since 6.4
+     */
+    protected void internStrings( StringPool stringPool )
+    {
+        this.stringPool = stringPool;
+    }
+
     /**
      * Binds to a property with the given name.
      *
@@ -110,7 +126,14 @@ public abstract class ConfigurationModule
             {
                 checkNotNull( value, "Null value not admitted for property '%s's", name );
 
-                bindConstant().annotatedWith( named( name ) ).to( value );
+                if ( stringPool != null )
+                {
+                    bindConstant().annotatedWith( named( stringPool.intern( name ) ) ).to( stringPool.intern( value ) );
+                }
+                else
+                {
+                    bindConstant().annotatedWith( named( name ) ).to( value );
+                }
             }
 
         };
@@ -156,6 +179,9 @@ public abstract class ConfigurationModule
 
     /**
      * Add the Environment Variables properties, prefixed by {@code env.}.
+     * <p>
+     * Variables expanded by {@link org.nnsoft.guice.rocoto.Rocoto} with the default namespaces enabled can reference
+     * system properties as <tt>${sys:name}</tt> instead, looked up when referenced only.
      */
     protected void bindSystemProperties()
     {
@@ -176,6 +202,9 @@ public abstract class ConfigurationModule
 
     /**
      * Add the System Variables properties.
+     * <p>
+     * Variables expanded by {@link org.nnsoft.guice.rocoto.Rocoto} with the default namespaces enabled can reference
+     * environment variables as <tt>${env:NAME}</tt> instead, looked up when referenced only.
      */
     protected void bindEnvironmentVariables()
     {
@@ -18,11 +18,17 @@ package org.nnsoft.guice.rocoto.variables;
 
 import static java.lang.String.format;
 import static java.util.logging.Level.FINEST;
+import static java.util.logging.Level.WARNING;
 import static java.util.logging.Logger.getLogger;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
+import com.google.common.base.Predicate;
+
 /**
  * Abstract Appender implementation handling resolving context management.
  *
@@ -36,68 +42,348 @@ abstract class AbstractAppender
     private static final Logger logger = getLogger( AbstractAppender.class.getName() );
 
     /** Original chunk to process by this appender */
-    protected final String chunk;
+    protected final CharSequence chunk;
 
     /**
      * Default constructor
      *
      * @param chunk The chunk this appender has to process.
      */
-    protected AbstractAppender( String chunk )
+    protected AbstractAppender( CharSequence chunk )
     {
         this.chunk = chunk;
     }
 
+    /** Outcome of a look up: the key has no value */
+    protected static final int MISSING = 0;
+
+    /** Outcome of a look up: the value has been appended */
+    protected static final int APPENDED = 1;
+
+    /**
+     * Outcome of a look up: the frame expanding the value has been pushed, call
+     * {@link #expanded(ResolvingFrame, ResolvingContext)} once it is done
+     */
+    protected static final int EXPANDING = 2;
+
+    /** Step of a frame resolving a variable: look the key up */
+    protected static final int LOOK_UP = ResolvingFrame.START;
+
+    /** Step of a frame resolving a variable: the dynamic key has been resolved, look it up */
+    protected static final int KEY_RESOLVED = 1;
+
+    /** Step of a frame resolving a variable: the value has been expanded */
+    protected static final int EXPANDED = 2;
+
+    /** Step of a frame resolving a variable: the default value has been resolved */
+    protected static final int DEFAULTED = 3;
+
     /**
-     * Move provided context to current appender and call {@link #doAppend(StringBuilder, Map, Tree, Parser)} if no recursion has been detected.
+     * Resolve this appender on the stack of the provided context, recording the visit if tracing.
      *
      * @param buffer
      * @param configuration
      * @param context
      */
-    public final void append( StringBuilder buffer, Map<String, String> configuration, Tree<Appender> context )
+    public final void append( StringBuilder buffer, Map<String, String> configuration, ResolvingContext context )
+    {
+        int base = context.getFrameCount();
+        context.push( this, buffer );
+        context.run( configuration, base );
+    }
+
+    /**
+     * Begin resolving process with this appender against the provided configuration.
+     */
+    public String resolve( Map<String, String> configuration )
+    {
+        return resolve( configuration, new ResolvingBudget( ResolvingLimits.NONE ), null, null );
+    }
+
+    /**
+     * Begin resolving process with this appender against the provided configuration.
+     *
+     * @param configuration
+     * @param budget Work done by the resolution pass
+     * @param root Key whose value is resolved, null if unknown
+     * @param cycles Known cycles, null if the caller doesn't analyse cycles
+     * @return Resolved value
+     */
+    String resolve( Map<String, String> configuration, ResolvingBudget budget, String root, VariableCycles cycles )
+    {
+        StringBuilder buffer = new StringBuilder( sizeEstimate() );
+        ResolvingContext context = begin( buffer, budget, root, cycles );
+        context.run( configuration, 0 );
+        return end( buffer, context );
+    }
+
+    /**
+     * Resolve against the provided configuration straight into the given output: the buffer is flushed whenever it
+     * holds {@link ResolvingContext#FLUSH_SIZE} characters, the whole value is never built.
+     *
+     * @since 6.4
+     */
+    public void resolveTo( Appendable output, Map<String, String> configuration )
+        throws IOException
+    {
+        StringBuilder buffer = new StringBuilder( Math.min( sizeEstimate(), ResolvingContext.FLUSH_SIZE ) );
+        ResolvingContext context = begin( buffer, new ResolvingBudget( ResolvingLimits.NONE ), null, null );
+        context.runTo( output, buffer, configuration );
+        trace( context );
+    }
+
+    /**
+     * Create a context whose stack holds the frame resolving this appender: the value is resolved once the context
+     * has been run down to no frame.
+     *
+     * @param buffer Buffer to resolve the value into
+     * @param budget Work done by the resolution pass
+     * @param root Key whose value is resolved, null if unknown
+     * @param cycles Known cycles, null if the caller doesn't analyse cycles
+     * @return Context of the resolution
+     */
+    ResolvingContext begin( StringBuilder buffer, ResolvingBudget budget, String root, VariableCycles cycles )
+    {
+        ResolvingContext context = new ResolvingContext( logger.isLoggable( FINEST ), budget, root, cycles );
+        context.push( this, buffer );
+        return context;
+    }
+
+    /**
+     * @param buffer Buffer the value has been resolved into
+     * @param context Context of the resolution, run down to no frame
+     * @return Resolved value
+     */
+    static String end( StringBuilder buffer, ResolvingContext context )
+    {
+        trace( context );
+        return buffer.toString();
+    }
+
+    /**
+     * Dump some info on resolution, if tracing.
+     *
+     * @param context Context of the resolution, run down to no frame
+     */
+    private static void trace( ResolvingContext context )
+    {
+        if ( context.isTracing() )
+        {
+            logger.finest( format( "Resolving variables:%n%s", context.getTrace() ) );
+        }
+    }
+
+    /**
+     * @return Expected size of the resolved value
+     */
+    protected int sizeEstimate()
+    {
+        return chunk.length();
+    }
+
+    /**
+     * Append the value of the given key found in the configuration to the buffer of the given frame, resolving its
+     * variables if any unless the key value is already being expanded. In such case, recursion is detected and the
+     * given chunk is appended instead.<br>
+     * Variables are not resolved by a nested call: the frame resolving them is pushed instead.<br>
+     * The configuration is never modified: expanded values are memoized by the context instead.
+     *
+     * The key may be a reusable buffer: when the configuration supports look ups by id and knows the key, no string is
+     * made out of it.
+     *
+     * @param frame Frame resolving the variable
+     * @param chunk Original chunk referencing the key
+     * @param key Configuration key
+     * @param parser Parser to use on the key value
+     * @param configuration
+     * @param context
+     * @return {@link #MISSING}, {@link #APPENDED} or {@link #EXPANDING}
+     */
+    protected static int appendValue( ResolvingFrame frame, CharSequence chunk, CharSequence key, Parser parser,
+                                      Map<String, String> configuration, ResolvingContext context )
+    {
+        SymbolTable symbols = symbolsOf( configuration );
+        if ( symbols != null )
+        {
+            int id = symbols.idOf( key );
+            if ( id >= 0 )
+            {
+                return appendValue( frame, chunk, symbols.nameOf( id ), id, parser, configuration, context );
+            }
+        }
+        return appendValue( frame, chunk, key.toString(), -1, parser, configuration, context );
+    }
+
+    /**
+     * Same as {@link #appendValue(ResolvingFrame, CharSequence, CharSequence, Parser, Map, ResolvingContext)} for a
+     * key known when parsing, bound to its id as long as configurations share the same symbol table.
+     *
+     * @param frame Frame resolving the variable
+     * @param chunk Original chunk referencing the key
+     * @param key Configuration key
+     * @param parser Parser to use on the key value
+     * @param configuration
+     * @param context
+     * @return {@link #MISSING}, {@link #APPENDED} or {@link #EXPANDING}
+     */
+    protected static int appendValue( ResolvingFrame frame, CharSequence chunk, StaticKey key, Parser parser,
+                                      Map<String, String> configuration, ResolvingContext context )
+    {
+        SymbolTable symbols = symbolsOf( configuration );
+        return appendValue( frame, chunk, key.toString(), symbols == null ? -1 : key.idIn( symbols ), parser,
+                            configuration, context );
+    }
+
+    /**
+     * @return Table giving the ids of the configuration keys, null if it can't look keys up by id
+     */
+    private static SymbolTable symbolsOf( Map<String, String> configuration )
     {
-        // Create context if needed
-        Tree<Appender> currentContext = context == null ? new Tree<Appender>( this ) : context.addLeaf( this );
+        return configuration instanceof SymbolLookup ? ( (SymbolLookup) configuration ).getSymbols() : null;
+    }
+
+    /**
+     * @param id Id of the key in the symbol table of the configuration, -1 to look it up by name
+     */
+    private static int appendValue( ResolvingFrame frame, CharSequence chunk, String key, int id, Parser parser,
+                                    Map<String, String> configuration, ResolvingContext context )
+    {
+        // Looked up before counting the step: a look up interrupted by the configuration is counted once, when done
+        String expanded = context.getExpanded( key );
+        String value = expanded != null ? expanded
+                        : id >= 0 ? ( (SymbolLookup) configuration ).get( id ) : configuration.get( key );
+        context.step( key );
+        if ( value == null )
+        {
+            return MISSING;
+        }
+        context.lookedUp( key );
 
-        // Check recursion
-        if ( currentContext.inAncestors( this ) )
+        StringBuilder buffer = frame.getBuffer();
+        int start = context.lengthOf( buffer );
+        if ( expanded != null )
         {
-            // For the moment just log a warning, and stop the resolving by appending original chunk
+            buffer.append( expanded );
+            produced( key, buffer, start, context );
+            return APPENDED;
+        }
+
+        Set<String> cycle = context.getCycles() == null ? null : context.getCycles().getCycle( key );
+        if ( cycle != null )
+        {
+            // Cyclic keys are not expanded: references within the cycle are left as is
+            buffer.append( cycle.contains( context.getRoot() ) ? chunk : value );
+            produced( key, buffer, start, context );
+            return APPENDED;
+        }
+
+        // Value from the configuration may have variables unresolved
+        Resolver resolver = isPlainText( parser, value ) ? null : parser.parse( value );
+        if ( resolver == null || !resolver.needsResolving() )
+        {
+            buffer.append( value );
+        }
+        else if ( !context.enter( key ) )
+        {
+            // Stop the resolving by appending original chunk, and warn unless the caller reports cycles at once
             buffer.append( chunk );
 
-            logger.warning( format( "Recursion detected within variable resolving:%n%s", currentContext.getRoot() ) );
+            if ( context.getCycles() == null && logger.isLoggable( WARNING ) )
+            {
+                logger.warning( format( "Recursion detected within variable resolving:%n%s%s", context.describe( key ),
+                                        context.isTracing() ? format( "%n%s", context.getTrace() ) : "" ) );
+            }
         }
-        // Process real appending
         else
         {
-            doAppend( buffer, configuration, currentContext );
-            // Dump some info on resolution if this is a root appender
-            if ( currentContext.isRoot() && logger.isLoggable( FINEST ) )
+            frame.expanding( key, start, context.getRecursions() );
+            if ( resolver instanceof Appender )
             {
-                logger.finest( format( "Resolving variables:%n%s", currentContext ) );
+                context.push( (Appender) resolver, buffer );
+                return EXPANDING;
             }
+            buffer.append( resolver.resolve( configuration ) );
+            expanded( frame, context );
+            return APPENDED;
         }
+        produced( key, buffer, start, context );
+        return APPENDED;
     }
 
     /**
-     * Begin resolving process with this appender against the provided configuration.
+     * Count the characters appended to the given buffer for the given key against the budget.
+     *
+     * @param key
+     * @param buffer
+     * @param start Buffer length before the value, flushed characters included
+     * @param context
      */
-    public String resolve( Map<String, String> configuration )
+    private static void produced( String key, StringBuilder buffer, int start, ResolvingContext context )
     {
-        StringBuilder buffer = new StringBuilder();
-        append( buffer, configuration, null );
-        return buffer.toString();
+        int length = context.lengthOf( buffer );
+        context.produced( key, length - start, length );
     }
 
     /**
-     * Append something to the provided buffer for the given configuration.<br>
+     * Done expanding the value appended by the given frame: memoize it, unless it has been partly flushed already. A
+     * value which detected recursion is only reused where expanding it again gives the same value.
      *
-     * @param buffer
-     * @param configuration
-     * @param passed Resolving context, current element is the appender itself.
+     * @param frame Frame whose look up returned {@link #EXPANDING}
+     * @param context
+     */
+    protected static void expanded( ResolvingFrame frame, ResolvingContext context )
+    {
+        String key = frame.getExpandedKey();
+        StringBuilder buffer = frame.getBuffer();
+        int start = frame.getExpandedStart();
+        String expanded = context.contentFrom( buffer, start );
+        if ( expanded != null && frame.getExpandedRecursions() == context.getRecursions() )
+        {
+            context.setExpanded( key, expanded );
+        }
+        else if ( expanded != null )
+        {
+            context.setTruncated( key, expanded );
+        }
+        context.leave();
+        produced( key, buffer, start, context );
+    }
+
+    /**
+     * Values without variable start are parsed as plain text by {@link AntStyleParser}: no need to parse them, nor to
+     * look them up in a cache.
+     *
+     * @param parser
+     * @param value
+     * @return True if the given parser is known to parse the given value as plain text
      */
-    protected abstract void doAppend( StringBuilder buffer, Map<String, String> configuration, Tree<Appender> context );
+    static boolean isPlainText( Parser parser, String value )
+    {
+        Parser antStyle = parser instanceof CachingParser ? ( (CachingParser) parser ).getDelegate() : parser;
+        return antStyle instanceof AntStyleParser && value.indexOf( AntStyleParser.VAR_START ) < 0;
+    }
+
+    /**
+     * No key looked up by default.
+     */
+    public void collectKeys( Collection<String> keys )
+    {
+    }
+
+    /**
+     * No key looked up by default.
+     */
+    public void collectCertainKeys( Collection<String> keys, Predicate<String> present )
+    {
+    }
+
+    /**
+     * No dynamic key by default.
+     */
+    public boolean hasDynamicKeys()
+    {
+        return false;
+    }
 
     /**
      * Abstract to force subclasses to re-implement.
@@ -111,13 +397,21 @@ abstract class AbstractAppender
     @Override
     public abstract int hashCode();
 
+    /**
+     * @return original chunk, without copying it
+     */
+    public final CharSequence getChunk()
+    {
+        return chunk;
+    }
+
     /**
      * @return original chunk
      */
     @Override
     public final String toString()
     {
-        return chunk;
+        return chunk.toString();
     }
 
 }
@@ -40,158 +40,231 @@ import java.util.List;
  * </ul>
  * 
  * <h3>Note</h3> The parser trim variable key and default value thus <tt>${ foo  | default     }</tt> is equals to <tt>${foo|default}</tt>.
+ * <p>
+ * Parsing takes linear time whatever the input, and the number of nested variables is bounded so that resolving the
+ * produced appenders can't exhaust the stack.
  * 
  */
 public class AntStyleParser implements Parser
 {
 	/** Grammar constants */
-	static final String VAR_START = "${";
-	static final int VAR_START_LEN = VAR_START.length();
+	static final char VAR_START = '$';
+	static final char VAR_OPEN = '{';
 	static final char VAR_CLOSE = '}';
-	static final int VAR_CLOSE_LEN = 1;
 	static final char PIPE_SEPARATOR = '|';
-	static final int PIPE_SEPARATOR_LEN = 1;
 
 	/**
-	 * FIXME: Refactor!
+	 * Variable being parsed.
 	 */
-	public Appender parse( String pattern ) throws IllegalArgumentException
+	private static final class Variable
 	{
-		List<Appender> appenders = new ArrayList<Appender>();
-		int prev = 0;
-		int pos = 0;
-		while ((pos = pattern.indexOf(VAR_START, pos)) >= 0)
+		/** Position of the variable start */
+		private final int start;
+
+		/** Part of the enclosing expression being parsed when the variable started */
+		private final List<Appender> parentPart;
+
+		/** Position where the part of the enclosing expression started */
+		private final int parentPartStart;
+
+		/** Key appender, once the pipe separator has been met */
+		private Appender key;
+
+		private Variable( int start, List<Appender> parentPart, int parentPartStart )
 		{
-			// Add text between beginning/end of last variable
-			if ( pos > prev )
-			{
-				appenders.add(new TextAppender(pattern.substring(prev, pos)));
-			}
+			this.start = start;
+			this.parentPart = parentPart;
+			this.parentPartStart = parentPartStart;
+		}
+	}
 
-			// Move to real variable name beginning
-			pos += VAR_START_LEN;
+	/** Default maximum number of nested variables */
+	public static final int DEFAULT_MAX_NESTING_DEPTH = 128;
 
-			// Next close bracket (not necessarily the variable end bracket if
-			// there is a default value with nested variables
-			int endVariable = pattern.indexOf(VAR_CLOSE, pos);
-			if ( endVariable < 0 )
-			{
-				throw new IllegalArgumentException(format(
-						"Syntax error in property value ''{0}'', missing close bracket ''{1}'' for variable beginning at col {2}: ''{3}''", pattern,
-						VAR_CLOSE, pos - VAR_START_LEN, pattern.substring(pos - VAR_START_LEN)));
-			}
+	/** True to compile appender trees into flat programs */
+	private final boolean compiling;
 
-			// Try to skip eventual internal variable here
-			int nextVariable = pattern.indexOf(VAR_START, pos);
-			// Just used to throw exception with more accurate message
-			int lastEndVariable = endVariable;
-			boolean hasNested = false;
-			while (nextVariable >= 0 && nextVariable < endVariable)
-			{
-				hasNested = true;
-				endVariable = pattern.indexOf(VAR_CLOSE, endVariable + VAR_CLOSE_LEN);
-				// Something is badly closed
-				if ( endVariable < 0 )
-				{
-					throw new IllegalArgumentException(format(
-							"Syntax error in property value ''{0}'', missing close bracket ''{1}'' for variable beginning at col {2}: ''{3}''",
-							pattern, VAR_CLOSE, nextVariable, pattern.substring(nextVariable, lastEndVariable)));
-				}
-				nextVariable = pattern.indexOf(VAR_START, nextVariable + VAR_START_LEN);
-				lastEndVariable = endVariable;
-			}
-			// The chunk to process
-			final String rawKey = pattern.substring(pos - VAR_START_LEN, endVariable + VAR_CLOSE_LEN);
-			// Key without variable start and end symbols
-			final String key = pattern.substring(pos, endVariable);
+	/** Maximum number of nested variables, bounds the depth of produced appender trees */
+	private final int maxNestingDepth;
 
-			int pipeIndex = key.indexOf(PIPE_SEPARATOR);
+	/**
+	 * Create a parser producing appender trees.
+	 */
+	public AntStyleParser()
+	{
+		this(false);
+	}
 
-			boolean hasKeyVariables = false;
-			boolean hasDefault = false;
-			boolean hasDefaultVariables = false;
+	/**
+	 * @param compiling True to compile appender trees into flat programs, resolved by a single loop into one buffer.
+	 * @since 6.4
+	 */
+	public AntStyleParser( boolean compiling )
+	{
+		this(compiling, DEFAULT_MAX_NESTING_DEPTH);
+	}
+
+	/**
+	 * @param compiling True to compile appender trees into flat programs, resolved by a single loop into one buffer.
+	 * @param maxNestingDepth Maximum number of nested variables, deeper patterns are rejected as syntax errors.
+	 * @since 6.4
+	 */
+	public AntStyleParser( boolean compiling, int maxNestingDepth )
+	{
+		if ( maxNestingDepth < 1 )
+		{
+			throw new IllegalArgumentException("Parameter 'maxNestingDepth' must be strictly positive");
+		}
+		this.compiling = compiling;
+		this.maxNestingDepth = maxNestingDepth;
+	}
+
+	/**
+	 * @return True if this parser compiles appender trees into flat programs
+	 * @since 6.4
+	 */
+	public boolean isCompiling()
+	{
+		return compiling;
+	}
+
+	/**
+	 * @return Maximum number of nested variables
+	 * @since 6.4
+	 */
+	public int getMaxNestingDepth()
+	{
+		return maxNestingDepth;
+	}
 
-			// There is a pipe
-			if ( pipeIndex >= 0 )
+	public Appender parse( String pattern ) throws IllegalArgumentException
+	{
+		return parse(pattern, this);
+	}
+
+	/**
+	 * Parse the given pattern in a single pass, text fragments are the only substrings created: parsing time and memory
+	 * are linear in the pattern length.
+	 * 
+	 * @param pattern
+	 * @param parser Parser the created appenders will use to parse values they look up
+	 */
+	Appender parse( String pattern, Parser parser ) throws IllegalArgumentException
+	{
+		// Nothing to parse
+		if ( pattern.indexOf(VAR_START) < 0 )
+		{
+			return new TextAppender(pattern);
+		}
+
+		List<Appender> expression = new ArrayList<Appender>();
+		List<Variable> variables = new ArrayList<Variable>();
+		// Appenders of the variable key or default value being parsed, or of the whole expression
+		List<Appender> part = expression;
+		int partStart = 0;
+		int textStart = 0;
+
+		int length = pattern.length();
+		for ( int pos = 0; pos < length; pos++ )
+		{
+			char c = pattern.charAt(pos);
+			if ( c == VAR_START && pos + 1 < length && pattern.charAt(pos + 1) == VAR_OPEN )
 			{
-				// No nested property detected, simple default part
-				if ( !hasNested )
+				addText(pattern, part, textStart, pos, !variables.isEmpty() && textStart == partStart, false);
+				if ( variables.size() == maxNestingDepth )
 				{
-					hasDefault = true;
-					hasDefaultVariables = false;
-				}
-				// There is a pipe and nested variable,
-				// determine if pipe is for the current variable or a nested key
-				// variable
-				else
-				{
-					int nextStartKeyVariable = key.indexOf(VAR_START);
-					hasKeyVariables = pipeIndex > nextStartKeyVariable;
-					if ( hasKeyVariables )
-					{
-						// ff${fdf}|${f}
-						int nextEndKeyVariable = key.indexOf(VAR_CLOSE, nextStartKeyVariable + VAR_START_LEN);
-						pipeIndex = key.indexOf(PIPE_SEPARATOR, nextEndKeyVariable + VAR_CLOSE_LEN);
-						while (pipeIndex >= 0 && pipeIndex > nextStartKeyVariable)
-						{
-							pipeIndex = key.indexOf(PIPE_SEPARATOR, nextEndKeyVariable + VAR_CLOSE_LEN);
-							nextStartKeyVariable = key.indexOf(VAR_START, nextStartKeyVariable + VAR_START_LEN);
-							// No more nested variable
-							if ( nextStartKeyVariable < 0 )
-							{
-								break;
-							}
-							nextEndKeyVariable = key.indexOf(VAR_CLOSE, nextEndKeyVariable + VAR_CLOSE_LEN);
-							if ( nextEndKeyVariable < 0 )
-							{
-								throw new IllegalArgumentException(
-										format("Syntax error in property value ''{0}'', missing close bracket ''{1}'' for variable beginning at col {2}: ''{3}''",
-												pattern, VAR_CLOSE, nextStartKeyVariable, key.substring(nextStartKeyVariable)));
-							}
-						}
-					}
-
-					// nested variables are only for key, current variable does
-					// not have a default value
-					if ( pipeIndex >= 0 )
-					{
-						hasDefault = true;
-						hasDefaultVariables = key.indexOf(VAR_START, pipeIndex) >= 0;
-					}
-
+					throw new IllegalArgumentException(format(
+							"Syntax error in property value ''{0}'', more than {1} nested variables at col {2}", pattern,
+							maxNestingDepth, pos));
 				}
-			}
-			// No pipe, there is key variables if nested elements have been
-			// detected
-			else
+				variables.add(new Variable(pos, part, partStart));
+				part = new ArrayList<Appender>();
+				pos++;
+				partStart = pos + 1;
+				textStart = partStart;
+			} else if ( variables.isEmpty() )
 			{
-				hasKeyVariables = hasNested;
-			}
-
-			// Construct variable appenders
-			String keyPart = null;
-			String defaultPart = null;
-			if ( hasDefault )
+				// Plain text
+			} else if ( c == PIPE_SEPARATOR && variables.get(variables.size() - 1).key == null )
 			{
-				keyPart = key.substring(0, pipeIndex).trim();
-				defaultPart = key.substring(pipeIndex + PIPE_SEPARATOR_LEN).trim();
-			} else
+				// End of key, begin of default value
+				addText(pattern, part, textStart, pos, textStart == partStart, true);
+				variables.get(variables.size() - 1).key = toAppender(pattern, part, partStart, pos);
+				part = new ArrayList<Appender>();
+				partStart = pos + 1;
+				textStart = partStart;
+			} else if ( c == VAR_CLOSE )
 			{
-				keyPart = key.trim();
+				addText(pattern, part, textStart, pos, textStart == partStart, true);
+				Variable variable = variables.remove(variables.size() - 1);
+				Appender current = toAppender(pattern, part, partStart, pos);
+				// Choose TextAppender when relevant to avoid unecessary parsing when it's clearly not needed
+				Appender key = variable.key != null ? variable.key : current;
+				Appender defaultValue = variable.key != null ? current : null;
+				part = variable.parentPart;
+				partStart = variable.parentPartStart;
+				part.add(KeyAppender.create(parser, new Slice(pattern, variable.start, pos + 1), key, defaultValue));
+				textStart = pos + 1;
 			}
-			// Choose TextAppender when relevant to avoid unecessary parsing when it's clearly not needed
-			appenders.add(new KeyAppender(this, rawKey, hasKeyVariables ? parse(keyPart) : new TextAppender(keyPart), !hasDefault ? null
-					: (hasDefaultVariables ? parse(defaultPart) : new TextAppender(defaultPart))));
+		}
 
-			prev = endVariable + VAR_CLOSE_LEN;
-			pos = prev;
+		if ( !variables.isEmpty() )
+		{
+			int variableStart = variables.get(0).start;
+			throw new IllegalArgumentException(format(
+					"Syntax error in property value ''{0}'', missing close bracket ''{1}'' for variable beginning at col {2}: ''{3}''",
+					pattern, VAR_CLOSE, variableStart, pattern.substring(variableStart)));
 		}
+		addText(pattern, expression, textStart, length, false, false);
+
+		Appender appender = MixinAppender.create(pattern, expression);
+		return compiling ? CompiledTemplate.compile(parser, appender) : appender;
+	}
 
-		if ( prev < pattern.length() )
+	/**
+	 * Add a text fragment of the pattern to the given part, if not empty once trimmed as requested.
+	 */
+	private static void addText( String pattern, List<Appender> part, int start, int end, boolean trimStart, boolean trimEnd )
+	{
+		int from = start;
+		int to = end;
+		while (trimStart && from < to && pattern.charAt(from) <= ' ')
+		{
+			from++;
+		}
+		while (trimEnd && to > from && pattern.charAt(to - 1) <= ' ')
+		{
+			to--;
+		}
+		if ( from < to )
 		{
-			appenders.add(new TextAppender(pattern.substring(prev)));
+			part.add(new TextAppender(pattern.substring(from, to)));
 		}
+	}
 
-		return appenders.size() == 1 ? appenders.get(0) : new MixinAppender(pattern, appenders);
+	/**
+	 * @return Appender for a variable key or default value
+	 */
+	private static Appender toAppender( String pattern, List<Appender> part, int start, int end )
+	{
+		switch (part.size())
+		{
+			case 0:
+				return new TextAppender("");
+			case 1:
+				return part.get(0);
+			default:
+				int from = start;
+				int to = end;
+				while (from < to && pattern.charAt(from) <= ' ')
+				{
+					from++;
+				}
+				while (to > from && pattern.charAt(to - 1) <= ' ')
+				{
+					to--;
+				}
+				return MixinAppender.create(new Slice(pattern, from, to), part);
+		}
 	}
 }
@@ -16,25 +16,69 @@ package org.nnsoft.guice.rocoto.variables;
  *    limitations under the License.
  */
 
+import java.util.Collection;
 import java.util.Map;
 
+import com.google.common.base.Predicate;
+
 /**
  * Resolver extension to implement resolving process by chunk.
  *
  * @since 6.0
  */
 interface Appender
-    extends Resolver
+    extends StreamingResolver
 {
 
     /**
      * Append something to the provided buffer for the given configuration.<br>
-     * Implementation should add themselves in the context tree.
+     * The visit is recorded in the context when tracing.
      *
      * @param buffer
      * @param configuration
      * @param context
      */
-    void append( StringBuilder buffer, Map<String, String> configuration, Tree<Appender> context );
+    void append( StringBuilder buffer, Map<String, String> configuration, ResolvingContext context );
+
+    /**
+     * Make progress on the given frame of the context stack: append to the frame buffer, or push the frames of the
+     * appenders to resolve first and return, to be called again once they are done. The frame is popped when done.<br>
+     * Nested appenders must never be resolved by nested calls, so that resolving takes constant stack depth.
+     *
+     * @param frame Innermost frame, resolving this appender
+     * @param configuration
+     * @param context
+     * @since 6.4
+     */
+    void resume( ResolvingFrame frame, Map<String, String> configuration, ResolvingContext context );
+
+    /**
+     * @return Original chunk processed by this appender
+     */
+    CharSequence getChunk();
+
+    /**
+     * Collect the keys this appender looks up which are known before resolving, i.e. not computed from other values.
+     *
+     * @param keys
+     * @since 6.4
+     */
+    void collectKeys( Collection<String> keys );
+
+    /**
+     * Collect the keys this appender looks up whatever the values: keys computed from other values are unknown, and
+     * default values are only walked when their key is known to be missing.
+     *
+     * @param keys
+     * @param present Tells whether a key may have a value
+     * @since 6.4
+     */
+    void collectCertainKeys( Collection<String> keys, Predicate<String> present );
+
+    /**
+     * @return True if this appender looks up keys computed from other values, unknown to {@link #collectKeys(Collection)}
+     * @since 6.4
+     */
+    boolean hasDynamicKeys();
 
 }
\ No newline at end of file
@@ -0,0 +1,158 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Throwables.propagate;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Parser decorator memoizing the resolvers produced for the same input, so that values referenced many times are
+ * parsed once.<br>
+ * The cache is bounded by the total length of cached inputs, least recently used entries are evicted first. Resolvers
+ * are shared, thus the decorated parser must produce immutable ones.
+ *
+ * @since 6.4
+ */
+public final class CachingParser
+    implements Parser
+{
+
+    /** Default maximum total length of cached inputs */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 1024 * 1024;
+
+    /** Parser producing resolvers on cache miss */
+    private final Parser delegate;
+
+    /** Resolvers by input */
+    private final LoadingCache<String, Resolver> cache;
+
+    /**
+     * Decorate the given parser with a cache of default size.
+     *
+     * @param delegate
+     */
+    public CachingParser( Parser delegate )
+    {
+        this( delegate, DEFAULT_MAXIMUM_WEIGHT );
+    }
+
+    /**
+     * @param delegate Parser producing resolvers on cache miss
+     * @param maximumWeight Maximum total length of cached inputs
+     */
+    public CachingParser( Parser delegate, long maximumWeight )
+    {
+        checkNotNull( delegate, "Parameter 'delegate' must be not null" );
+        checkArgument( maximumWeight >= 0, "Parameter 'maximumWeight' must be positive" );
+
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumWeight( maximumWeight )
+                                 .weigher( new Weigher<String, Resolver>()
+                                 {
+
+                                     public int weigh( String input, Resolver resolver )
+                                     {
+                                         return input.length();
+                                     }
+
+                                 } )
+                                 .recordStats()
+                                 .build( new CacheLoader<String, Resolver>()
+                                 {
+
+                                     @Override
+                                     public Resolver load( String input )
+                                     {
+                                         return parseWithDelegate( input );
+                                     }
+
+                                 } );
+    }
+
+    public Resolver parse( String input )
+    {
+        try
+        {
+            return cache.getUnchecked( input );
+        }
+        catch ( UncheckedExecutionException e )
+        {
+            // Syntax errors are reported as thrown by the decorated parser
+            throw propagate( e.getCause() );
+        }
+    }
+
+    /**
+     * Values looked up while resolving must be parsed through this cache as well.
+     */
+    private Resolver parseWithDelegate( String input )
+    {
+        if ( delegate instanceof AntStyleParser )
+        {
+            return ( (AntStyleParser) delegate ).parse( input, this );
+        }
+        return delegate.parse( input );
+    }
+
+    /**
+     * @return The decorated parser
+     */
+    public Parser getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * @return Number of parse requests served from the cache
+     */
+    public long getHitCount()
+    {
+        return cache.stats().hitCount();
+    }
+
+    /**
+     * @return Number of parse requests delegated to the decorated parser
+     */
+    public long getMissCount()
+    {
+        return cache.stats().missCount();
+    }
+
+    /**
+     * @return Number of cached resolvers
+     */
+    public long size()
+    {
+        return cache.size();
+    }
+
+    /**
+     * Discard all cached resolvers.
+     */
+    public void invalidateAll()
+    {
+        cache.invalidateAll();
+    }
+
+}
@@ -0,0 +1,410 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Appender running a flat program compiled from an appender tree: a sequence of literal segments and key slots,
+ * processed by a single loop writing into one buffer sized after the program.<br>
+ * Only dynamic keys and default values containing variables are compiled to nested programs.
+ *
+ * @since 6.4
+ */
+final class CompiledTemplate
+    extends AbstractAppender
+{
+
+    /**
+     * Key slot instruction: look up a key, fallback on default value.
+     */
+    private static final class Slot
+    {
+
+        /** Original variable chunk, rendered when nothing can be resolved */
+        private final CharSequence chunk;
+
+        /** Static key, null if key is dynamic */
+        private final String key;
+
+        /** Static key looked up by id, null if key is dynamic */
+        private final StaticKey staticKey;
+
+        /** Dynamic key program, null if key is static */
+        private final CompiledTemplate dynamicKey;
+
+        /** Literal default value, may be null */
+        private final String defaultLiteral;
+
+        /** Default value program, may be null */
+        private final CompiledTemplate defaultTemplate;
+
+        private Slot( CharSequence chunk, String key, CompiledTemplate dynamicKey, String defaultLiteral,
+                      CompiledTemplate defaultTemplate )
+        {
+            this.chunk = chunk;
+            this.key = key;
+            this.staticKey = key == null ? null : new StaticKey( key );
+            this.dynamicKey = dynamicKey;
+            this.defaultLiteral = defaultLiteral;
+            this.defaultTemplate = defaultTemplate;
+        }
+
+        /**
+         * @return Expected size of the value rendered by this slot
+         */
+        private int sizeEstimate()
+        {
+            if ( defaultLiteral != null )
+            {
+                return defaultLiteral.length();
+            }
+            if ( defaultTemplate != null )
+            {
+                return defaultTemplate.sizeEstimate;
+            }
+            return chunk.length();
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( obj == this )
+            {
+                return true;
+            }
+            if ( obj instanceof Slot )
+            {
+                Slot other = (Slot) obj;
+                return equal( key, other.key ) && equal( dynamicKey, other.dynamicKey )
+                    && equal( defaultLiteral, other.defaultLiteral ) && equal( defaultTemplate, other.defaultTemplate );
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Arrays.hashCode( new Object[] { key, dynamicKey, defaultLiteral, defaultTemplate } );
+        }
+
+        private static boolean equal( Object a, Object b )
+        {
+            return a != null ? a.equals( b ) : b == null;
+        }
+
+    }
+
+    /** Parser used to parse looked up values */
+    private final Parser parser;
+
+    /** Literal segments, null where the segment is a key slot */
+    private final String[] literals;
+
+    /** Key slots, null where the segment is a literal */
+    private final Slot[] slots;
+
+    /** Expected size of the rendered value */
+    private final int sizeEstimate;
+
+    /** True if at least one key slot */
+    private final boolean needsResolving;
+
+    private CompiledTemplate( Parser parser, CharSequence chunk, String[] literals, Slot[] slots )
+    {
+        super( chunk );
+        this.parser = parser;
+        this.literals = literals;
+        this.slots = slots;
+
+        int estimate = 0;
+        boolean hasSlot = false;
+        for ( int i = 0; i < literals.length; i++ )
+        {
+            if ( literals[i] != null )
+            {
+                estimate += literals[i].length();
+            }
+            else
+            {
+                estimate += slots[i].sizeEstimate();
+                hasSlot = true;
+            }
+        }
+        this.sizeEstimate = estimate;
+        this.needsResolving = hasSlot;
+    }
+
+    /**
+     * Compile the given appender tree.
+     *
+     * @param parser Parser used to parse looked up values
+     * @param appender Appender tree, as produced by {@link AntStyleParser}
+     * @return The compiled program
+     */
+    static CompiledTemplate compile( Parser parser, Appender appender )
+    {
+        if ( appender instanceof CompiledTemplate )
+        {
+            return (CompiledTemplate) appender;
+        }
+
+        List<Appender> segments = new ArrayList<Appender>();
+        if ( appender instanceof MixinAppender )
+        {
+            segments.addAll( ( (MixinAppender) appender ).getAppenders() );
+        }
+        else
+        {
+            segments.add( appender );
+        }
+
+        String[] literals = new String[segments.size()];
+        Slot[] slots = new Slot[segments.size()];
+        for ( int i = 0; i < segments.size(); i++ )
+        {
+            Appender segment = segments.get( i );
+            if ( segment instanceof KeyAppender )
+            {
+                slots[i] = compileSlot( parser, (KeyAppender) segment );
+            }
+            else if ( segment instanceof TextAppender )
+            {
+                literals[i] = segment.toString();
+            }
+            else
+            {
+                throw new IllegalArgumentException( "Unsupported appender " + segment.getClass().getName() );
+            }
+        }
+        return new CompiledTemplate( parser, appender.getChunk(), literals, slots );
+    }
+
+    private static Slot compileSlot( Parser parser, KeyAppender appender )
+    {
+        Appender key = appender.getKey();
+        Appender defaultValue = appender.getDefaultValue();
+        return new Slot( appender.getChunk(),
+                         key instanceof TextAppender ? key.toString() : null,
+                         key instanceof TextAppender ? null : compile( parser, key ),
+                         defaultValue instanceof TextAppender ? defaultValue.toString() : null,
+                         defaultValue == null || defaultValue instanceof TextAppender ? null
+                                         : compile( parser, defaultValue ) );
+    }
+
+    @Override
+    protected int sizeEstimate()
+    {
+        return sizeEstimate;
+    }
+
+    public void resume( ResolvingFrame frame, Map<String, String> configuration, ResolvingContext context )
+    {
+        StringBuilder buffer = frame.getBuffer();
+        int i = frame.getIndex();
+        switch ( frame.getStep() )
+        {
+            case KEY_RESOLVED:
+                int outcome = appendValue( frame, slots[i].chunk, frame.getKeyBuffer(), parser, configuration, context );
+                context.releaseKeyBuffer();
+                if ( !lookedUp( outcome, slots[i], frame, context ) )
+                {
+                    return;
+                }
+                i++;
+                break;
+            case EXPANDED:
+                expanded( frame, context );
+                i++;
+                break;
+            case DEFAULTED:
+                i++;
+                break;
+            default:
+                break;
+        }
+        // Frame state must allow to look the slot up again if the configuration interrupts the look up
+        frame.setStep( LOOK_UP );
+
+        for ( ; i < literals.length; i++ )
+        {
+            if ( context.isFlushDue( buffer ) )
+            {
+                // Yield, the streamed buffer is flushed before carrying on
+                frame.setIndex( i );
+                return;
+            }
+            if ( literals[i] != null )
+            {
+                buffer.append( literals[i] );
+                continue;
+            }
+
+            Slot slot = slots[i];
+            frame.setIndex( i );
+            if ( slot.staticKey == null )
+            {
+                StringBuilder keyBuffer = context.borrowKeyBuffer();
+                frame.setKeyBuffer( keyBuffer );
+                frame.setStep( KEY_RESOLVED );
+                context.push( slot.dynamicKey, keyBuffer );
+                return;
+            }
+            if ( !lookedUp( appendValue( frame, slot.chunk, slot.staticKey, parser, configuration, context ), slot,
+                            frame, context ) )
+            {
+                return;
+            }
+        }
+        context.pop();
+    }
+
+    /**
+     * Carry on after looking the key of the given slot up.
+     *
+     * @param outcome Outcome of the look up
+     * @param slot
+     * @param frame
+     * @param context
+     * @return False if the frame has to wait for the value or the default value to be resolved
+     */
+    private static boolean lookedUp( int outcome, Slot slot, ResolvingFrame frame, ResolvingContext context )
+    {
+        if ( outcome == EXPANDING )
+        {
+            frame.setStep( EXPANDED );
+            return false;
+        }
+        if ( outcome == APPENDED )
+        {
+            return true;
+        }
+        if ( slot.defaultLiteral != null )
+        {
+            frame.getBuffer().append( slot.defaultLiteral );
+        }
+        else if ( slot.defaultTemplate != null )
+        {
+            frame.setStep( DEFAULTED );
+            context.push( slot.defaultTemplate, frame.getBuffer() );
+            return false;
+        }
+        else
+        {
+            frame.getBuffer().append( slot.chunk );
+        }
+        return true;
+    }
+
+    @Override
+    public void collectKeys( Collection<String> keys )
+    {
+        for ( Slot slot : slots )
+        {
+            if ( slot == null )
+            {
+                continue;
+            }
+            if ( slot.key != null )
+            {
+                keys.add( slot.key );
+            }
+            else
+            {
+                slot.dynamicKey.collectKeys( keys );
+            }
+            if ( slot.defaultTemplate != null )
+            {
+                slot.defaultTemplate.collectKeys( keys );
+            }
+        }
+    }
+
+    @Override
+    public void collectCertainKeys( Collection<String> keys, Predicate<String> present )
+    {
+        for ( Slot slot : slots )
+        {
+            if ( slot == null )
+            {
+                continue;
+            }
+            if ( slot.key == null )
+            {
+                // Looked up key unknown until resolved: its default value may or may not be used
+                slot.dynamicKey.collectCertainKeys( keys, present );
+            }
+            else
+            {
+                keys.add( slot.key );
+                if ( slot.defaultTemplate != null && !present.apply( slot.key ) )
+                {
+                    slot.defaultTemplate.collectCertainKeys( keys, present );
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean hasDynamicKeys()
+    {
+        for ( Slot slot : slots )
+        {
+            if ( slot != null
+                && ( slot.key == null || slot.defaultTemplate != null && slot.defaultTemplate.hasDynamicKeys() ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals( Object obj )
+    {
+        if ( obj == this )
+        {
+            return true;
+        }
+        if ( obj instanceof CompiledTemplate )
+        {
+            CompiledTemplate other = (CompiledTemplate) obj;
+            return Arrays.equals( literals, other.literals ) && Arrays.equals( slots, other.slots );
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * Arrays.hashCode( literals ) + Arrays.hashCode( slots );
+    }
+
+    /**
+     * @return True if at least one key slot
+     */
+    public boolean needsResolving()
+    {
+        return needsResolving;
+    }
+
+}
@@ -0,0 +1,708 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Sets.newConcurrentHashSet;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.logging.Logger.getLogger;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Thread safe map resolving variables in its values against its own entries, the same way {@link VariablesMap} does.<br>
+ * Reads never block. A change locks the stripes of the changed key, of the keys depending on it and of the keys they
+ * look up, so changes to unrelated groups of keys proceed in parallel while re-resolution within a group is
+ * serialized.<br>
+ * Cycles are found and left unexpanded as {@link VariablesMap} does, see {@link #getCycles()}. A change exceeding the
+ * {@link ResolvingLimits#DEFAULT default limits} throws {@link ResolvingLimitExceededException} and leaves the map as
+ * it was.<br>
+ * As for {@link ConcurrentHashMap}, each change is atomic but bulk operations are not.
+ *
+ * @since 6.4
+ */
+public final class ConcurrentVariablesMap
+    extends AbstractMap<String, String>
+    implements ConcurrentMap<String, String>
+{
+
+    /** Default number of lock stripes */
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    private static final Logger logger = getLogger( ConcurrentVariablesMap.class.getName() );
+
+    /**
+     * Original value of a key.
+     */
+    private static final class Variable
+    {
+
+        private final String original;
+
+        private final Resolver resolver;
+
+        private Variable( String original, Resolver resolver )
+        {
+            this.original = original;
+            this.resolver = resolver;
+        }
+
+    }
+
+    /**
+     * When a change applies, given the current resolved value of the key.
+     */
+    private enum Condition
+    {
+
+        ALWAYS, IF_ABSENT, IF_PRESENT, IF_EQUAL;
+
+        private boolean applies( String current, String expected )
+        {
+            switch ( this )
+            {
+                case IF_ABSENT:
+                    return current == null;
+                case IF_PRESENT:
+                    return current != null;
+                case IF_EQUAL:
+                    return current != null && current.equals( expected );
+                default:
+                    return true;
+            }
+        }
+
+    }
+
+    private final Parser parser;
+
+    /** Original values */
+    private final ConcurrentMap<String, Variable> variables = new ConcurrentHashMap<String, Variable>();
+
+    /** Resolved values, read without locking */
+    private final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+
+    /** Keys looked up during last resolution of a given key, changed under the stripe of the given key */
+    private final ConcurrentMap<String, Set<String>> dependencies = new ConcurrentHashMap<String, Set<String>>();
+
+    /** Keys which looked up a given key, only added under the stripe of the given key */
+    private final ConcurrentMap<String, Set<String>> dependents = new ConcurrentHashMap<String, Set<String>>();
+
+    /** Cycles found so far, the cycles of a key only change under the stripes of its keys */
+    private final AtomicReference<VariableCycles> cycles = new AtomicReference<VariableCycles>( VariableCycles.NONE );
+
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Create a map using a {@link CachingParser} on top of an {@link AntStyleParser}.
+     */
+    public ConcurrentVariablesMap()
+    {
+        this( new CachingParser( new AntStyleParser() ) );
+    }
+
+    /**
+     * @param parser Thread safe parser
+     */
+    public ConcurrentVariablesMap( Parser parser )
+    {
+        this( parser, DEFAULT_CONCURRENCY_LEVEL );
+    }
+
+    /**
+     * @param parser Thread safe parser
+     * @param concurrencyLevel Number of lock stripes
+     */
+    public ConcurrentVariablesMap( Parser parser, int concurrencyLevel )
+    {
+        checkNotNull( parser, "Parameter 'parser' must be not null" );
+        checkArgument( concurrencyLevel > 0, "Parameter 'concurrencyLevel' must be strictly positive" );
+        this.parser = parser;
+        this.stripes = new ReentrantLock[concurrencyLevel];
+        for ( int i = 0; i < concurrencyLevel; i++ )
+        {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public Parser getParser()
+    {
+        return parser;
+    }
+
+    @Override
+    public String get( Object key )
+    {
+        return values.get( key );
+    }
+
+    @Override
+    public boolean containsKey( Object key )
+    {
+        return values.containsKey( key );
+    }
+
+    @Override
+    public int size()
+    {
+        return values.size();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet()
+    {
+        return unmodifiableSet( values.entrySet() );
+    }
+
+    /**
+     * @return Cycles found so far
+     * @see VariablesMap#getCycles()
+     */
+    public VariableCycles getCycles()
+    {
+        return cycles.get();
+    }
+
+    /**
+     * @return Previous resolved value of the key
+     */
+    @Override
+    public String put( String key, String value )
+    {
+        checkNotNull( value, "Parameter 'value' must be not null" );
+        return change( key, value, Condition.ALWAYS, null );
+    }
+
+    public String putIfAbsent( String key, String value )
+    {
+        checkNotNull( value, "Parameter 'value' must be not null" );
+        return change( key, value, Condition.IF_ABSENT, null );
+    }
+
+    public String replace( String key, String value )
+    {
+        checkNotNull( value, "Parameter 'value' must be not null" );
+        return change( key, value, Condition.IF_PRESENT, null );
+    }
+
+    /**
+     * @param oldValue Expected resolved value
+     */
+    public boolean replace( String key, String oldValue, String newValue )
+    {
+        checkNotNull( newValue, "Parameter 'newValue' must be not null" );
+        return oldValue != null && oldValue.equals( change( key, newValue, Condition.IF_EQUAL, oldValue ) );
+    }
+
+    @Override
+    public String remove( Object key )
+    {
+        return key instanceof String ? change( (String) key, null, Condition.IF_PRESENT, null ) : null;
+    }
+
+    /**
+     * @param value Expected resolved value
+     */
+    public boolean remove( Object key, Object value )
+    {
+        return key instanceof String && value instanceof String
+            && value.equals( change( (String) key, null, Condition.IF_EQUAL, (String) value ) );
+    }
+
+    @Override
+    public void clear()
+    {
+        for ( String key : values.keySet() )
+        {
+            remove( key );
+        }
+    }
+
+    /**
+     * Change the given key and re-resolve the keys depending on it, if the condition applies.
+     *
+     * @param key
+     * @param value New original value, null to remove the key
+     * @param condition
+     * @param expected Expected resolved value for {@link Condition#IF_EQUAL}
+     * @return Resolved value of the key before the change
+     */
+    private String change( String key, String value, Condition condition, String expected )
+    {
+        checkNotNull( key, "Parameter 'key' must be not null" );
+        // Syntax errors are reported before locking anything
+        Variable variable = value == null ? null : new Variable( value, parser.parse( value ) );
+
+        SortedSet<Integer> locked = new TreeSet<Integer>();
+        locked.add( stripe( key ) );
+        while ( true )
+        {
+            lock( locked );
+            try
+            {
+                // Keys depending on a locked key can't change anymore
+                Set<String> affected = affected( key );
+                if ( addStripes( affected, locked ) )
+                {
+                    continue;
+                }
+
+                String current = values.get( key );
+                if ( !condition.applies( current, expected ) )
+                {
+                    return current;
+                }
+
+                Update update = new Update( key, variable, affected );
+                update.run();
+                // Keys looked up must not change until the update is committed
+                if ( addStripes( update.lookedUp, locked ) )
+                {
+                    continue;
+                }
+                update.commit();
+                return current;
+            }
+            finally
+            {
+                unlock( locked );
+            }
+        }
+    }
+
+    /**
+     * Re-resolution of the keys affected by a change, kept aside until committed.<br>
+     * Cycles are found before expanding anything, then once resolved: keys of the update are resolved again from their
+     * original value until no new cycle turns up.
+     */
+    private final class Update
+        implements CycleAnalysis.Keys, Predicate<String>
+    {
+
+        private final String key;
+
+        /** New value of the key, null if removed */
+        private final Variable variable;
+
+        /** Keys of the update */
+        private final Set<String> affected;
+
+        /** Keys of the update waiting to be resolved */
+        private final Set<String> pending;
+
+        /** Keys of the update resolved so far, in order */
+        private final Set<String> done = new LinkedHashSet<String>();
+
+        /** Resolved values, null for a removed key */
+        private final Map<String, String> resolved = new HashMap<String, String>();
+
+        /** Values left partly unexpanded by recursion, hidden from the keys of the update until committed */
+        private final Map<String, String> truncated = new HashMap<String, String>();
+
+        /** Keys looked up while resolving a given key */
+        private final Map<String, Set<String>> recorded = new HashMap<String, Set<String>>();
+
+        /** All keys looked up */
+        private final Set<String> lookedUp = new HashSet<String>();
+
+        private final ResolvingBudget budget = new ResolvingBudget( ResolvingLimits.DEFAULT );
+
+        /** Cycles of the keys of the update found so far, and cycles of the other keys */
+        private VariableCycles known;
+
+        private Update( String key, Variable variable, Set<String> affected )
+        {
+            this.key = key;
+            this.variable = variable;
+            this.affected = affected;
+            this.pending = new LinkedHashSet<String>( affected );
+            VariableCycles others = cycles.get();
+            for ( String affectedKey : affected )
+            {
+                others = others.without( affectedKey );
+            }
+            known = others;
+        }
+
+        private void run()
+        {
+            CycleAnalysis analysis = new CycleAnalysis( this, logger );
+            while ( true )
+            {
+                known = known.with( analysis.findBeforeExpanding( pending, known ) );
+                while ( !pending.isEmpty() )
+                {
+                    resolve( pending.iterator().next() );
+                }
+
+                List<Set<String>> found = analysis.findOnceResolved( done, recorded, known );
+                if ( found.isEmpty() )
+                {
+                    return;
+                }
+                for ( Set<String> cycle : found )
+                {
+                    for ( String cyclicKey : cycle )
+                    {
+                        known = known.without( cyclicKey );
+                    }
+                }
+                known = known.with( found );
+                // Resolved again from their original value
+                resolved.clear();
+                truncated.clear();
+                pending.addAll( affected );
+            }
+        }
+
+        /**
+         * Resolve the given key, keys it looks up while waiting to be resolved are resolved first: interrupted
+         * resolutions are kept on a stack.
+         *
+         * @param resolvedKey
+         */
+        private void resolve( String resolvedKey )
+        {
+            List<Resolution> stack = new ArrayList<Resolution>();
+            push( stack, resolvedKey );
+            while ( !stack.isEmpty() )
+            {
+                Resolution resolution = stack.get( stack.size() - 1 );
+                String value;
+                try
+                {
+                    value = resolution.resume();
+                }
+                catch ( DependencyFirstException e )
+                {
+                    push( stack, e.getKey() );
+                    continue;
+                }
+                stack.remove( stack.size() - 1 );
+                ( resolution.isTruncated() ? truncated : resolved ).put( resolution.getKey(), value );
+                recorded.put( resolution.getKey(), ( (Recorder) resolution.getConfiguration() ).dependencies );
+            }
+        }
+
+        private void push( List<Resolution> stack, String resolvedKey )
+        {
+            pending.remove( resolvedKey );
+            done.add( resolvedKey );
+
+            Variable resolvedVariable = original( resolvedKey );
+            if ( resolvedVariable != null && resolvedVariable.resolver.needsResolving() )
+            {
+                Recorder recorder = new Recorder( this, Resolution.isResumable( resolvedVariable.resolver ) );
+                stack.add( new Resolution( resolvedKey, resolvedVariable.resolver, recorder, budget, known ) );
+            }
+            else
+            {
+                resolved.put( resolvedKey, resolvedVariable == null ? null : resolvedVariable.original );
+                recorded.remove( resolvedKey );
+            }
+        }
+
+        /**
+         * @param affectedKey Key of the update
+         * @return Original value of the given key once changed, null if removed
+         */
+        private Variable original( String affectedKey )
+        {
+            return affectedKey.equals( key ) ? variable : variables.get( affectedKey );
+        }
+
+        public boolean isWaiting( String affectedKey )
+        {
+            return pending.contains( affectedKey );
+        }
+
+        public void collectCertainKeys( String affectedKey, Collection<String> keys )
+        {
+            Variable affectedVariable = original( affectedKey );
+            if ( affectedVariable != null && affectedVariable.resolver instanceof Appender )
+            {
+                ( (Appender) affectedVariable.resolver ).collectCertainKeys( keys, this );
+            }
+        }
+
+        /**
+         * @return True if the given key may have a value once changed
+         */
+        public boolean apply( String dependency )
+        {
+            return affected.contains( dependency ) ? original( dependency ) != null : values.containsKey( dependency );
+        }
+
+        private String lookUp( String dependency )
+        {
+            if ( resolved.containsKey( dependency ) )
+            {
+                return resolved.get( dependency );
+            }
+            if ( affected.contains( dependency ) )
+            {
+                // Until resolved, keys of the update read as their original value
+                Variable dependencyVariable = original( dependency );
+                return dependencyVariable == null ? null : dependencyVariable.original;
+            }
+            return values.get( dependency );
+        }
+
+        private void commit()
+        {
+            // Other changes only replace the cycles of keys outside the update
+            List<Set<String>> updateCycles = new ArrayList<Set<String>>();
+            for ( Set<String> cycle : known.getCycles() )
+            {
+                if ( affected.contains( cycle.iterator().next() ) )
+                {
+                    updateCycles.add( cycle );
+                }
+            }
+            VariableCycles current;
+            VariableCycles next;
+            do
+            {
+                current = cycles.get();
+                next = current;
+                for ( String affectedKey : affected )
+                {
+                    next = next.without( affectedKey );
+                }
+                next = next.with( updateCycles );
+            }
+            while ( !cycles.compareAndSet( current, next ) );
+
+            if ( variable == null )
+            {
+                variables.remove( key );
+            }
+            else
+            {
+                variables.put( key, variable );
+            }
+
+            for ( String doneKey : done )
+            {
+                Set<String> previous = dependencies.remove( doneKey );
+                if ( previous != null )
+                {
+                    for ( String dependency : previous )
+                    {
+                        Set<String> dependencyDependents = dependents.get( dependency );
+                        if ( dependencyDependents != null )
+                        {
+                            dependencyDependents.remove( doneKey );
+                        }
+                    }
+                }
+
+                String value = resolved.containsKey( doneKey ) ? resolved.get( doneKey ) : truncated.get( doneKey );
+                if ( value == null )
+                {
+                    values.remove( doneKey );
+                }
+                else
+                {
+                    values.put( doneKey, value );
+                }
+
+                Set<String> keyDependencies = recorded.get( doneKey );
+                if ( keyDependencies != null )
+                {
+                    dependencies.put( doneKey, keyDependencies );
+                    for ( String dependency : keyDependencies )
+                    {
+                        Set<String> dependencyDependents = dependents.get( dependency );
+                        if ( dependencyDependents == null )
+                        {
+                            dependencyDependents = newConcurrentHashSet();
+                            dependents.put( dependency, dependencyDependents );
+                        }
+                        dependencyDependents.add( doneKey );
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Read-only view handed to resolvers, records every key looked up and makes sure keys of the update are resolved
+     * first.
+     */
+    private final class Recorder
+        extends AbstractMap<String, String>
+    {
+
+        private final Update update;
+
+        /** Keys looked up while resolving */
+        private final Set<String> dependencies = new HashSet<String>();
+
+        /** True if the resolution can be interrupted to resolve a dependency first */
+        private final boolean interruptible;
+
+        private Recorder( Update update, boolean interruptible )
+        {
+            this.update = update;
+            this.interruptible = interruptible;
+        }
+
+        @Override
+        public String get( Object dependency )
+        {
+            return record( dependency ) ? update.lookUp( (String) dependency ) : null;
+        }
+
+        @Override
+        public boolean containsKey( Object dependency )
+        {
+            return get( dependency ) != null;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet()
+        {
+            Map<String, String> entries = new HashMap<String, String>( values );
+            for ( Entry<String, String> entry : update.resolved.entrySet() )
+            {
+                if ( entry.getValue() == null )
+                {
+                    entries.remove( entry.getKey() );
+                }
+                else
+                {
+                    entries.put( entry.getKey(), entry.getValue() );
+                }
+            }
+            return unmodifiableSet( entries.entrySet() );
+        }
+
+        private boolean record( Object dependency )
+        {
+            if ( !( dependency instanceof String ) )
+            {
+                return false;
+            }
+            String dependencyKey = (String) dependency;
+            dependencies.add( dependencyKey );
+            update.lookedUp.add( dependencyKey );
+            if ( update.pending.contains( dependencyKey ) )
+            {
+                if ( interruptible )
+                {
+                    throw new DependencyFirstException( dependencyKey );
+                }
+                update.resolve( dependencyKey );
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * @param key
+     * @return The given key and the keys depending on it, transitively, dependencies first, along with the keys of
+     *         their cycles
+     */
+    private Set<String> affected( String key )
+    {
+        Set<String> affected = new LinkedHashSet<String>();
+        LinkedList<String> walk = new LinkedList<String>();
+        walk.add( key );
+        while ( !walk.isEmpty() )
+        {
+            String current = walk.removeFirst();
+            if ( affected.add( current ) )
+            {
+                Set<String> currentDependents = dependents.get( current );
+                if ( currentDependents != null )
+                {
+                    walk.addAll( currentDependents );
+                }
+                Set<String> cycle = cycles.get().getCycle( current );
+                if ( cycle != null )
+                {
+                    walk.addAll( cycle );
+                }
+            }
+        }
+        return affected;
+    }
+
+    private int stripe( String key )
+    {
+        int h = key.hashCode();
+        h ^= ( h >>> 16 );
+        return ( h & Integer.MAX_VALUE ) % stripes.length;
+    }
+
+    /**
+     * @return True if stripes of some keys were not locked yet
+     */
+    private boolean addStripes( Set<String> keys, Set<Integer> locked )
+    {
+        boolean added = false;
+        for ( String key : keys )
+        {
+            added |= locked.add( stripe( key ) );
+        }
+        return added;
+    }
+
+    /**
+     * Lock stripes in ascending order, so that concurrent changes don't dead lock.
+     */
+    private void lock( SortedSet<Integer> locked )
+    {
+        for ( Integer stripe : locked )
+        {
+            stripes[stripe].lock();
+        }
+    }
+
+    private void unlock( SortedSet<Integer> locked )
+    {
+        for ( Integer stripe : locked )
+        {
+            if ( stripes[stripe].isHeldByCurrentThread() )
+            {
+                stripes[stripe].unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.text.MessageFormat.format;
+import static java.util.logging.Level.WARNING;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Finds the cycles among the keys of a resolution pass, in two steps: before expanding anything, over the keys looked
+ * up whatever the values, then once resolved, over the keys actually looked up, which finds the cycles made through
+ * dynamic keys or default values. Each step reports the cycles it finds at once, only the ones not known yet.<br>
+ * Cycles found once resolved hold the cycles found before expanding made of the same keys: the keys of a cycle look
+ * each other up whatever the values.
+ *
+ * @since 6.4
+ */
+final class CycleAnalysis
+{
+
+    /**
+     * Keys of the resolution pass, as known before resolving them.
+     */
+    interface Keys
+    {
+
+        /**
+         * @param key
+         * @return True if the given key is waiting to be resolved by the pass
+         */
+        boolean isWaiting( String key );
+
+        /**
+         * Collect the keys looked up by the given key whatever the values, none if its value is plain text.
+         *
+         * @param key
+         * @param lookedUp
+         * @see Appender#collectCertainKeys(Collection, com.google.common.base.Predicate)
+         */
+        void collectCertainKeys( String key, Collection<String> lookedUp );
+
+    }
+
+    private final Keys keys;
+
+    /** Logger reporting the cycles found */
+    private final Logger logger;
+
+    /**
+     * @param keys Keys of the resolution pass
+     * @param logger Logger reporting the cycles found
+     */
+    public CycleAnalysis( Keys keys, Logger logger )
+    {
+        this.keys = keys;
+        this.logger = logger;
+    }
+
+    /**
+     * Find cycles among the given keys waiting to be resolved and the keys they look up whatever the values, before
+     * expanding anything.
+     *
+     * @param roots Keys about to be resolved
+     * @param known Cycles known so far
+     * @return Cycles not known yet
+     */
+    public List<Set<String>> findBeforeExpanding( Collection<String> roots, VariableCycles known )
+    {
+        Map<String, Set<String>> graph = new HashMap<String, Set<String>>();
+        LinkedList<String> pending = new LinkedList<String>( roots );
+        while ( !pending.isEmpty() )
+        {
+            String key = pending.removeFirst();
+            if ( graph.containsKey( key ) || !keys.isWaiting( key ) )
+            {
+                continue;
+            }
+            Set<String> lookedUp = new HashSet<String>();
+            keys.collectCertainKeys( key, lookedUp );
+            graph.put( key, lookedUp );
+            pending.addAll( lookedUp );
+        }
+        return report( VariableCycles.find( graph.keySet(), graph ), known );
+    }
+
+    /**
+     * Find cycles among the given keys just resolved, in a single pass over the graph of their dependencies.
+     *
+     * @param resolved Keys resolved by the pass
+     * @param dependencies Keys looked up while resolving a given key
+     * @param known Cycles known so far
+     * @return Cycles not known yet: their keys, and the keys depending on them, must be resolved again from their
+     *         original value
+     */
+    public List<Set<String>> findOnceResolved( Collection<String> resolved, Map<String, Set<String>> dependencies,
+                                               VariableCycles known )
+    {
+        return report( VariableCycles.find( resolved, dependencies ), known );
+    }
+
+    /**
+     * @param found Cycles found
+     * @param known Cycles known so far
+     * @return Cycles found not known yet, reported at once
+     */
+    private List<Set<String>> report( List<Set<String>> found, VariableCycles known )
+    {
+        List<Set<String>> unknown = new ArrayList<Set<String>>();
+        for ( Set<String> cycle : found )
+        {
+            Set<String> knownCycle = known.getCycle( cycle.iterator().next() );
+            if ( knownCycle == null || !knownCycle.containsAll( cycle ) )
+            {
+                unknown.add( cycle );
+            }
+        }
+        if ( !unknown.isEmpty() && logger.isLoggable( WARNING ) )
+        {
+            logger.warning( format( "Cyclic variables left unresolved: {0}", unknown ) );
+        }
+        return unknown;
+    }
+
+}
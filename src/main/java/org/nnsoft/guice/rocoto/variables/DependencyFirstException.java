@@ -0,0 +1,56 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+/**
+ * Thrown by the configuration of a {@link Resolution} when the key looked up has to be resolved first: the resolution
+ * is resumed once done.<br>
+ * Control flow only, no stack trace is filled in.
+ *
+ * @since 6.4
+ */
+final class DependencyFirstException
+    extends RuntimeException
+{
+
+    private static final long serialVersionUID = 1L;
+
+    /** Key to resolve first */
+    private final String key;
+
+    /**
+     * @param key Key to resolve first
+     */
+    public DependencyFirstException( String key )
+    {
+        this.key = key;
+    }
+
+    /**
+     * @return Key to resolve first
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+        return this;
+    }
+
+}
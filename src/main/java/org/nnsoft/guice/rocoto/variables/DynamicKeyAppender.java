@@ -0,0 +1,62 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import java.util.Map;
+
+/**
+ * Variable whose key has variables itself, e.g. {@code ${pool.${tier}.max}}.
+ *
+ * @since 6.4
+ */
+final class DynamicKeyAppender
+    extends KeyAppender
+{
+
+    /**
+     * @param parser The parser from which this appender has been created.
+     * @param chunk
+     * @param key Appender to resolve configuration key.
+     * @param defaultValue Appender to resolve default value, may be null.
+     */
+    public DynamicKeyAppender( Parser parser, CharSequence chunk, Appender key, Appender defaultValue )
+    {
+        super( parser, chunk, key, defaultValue );
+    }
+
+    public void resume( ResolvingFrame frame, Map<String, String> configuration, ResolvingContext context )
+    {
+        switch ( frame.getStep() )
+        {
+            case LOOK_UP:
+                // Resolve key first, in a buffer reused by later keys
+                StringBuilder keyBuffer = context.borrowKeyBuffer();
+                frame.setKeyBuffer( keyBuffer );
+                frame.setStep( KEY_RESOLVED );
+                context.push( key, keyBuffer );
+                break;
+            case KEY_RESOLVED:
+                int outcome = appendValue( frame, chunk, frame.getKeyBuffer(), parser, configuration, context );
+                context.releaseKeyBuffer();
+                lookedUp( outcome, frame, context );
+                break;
+            default:
+                resolved( frame, context );
+                break;
+        }
+    }
+
+}
@@ -15,23 +15,30 @@
  */
 package org.nnsoft.guice.rocoto.variables;
 
-import java.util.Map;
+import java.util.Collection;
+
+import com.google.common.base.Predicate;
 
 /**
- * Appender which relies on another appender to provides a configuration key, and a fallback appender in case no configuration value is found.
+ * Appender which relies on another appender to provides a configuration key, and a fallback appender in case no configuration value is found.<br>
+ * The parser creates the final subclass suited to the key and default value, so that resolving doesn't check again
+ * what is known when parsing.
  * 
  * @since 6.0
  */
-final class KeyAppender extends AbstractAppender
+abstract class KeyAppender extends AbstractAppender
 {
 	/** Appender which will resolve key (add the possibility for dynamic variable) */
-	private final Appender key;
+	protected final Appender key;
 
 	/** Appender which will resolve default value */
-	private Appender defaultValue;
+	protected final Appender defaultValue;
 
 	/** Parser to use if dynamic resolution is needed */
-	private Parser parser;
+	protected final Parser parser;
+
+	/** Precomputed hash code */
+	private final int hashCode;
 
 	/**
 	 * Constructor for key without default value.
@@ -39,84 +46,141 @@ final class KeyAppender extends AbstractAppender
 	 * @param parser The parser from which this appender has been created.
 	 * @param chunk
 	 * @param key Appender to resolve configuration key.
+	 * @param defaultValue Appender to resolve default value, may be null.
 	 */
-	public KeyAppender( final Parser parser, final String chunk, final Appender key )
+	protected KeyAppender( final Parser parser, final CharSequence chunk, final Appender key, final Appender defaultValue )
 	{
-		this(parser, chunk, key, null);
+		super(chunk);
+		this.parser = parser;
+		this.key = key;
+		this.defaultValue = defaultValue;
+		this.hashCode = (key != null ? key.hashCode() : 0) + (defaultValue != null ? defaultValue.hashCode() * 31 : 0);
 	}
 
 	/**
-	 * Constructor for key without default value.
+	 * Create the appender suited to the given key and default value.
 	 * 
 	 * @param parser The parser from which this appender has been created.
 	 * @param chunk
 	 * @param key Appender to resolve configuration key.
 	 * @param defaultValue Appender to resolve default value, may be null.
+	 * @return Appender of the variable
+	 * @since 6.4
 	 */
-	public KeyAppender( final Parser parser, final String chunk, final Appender key, final Appender defaultValue )
+	static KeyAppender create( Parser parser, CharSequence chunk, Appender key, Appender defaultValue )
 	{
-		super(chunk);
-		this.parser = parser;
-		this.key = key;
-		this.defaultValue = defaultValue;
+		if ( !(key instanceof TextAppender) )
+		{
+			return new DynamicKeyAppender(parser, chunk, key, defaultValue);
+		}
+		if ( defaultValue instanceof TextAppender )
+		{
+			return new LiteralDefaultKeyAppender(parser, chunk, (TextAppender) key, (TextAppender) defaultValue);
+		}
+		return new StaticKeyAppender(parser, chunk, (TextAppender) key, defaultValue);
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * @return Appender resolving the configuration key
 	 */
-	@Override
-	public void doAppend( StringBuilder buffer, Map<String, String> configuration, Tree<Appender> context )
+	Appender getKey()
 	{
+		return key;
+	}
 
-		// Resolve key eventually
-		StringBuilder keyBuffer = new StringBuilder();
-		key.append(keyBuffer, configuration, context);
-		String resolvedKey = keyBuffer.toString();
+	/**
+	 * @return Appender resolving the default value, may be null
+	 */
+	Appender getDefaultValue()
+	{
+		return defaultValue;
+	}
 
-		String resolvedValue = configuration.get(resolvedKey);
-		if ( resolvedValue != null )
+	/**
+	 * Carry on after looking the key up: wait for the value or the default value to be resolved, or be done. Without
+	 * default value, the original chunk is appended: it may be resolved later.
+	 * 
+	 * @param outcome Outcome of the look up
+	 * @param frame
+	 * @param context
+	 */
+	protected final void lookedUp( int outcome, ResolvingFrame frame, ResolvingContext context )
+	{
+		if ( outcome == EXPANDING )
 		{
-			// Resolved value from the configuration may have variable
-			// unresolved
-			Resolver value = parser.parse(resolvedValue);
-			if ( !value.needsResolving() )
-			{
-				buffer.append(resolvedValue);
-
-			}
-			// Process value
-			else
+			frame.setStep(EXPANDED);
+			return;
+		}
+		if ( outcome == MISSING )
+		{
+			if ( defaultValue != null )
 			{
-				if ( !(value instanceof Appender) )
-				{
-					resolvedValue = value.resolve(configuration);
-				} else
-				{
-					StringBuilder resolvedValueBuffer = new StringBuilder();
-					((Appender) value).append(resolvedValueBuffer, configuration, context);
-					resolvedValue = resolvedValueBuffer.toString();
-				}
-
-				buffer.append(resolvedValue);
-				// Update the configuration (not necessary, but can speed up a little when complex dependency between variables)
-				configuration.put(resolvedKey, resolvedValue);
+				frame.setStep(DEFAULTED);
+				context.push(defaultValue, frame.getBuffer());
+				return;
 			}
+			frame.getBuffer().append(chunk);
+		}
+		context.pop();
+	}
+
+	/**
+	 * Done resolving the value or the default value pushed after looking the key up.
+	 * 
+	 * @param frame
+	 * @param context
+	 */
+	protected final void resolved( ResolvingFrame frame, ResolvingContext context )
+	{
+		if ( frame.getStep() == EXPANDED )
+		{
+			expanded(frame, context);
+		}
+		context.pop();
+	}
+
+	@Override
+	public void collectKeys( Collection<String> keys )
+	{
+		if ( key instanceof TextAppender )
+		{
+			keys.add(key.toString());
+		} else
+		{
+			key.collectKeys(keys);
 		}
-		// No value found from configuration, take default one
-		else if ( defaultValue != null )
+		if ( defaultValue != null )
 		{
-			defaultValue.append(buffer, configuration, context);
+			defaultValue.collectKeys(keys);
 		}
-		// Fallback, print original chunk, will let the possibility to resolve
-		// it later
-		else
+	}
+
+	@Override
+	public void collectCertainKeys( Collection<String> keys, Predicate<String> present )
+	{
+		if ( key instanceof TextAppender )
 		{
-			buffer.append(chunk);
+			String name = key.toString();
+			keys.add(name);
+			if ( defaultValue != null && !present.apply(name) )
+			{
+				defaultValue.collectCertainKeys(keys, present);
+			}
+		} else
+		{
+			// Looked up key unknown until resolved: its default value may or may not be used
+			key.collectCertainKeys(keys, present);
 		}
 	}
 
 	@Override
-	public boolean equals( Object obj )
+	public boolean hasDynamicKeys()
+	{
+		return !(key instanceof TextAppender) || defaultValue != null && defaultValue.hasDynamicKeys();
+	}
+
+	@Override
+	public final boolean equals( Object obj )
 	{
 		if ( obj == this )
 		{
@@ -125,22 +189,22 @@ final class KeyAppender extends AbstractAppender
 		if ( obj instanceof KeyAppender )
 		{
 			KeyAppender other = (KeyAppender) obj;
-			return (key != null ? key.equals(other.key) : other.key == null)
+			return hashCode == other.hashCode && (key != null ? key.equals(other.key) : other.key == null)
 					&& (defaultValue != null ? defaultValue.equals(other.defaultValue) : other.defaultValue == null);
 		}
 		return false;
 	}
 
 	@Override
-	public int hashCode()
+	public final int hashCode()
 	{
-		return (key != null ? key.hashCode() : 0) + (defaultValue != null ? defaultValue.hashCode() * 31 : 0);
+		return hashCode;
 	}
 
 	/**
 	 * @return Always true
 	 */
-	public boolean needsResolving()
+	public final boolean needsResolving()
 	{
 		return true;
 	}
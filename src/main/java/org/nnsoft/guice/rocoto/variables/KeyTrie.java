@@ -0,0 +1,672 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map storing its keys in a compressed prefix trie: keys sharing a prefix, like {@code db.primary.pool.max} and
+ * {@code db.replica.pool.max}, share its characters in memory, and keys are not stored as strings at all.<br>
+ * Look ups take O(key length), entries are iterated in lexicographic order of their keys, which are rebuilt on the
+ * fly.<br>
+ * {@link #subMap(String)} views entries of a namespace without copying them. Null values are not supported.<br>
+ * Not thread safe.
+ *
+ * @param <V> Value type
+ * @since 6.4
+ */
+final class KeyTrie<V>
+    extends AbstractMap<String, V>
+{
+
+    private static final char[] NO_LABEL = new char[0];
+
+    private static final class Node<V>
+    {
+
+        /** Characters between the parent node and this one, only the root has none */
+        char[] label;
+
+        /** Children ordered by the first character of their label, null if none */
+        Node<V>[] children;
+
+        /** Value of the key ending at this node, null if none */
+        V value;
+
+        /** Number of values in this subtree */
+        int size;
+
+        Node( char[] label )
+        {
+            this.label = label;
+        }
+
+        /**
+         * @param c
+         * @return Index of the child whose label starts with the given character, or (-(insertion point) - 1)
+         */
+        int indexOf( char c )
+        {
+            if ( children == null )
+            {
+                return -1;
+            }
+            int low = 0;
+            int high = children.length - 1;
+            while ( low <= high )
+            {
+                int middle = ( low + high ) >>> 1;
+                char current = children[middle].label[0];
+                if ( current < c )
+                {
+                    low = middle + 1;
+                }
+                else if ( current > c )
+                {
+                    high = middle - 1;
+                }
+                else
+                {
+                    return middle;
+                }
+            }
+            return -( low + 1 );
+        }
+
+        /**
+         * @param length
+         * @return New array of nodes, generic arrays can't be created without a cast
+         */
+        @SuppressWarnings( { "unchecked", "rawtypes" } )
+        static <V> Node<V>[] newNodes( int length )
+        {
+            return new Node[length];
+        }
+
+        void insert( int index, Node<V> child )
+        {
+            Node<V>[] grown = newNodes( children == null ? 1 : children.length + 1 );
+            if ( children != null )
+            {
+                System.arraycopy( children, 0, grown, 0, index );
+                System.arraycopy( children, index, grown, index + 1, children.length - index );
+            }
+            grown[index] = child;
+            children = grown;
+        }
+
+        void delete( int index )
+        {
+            if ( children.length == 1 )
+            {
+                children = null;
+                return;
+            }
+            Node<V>[] shrunk = newNodes( children.length - 1 );
+            System.arraycopy( children, 0, shrunk, 0, index );
+            System.arraycopy( children, index + 1, shrunk, index, shrunk.length - index );
+            children = shrunk;
+        }
+
+    }
+
+    /**
+     * Node reached by a prefix: the prefix ends within or at the end of its label, at the given offset.
+     */
+    private static final class Position<V>
+    {
+
+        final Node<V> node;
+
+        final int offset;
+
+        Position( Node<V> node, int offset )
+        {
+            this.node = node;
+            this.offset = offset;
+        }
+
+    }
+
+    private final Node<V> root = new Node<V>( NO_LABEL );
+
+    /** Structural modifications count, to fail fast on concurrent modification */
+    private int modCount = 0;
+
+    @Override
+    public int size()
+    {
+        return root.size;
+    }
+
+    @Override
+    public boolean containsKey( Object key )
+    {
+        return get( key ) != null;
+    }
+
+    @Override
+    public V get( Object key )
+    {
+        if ( !( key instanceof String ) )
+        {
+            return null;
+        }
+        Node<V> node = find( "", (String) key );
+        return node == null ? null : node.value;
+    }
+
+    @Override
+    public V put( String key, V value )
+    {
+        checkNotNull( value, "Null values are not supported" );
+        Node<V> node = root;
+        int length = key.length();
+        int i = 0;
+        while ( i < length )
+        {
+            int index = node.indexOf( key.charAt( i ) );
+            if ( index < 0 )
+            {
+                Node<V> leaf = new Node<V>( key.substring( i ).toCharArray() );
+                node.insert( -index - 1, leaf );
+                node = leaf;
+                i = length;
+                break;
+            }
+
+            Node<V> child = node.children[index];
+            char[] label = child.label;
+            int matched = 1;
+            while ( matched < label.length && i + matched < length && label[matched] == key.charAt( i + matched ) )
+            {
+                matched++;
+            }
+            if ( matched < label.length )
+            {
+                // Split the child label: the shared part becomes a node of its own
+                Node<V> shared = new Node<V>( copy( label, 0, matched ) );
+                child.label = copy( label, matched, label.length );
+                shared.insert( 0, child );
+                shared.size = child.size;
+                node.children[index] = shared;
+                child = shared;
+            }
+            node = child;
+            i += matched;
+        }
+
+        V previous = node.value;
+        node.value = value;
+        if ( previous == null )
+        {
+            resize( key, 1 );
+        }
+        return previous;
+    }
+
+    @Override
+    public V remove( Object key )
+    {
+        if ( !( key instanceof String ) )
+        {
+            return null;
+        }
+        String removed = (String) key;
+
+        // Nodes from the root to the removed one, and index of each in its parent
+        List<Node<V>> path = new ArrayList<Node<V>>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        Node<V> node = root;
+        int i = 0;
+        while ( i < removed.length() )
+        {
+            int index = node.indexOf( removed.charAt( i ) );
+            if ( index < 0 || !matches( node.children[index].label, "", removed, i ) )
+            {
+                return null;
+            }
+            path.add( node );
+            indexes.add( index );
+            node = node.children[index];
+            i += node.label.length;
+        }
+        V previous = node.value;
+        if ( previous == null )
+        {
+            return null;
+        }
+
+        node.value = null;
+        resize( removed, -1 );
+
+        // Prune the removed node if it's a leaf, then merge what can be merged with its only child
+        int last = path.size() - 1;
+        if ( node.children == null && last >= 0 )
+        {
+            path.get( last ).delete( indexes.get( last ) );
+            node = path.get( last );
+            last--;
+        }
+        if ( node != root && node.value == null && node.children != null && node.children.length == 1 )
+        {
+            Node<V> child = node.children[0];
+            char[] label = new char[node.label.length + child.label.length];
+            System.arraycopy( node.label, 0, label, 0, node.label.length );
+            System.arraycopy( child.label, 0, label, node.label.length, child.label.length );
+            child.label = label;
+            path.get( last ).children[indexes.get( last )] = child;
+        }
+        modCount++;
+        return previous;
+    }
+
+    @Override
+    public void clear()
+    {
+        root.children = null;
+        root.value = null;
+        root.size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet()
+    {
+        return new EntrySet( "" );
+    }
+
+    /**
+     * Live view of the entries whose key starts with the given prefix, keyed by the rest of their key.<br>
+     * Finding the entries of the prefix takes O(prefix length), nothing is copied.
+     *
+     * @param prefix
+     * @return Entries of the given namespace
+     */
+    public Map<String, V> subMap( String prefix )
+    {
+        return new SubMap( prefix );
+    }
+
+    private final class SubMap
+        extends AbstractMap<String, V>
+    {
+
+        private final String prefix;
+
+        SubMap( String prefix )
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public int size()
+        {
+            Position<V> position = locate( prefix );
+            return position == null ? 0 : position.node.size;
+        }
+
+        @Override
+        public boolean containsKey( Object key )
+        {
+            return get( key ) != null;
+        }
+
+        @Override
+        public V get( Object key )
+        {
+            if ( !( key instanceof String ) )
+            {
+                return null;
+            }
+            Node<V> node = find( prefix, (String) key );
+            return node == null ? null : node.value;
+        }
+
+        @Override
+        public V put( String key, V value )
+        {
+            return KeyTrie.this.put( prefix + key, value );
+        }
+
+        @Override
+        public V remove( Object key )
+        {
+            return key instanceof String ? KeyTrie.this.remove( prefix + key ) : null;
+        }
+
+        @Override
+        public Set<Entry<String, V>> entrySet()
+        {
+            return new EntrySet( prefix );
+        }
+
+        /**
+         * @param subPrefix
+         * @return Entries whose key starts with the given prefix within this namespace
+         */
+        public Map<String, V> subMap( String subPrefix )
+        {
+            return new SubMap( prefix + subPrefix );
+        }
+
+    }
+
+    private final class EntrySet
+        extends AbstractSet<Entry<String, V>>
+    {
+
+        private final String prefix;
+
+        EntrySet( String prefix )
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public int size()
+        {
+            Position<V> position = locate( prefix );
+            return position == null ? 0 : position.node.size;
+        }
+
+        @Override
+        public Iterator<Entry<String, V>> iterator()
+        {
+            return new EntryIterator( prefix );
+        }
+
+    }
+
+    /**
+     * Depth first walk of the subtree of a prefix, children in order: keys come in lexicographic order.
+     */
+    private final class EntryIterator
+        implements Iterator<Entry<String, V>>
+    {
+
+        private final String prefix;
+
+        /** Nodes left to visit, last visited first */
+        private final List<Node<V>> pending = new ArrayList<Node<V>>();
+
+        /** Length of the key of the parent of each pending node */
+        private int[] parentLengths = new int[8];
+
+        /** Offset of the label of the first pending node to start from, past the prefix */
+        private int firstOffset;
+
+        /** Key of the last visited node, relative to the prefix */
+        private final StringBuilder key = new StringBuilder();
+
+        private Node<V> next;
+
+        private String nextKey;
+
+        private String lastKey;
+
+        private int expectedModCount = modCount;
+
+        EntryIterator( String prefix )
+        {
+            this.prefix = prefix;
+            Position<V> position = locate( prefix );
+            if ( position != null )
+            {
+                push( position.node, 0 );
+                firstOffset = position.offset;
+            }
+            advance();
+        }
+
+        private void push( Node<V> node, int parentLength )
+        {
+            if ( pending.size() == parentLengths.length )
+            {
+                int[] grown = new int[parentLengths.length * 2];
+                System.arraycopy( parentLengths, 0, grown, 0, parentLengths.length );
+                parentLengths = grown;
+            }
+            parentLengths[pending.size()] = parentLength;
+            pending.add( node );
+        }
+
+        private void pushChildren( Node<V> node, int fromIndex )
+        {
+            if ( node.children != null )
+            {
+                for ( int i = node.children.length - 1; i >= fromIndex; i-- )
+                {
+                    push( node.children[i], key.length() );
+                }
+            }
+        }
+
+        private void advance()
+        {
+            next = null;
+            while ( next == null && !pending.isEmpty() )
+            {
+                int last = pending.size() - 1;
+                Node<V> node = pending.remove( last );
+                key.setLength( parentLengths[last] );
+                key.append( node.label, firstOffset, node.label.length - firstOffset );
+                firstOffset = 0;
+                pushChildren( node, 0 );
+                if ( node.value != null )
+                {
+                    next = node;
+                }
+            }
+            nextKey = next == null ? null : key.toString();
+        }
+
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        public Entry<String, V> next()
+        {
+            if ( modCount != expectedModCount )
+            {
+                throw new ConcurrentModificationException();
+            }
+            if ( next == null )
+            {
+                throw new NoSuchElementException();
+            }
+            final Node<V> node = next;
+            final String entryKey = nextKey;
+            lastKey = entryKey;
+            advance();
+            return new SimpleEntry<String, V>( entryKey, node.value )
+            {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public V setValue( V value )
+                {
+                    checkNotNull( value, "Null values are not supported" );
+                    node.value = value;
+                    return super.setValue( value );
+                }
+
+            };
+        }
+
+        public void remove()
+        {
+            if ( lastKey == null )
+            {
+                throw new IllegalStateException();
+            }
+            if ( modCount != expectedModCount )
+            {
+                throw new ConcurrentModificationException();
+            }
+            KeyTrie.this.remove( prefix + lastKey );
+            lastKey = null;
+            expectedModCount = modCount;
+            // Nodes may have been merged: walk again down to the next key
+            if ( next != null )
+            {
+                seek( nextKey );
+            }
+        }
+
+        /**
+         * Restore the walk state so that the given key, still present, is the next one.
+         */
+        private void seek( String target )
+        {
+            pending.clear();
+            key.setLength( 0 );
+            Position<V> position = locate( prefix );
+            Node<V> node = position.node;
+            int offset = position.offset;
+            key.append( node.label, offset, node.label.length - offset );
+            int i = key.length();
+            while ( i < target.length() )
+            {
+                int index = node.indexOf( target.charAt( i ) );
+                pushChildren( node, index + 1 );
+                node = node.children[index];
+                key.append( node.label );
+                i = key.length();
+            }
+            next = node;
+            pushChildren( node, 0 );
+        }
+
+    }
+
+    /**
+     * @param prefix
+     * @param key
+     * @return Node of the key made of the given prefix and key, null if none
+     */
+    private Node<V> find( String prefix, String key )
+    {
+        Node<V> node = root;
+        int length = prefix.length() + key.length();
+        int i = 0;
+        while ( i < length )
+        {
+            int index = node.indexOf( charAt( prefix, key, i ) );
+            if ( index < 0 || !matches( node.children[index].label, prefix, key, i ) )
+            {
+                return null;
+            }
+            node = node.children[index];
+            i += node.label.length;
+        }
+        return node;
+    }
+
+    /**
+     * @param prefix
+     * @return Node of the subtree holding all keys starting with the given prefix, null if none
+     */
+    private Position<V> locate( String prefix )
+    {
+        Node<V> node = root;
+        int length = prefix.length();
+        int i = 0;
+        int matched = 0;
+        while ( i < length )
+        {
+            int index = node.indexOf( prefix.charAt( i ) );
+            if ( index < 0 )
+            {
+                return null;
+            }
+            node = node.children[index];
+            char[] label = node.label;
+            matched = 1;
+            while ( matched < label.length && i + matched < length )
+            {
+                if ( label[matched] != prefix.charAt( i + matched ) )
+                {
+                    return null;
+                }
+                matched++;
+            }
+            i += matched;
+        }
+        return new Position<V>( node, matched );
+    }
+
+    /**
+     * Add the given delta to the size of all nodes on the path of the given key.
+     */
+    private void resize( String key, int delta )
+    {
+        Node<V> node = root;
+        node.size += delta;
+        int i = 0;
+        while ( i < key.length() )
+        {
+            node = node.children[node.indexOf( key.charAt( i ) )];
+            node.size += delta;
+            i += node.label.length;
+        }
+        modCount++;
+    }
+
+    private static char charAt( String prefix, String key, int i )
+    {
+        return i < prefix.length() ? prefix.charAt( i ) : key.charAt( i - prefix.length() );
+    }
+
+    /**
+     * @return True if the given label matches the concatenation of prefix and key from the given index
+     */
+    private static boolean matches( char[] label, String prefix, String key, int from )
+    {
+        if ( from + label.length > prefix.length() + key.length() )
+        {
+            return false;
+        }
+        for ( int j = 0; j < label.length; j++ )
+        {
+            if ( label[j] != charAt( prefix, key, from + j ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char[] copy( char[] source, int from, int to )
+    {
+        char[] copy = new char[to - from];
+        System.arraycopy( source, from, copy, 0, copy.length );
+        return copy;
+    }
+
+}
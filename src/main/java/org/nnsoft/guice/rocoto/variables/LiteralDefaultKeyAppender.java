@@ -0,0 +1,66 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import java.util.Map;
+
+/**
+ * Variable whose key and default value are known when parsing, e.g. {@code ${pool.max|10}}.
+ *
+ * @since 6.4
+ */
+final class LiteralDefaultKeyAppender
+    extends KeyAppender
+{
+
+    /** Key looked up by id */
+    private final StaticKey staticKey;
+
+    /** Default value */
+    private final String literalDefault;
+
+    /**
+     * @param parser The parser from which this appender has been created.
+     * @param chunk
+     * @param key Configuration key
+     * @param defaultValue Default value
+     */
+    public LiteralDefaultKeyAppender( Parser parser, CharSequence chunk, TextAppender key, TextAppender defaultValue )
+    {
+        super( parser, chunk, key, defaultValue );
+        this.staticKey = new StaticKey( key.toString() );
+        this.literalDefault = defaultValue.toString();
+    }
+
+    public void resume( ResolvingFrame frame, Map<String, String> configuration, ResolvingContext context )
+    {
+        if ( frame.getStep() == LOOK_UP )
+        {
+            int outcome = appendValue( frame, chunk, staticKey, parser, configuration, context );
+            if ( outcome == MISSING )
+            {
+                frame.getBuffer().append( literalDefault );
+                outcome = APPENDED;
+            }
+            lookedUp( outcome, frame, context );
+        }
+        else
+        {
+            resolved( frame, context );
+        }
+    }
+
+}
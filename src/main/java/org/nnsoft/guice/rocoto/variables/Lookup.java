@@ -0,0 +1,34 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+/**
+ * Source of values looked up lazily by name, when resolving.
+ *
+ * @since 6.4
+ */
+public interface Lookup
+{
+
+    /**
+     * Implementations must be thread safe, they may be called by concurrent resolutions.
+     *
+     * @param name Name of the value, without namespace
+     * @return Value of the given name, null if none
+     */
+    String lookup( String name );
+
+}
@@ -0,0 +1,71 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only configuration view of a {@link Lookup}, falling back to a map for names it has no value for: no entry is
+ * copied, values are looked up when resolvers ask for them.<br>
+ * Entries can't be enumerated.
+ *
+ * @since 6.4
+ */
+final class LookupMap
+    extends AbstractMap<String, String>
+{
+
+    private final Lookup lookup;
+
+    /** Configuration used when the lookup has no value, null if none */
+    private final Map<String, String> fallback;
+
+    /**
+     * @param lookup
+     * @param fallback Configuration used when the lookup has no value, may be null
+     */
+    public LookupMap( Lookup lookup, Map<String, String> fallback )
+    {
+        this.lookup = lookup;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public String get( Object key )
+    {
+        if ( !( key instanceof String ) )
+        {
+            return null;
+        }
+        String value = lookup.lookup( (String) key );
+        return value != null || fallback == null ? value : fallback.get( key );
+    }
+
+    @Override
+    public boolean containsKey( Object key )
+    {
+        return get( key ) != null;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet()
+    {
+        throw new UnsupportedOperationException( "Lookups can't be enumerated" );
+    }
+
+}
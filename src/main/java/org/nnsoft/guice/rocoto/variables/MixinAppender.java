@@ -16,20 +16,32 @@ package org.nnsoft.guice.rocoto.variables;
  *    limitations under the License.
  */
 
-import java.util.ArrayList;
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.base.Predicate;
+
 /**
- * Composition appender which delegates the resolving to an inner list of appenders.
+ * Composition appender which delegates the resolving to an inner list of appenders.<br>
+ * Whether resolving is needed and the hash code are computed once, when created.
  */
 final class MixinAppender
     extends AbstractAppender
 {
 
     /** Inner appenders */
-    private final List<Appender> appenders = new ArrayList<Appender>();
+    private final Appender[] appenders;
+
+    /** True if at least one of the inner appenders need resolving */
+    private final boolean needsResolving;
+
+    /** Precomputed hash code */
+    private final int hashCode;
 
     /**
      * Constructor from array.
@@ -37,9 +49,17 @@ final class MixinAppender
      * @param chunk
      * @param appenders
      */
-    public MixinAppender( String chunk, Appender... appenders )
+    public MixinAppender( CharSequence chunk, Appender... appenders )
     {
-        this( chunk, Arrays.asList( appenders ) );
+        super( chunk );
+        this.appenders = appenders.clone();
+        boolean resolving = false;
+        for ( Appender appender : appenders )
+        {
+            resolving |= appender.needsResolving();
+        }
+        this.needsResolving = resolving;
+        this.hashCode = Arrays.hashCode( appenders );
     }
 
     /**
@@ -48,21 +68,96 @@ final class MixinAppender
      * @param chunk
      * @param appenders
      */
-    public MixinAppender( String chunk, List<Appender> appenders )
+    public MixinAppender( CharSequence chunk, List<Appender> appenders )
     {
-        super( chunk );
-        this.appenders.addAll( appenders );
+        this( chunk, appenders.toArray( new Appender[appenders.size()] ) );
+    }
+
+    /**
+     * Create the appender of the given inner appenders: a single one is returned as is, and literal ones are
+     * collapsed into a single {@link TextAppender}.
+     *
+     * @param chunk
+     * @param appenders
+     * @return Appender of the given chunk
+     * @since 6.4
+     */
+    static Appender create( CharSequence chunk, List<Appender> appenders )
+    {
+        if ( appenders.size() == 1 )
+        {
+            return appenders.get( 0 );
+        }
+        StringBuilder text = new StringBuilder();
+        for ( Appender appender : appenders )
+        {
+            if ( !( appender instanceof TextAppender ) )
+            {
+                return new MixinAppender( chunk, appenders );
+            }
+            text.append( appender.getChunk() );
+        }
+        return new TextAppender( text.toString() );
+    }
+
+    /**
+     * @return Inner appenders
+     */
+    List<Appender> getAppenders()
+    {
+        return unmodifiableList( asList( appenders ) );
+    }
+
+    public void resume( ResolvingFrame frame, Map<String, String> configuration, ResolvingContext context )
+    {
+        StringBuilder buffer = frame.getBuffer();
+        int index = frame.getIndex();
+        // Literal inner appenders are appended in place, unless their visit is traced
+        while ( index < appenders.length && appenders[index] instanceof TextAppender && !context.isTracing() )
+        {
+            buffer.append( appenders[index].getChunk() );
+            index++;
+        }
+        if ( index == appenders.length )
+        {
+            context.pop();
+            return;
+        }
+        frame.setIndex( index + 1 );
+        context.push( appenders[index], buffer );
+    }
+
+    @Override
+    public void collectKeys( Collection<String> keys )
+    {
+        for ( Appender appender : appenders )
+        {
+            appender.collectKeys( keys );
+        }
     }
 
     @Override
-    public void doAppend( StringBuilder buffer, Map<String, String> configuration, Tree<Appender> context )
+    public void collectCertainKeys( Collection<String> keys, Predicate<String> present )
     {
         for ( Appender appender : appenders )
         {
-            appender.append( buffer, configuration, context );
+            appender.collectCertainKeys( keys, present );
         }
     }
 
+    @Override
+    public boolean hasDynamicKeys()
+    {
+        for ( Appender appender : appenders )
+        {
+            if ( appender.hasDynamicKeys() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean equals( Object obj )
     {
@@ -73,10 +168,7 @@ final class MixinAppender
         if ( obj instanceof MixinAppender )
         {
             MixinAppender other = (MixinAppender) obj;
-            if ( appenders.size() == other.appenders.size() )
-            {
-                return appenders.containsAll( other.appenders );
-            }
+            return hashCode == other.hashCode && Arrays.equals( appenders, other.appenders );
         }
         return false;
     }
@@ -84,7 +176,7 @@ final class MixinAppender
     @Override
     public int hashCode()
     {
-        return appenders.hashCode();
+        return hashCode;
     }
 
     /**
@@ -92,14 +184,7 @@ final class MixinAppender
      */
     public boolean needsResolving()
     {
-        for ( Appender appender : appenders )
-        {
-            if ( appender.needsResolving() )
-            {
-                return true;
-            }
-        }
-        return false;
+        return needsResolving;
     }
 
 }
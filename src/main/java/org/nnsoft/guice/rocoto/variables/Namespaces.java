@@ -0,0 +1,158 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.String.format;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Lookups of the keys prefixed by a namespace, such as <tt>${env:HOME}</tt> or <tt>${sys:user.dir}</tt>: values are
+ * queried when a variable referencing them is resolved, so that only referenced values are copied.<br>
+ * Namespaces are consulted for keys missing from the configuration only, entries of the configuration take precedence.
+ * <br>
+ * Immutable.
+ *
+ * @since 6.4
+ */
+public final class Namespaces
+{
+
+    /** Separator of the namespace and the name within a key */
+    public static final char SEPARATOR = ':';
+
+    /** Environment variables */
+    public static final Lookup ENVIRONMENT = new Lookup()
+    {
+
+        public String lookup( String name )
+        {
+            try
+            {
+                return System.getenv( name );
+            }
+            catch ( SecurityException e )
+            {
+                return null;
+            }
+        }
+
+    };
+
+    /** System properties */
+    public static final Lookup SYSTEM_PROPERTIES = new Lookup()
+    {
+
+        public String lookup( String name )
+        {
+            try
+            {
+                return System.getProperty( name );
+            }
+            catch ( SecurityException e )
+            {
+                return null;
+            }
+        }
+
+    };
+
+    /** No namespace at all */
+    public static final Namespaces NONE = new Namespaces( ImmutableMap.<String, Lookup> of() );
+
+    /** Environment variables in namespace <tt>env</tt>, system properties in namespace <tt>sys</tt> */
+    public static final Namespaces DEFAULT = NONE.with( "env", ENVIRONMENT ).with( "sys", SYSTEM_PROPERTIES );
+
+    /** Lookups by namespace */
+    private final ImmutableMap<String, Lookup> lookups;
+
+    private Namespaces( ImmutableMap<String, Lookup> lookups )
+    {
+        this.lookups = lookups;
+    }
+
+    /**
+     * @param namespace Namespace, without separator
+     * @param lookup Lookup of the names in the namespace
+     * @return Copy of these namespaces with the given one, replacing any namespace of the same name
+     */
+    public Namespaces with( String namespace, Lookup lookup )
+    {
+        checkNotNull( namespace, "Parameter 'namespace' must be not null" );
+        checkArgument( namespace.length() > 0 && namespace.indexOf( SEPARATOR ) < 0, "Invalid namespace '%s'",
+                       namespace );
+        checkNotNull( lookup, "Parameter 'lookup' must be not null" );
+
+        ImmutableMap.Builder<String, Lookup> copy = ImmutableMap.builder();
+        for ( Map.Entry<String, Lookup> entry : lookups.entrySet() )
+        {
+            if ( !entry.getKey().equals( namespace ) )
+            {
+                copy.put( entry );
+            }
+        }
+        return new Namespaces( copy.put( namespace, lookup ).build() );
+    }
+
+    /**
+     * @return Names of the namespaces
+     */
+    public Set<String> getNamespaces()
+    {
+        return lookups.keySet();
+    }
+
+    /**
+     * @param key Key, made of a namespace and a name
+     * @return Value of the given key, null if it has no known namespace or its lookup has no value
+     */
+    public String lookup( String key )
+    {
+        if ( lookups.isEmpty() )
+        {
+            return null;
+        }
+        int separator = key.indexOf( SEPARATOR );
+        if ( separator <= 0 )
+        {
+            return null;
+        }
+        Lookup lookup = lookups.get( key.substring( 0, separator ) );
+        return lookup == null ? null : lookup.lookup( key.substring( separator + 1 ) );
+    }
+
+    /**
+     * @param key
+     * @return True if the given key belongs to one of these namespaces, whether its lookup has a value or not
+     */
+    boolean covers( String key )
+    {
+        int separator = key.indexOf( SEPARATOR );
+        return separator > 0 && lookups.containsKey( key.substring( 0, separator ) );
+    }
+
+    @Override
+    public String toString()
+    {
+        return format( "Namespaces%s", lookups.keySet() );
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Value held in a direct buffer, out of the heap, as UTF-8 optionally deflated: a {@link String} is materialized each
+ * time {@link #toString()} is called.<br>
+ * Immutable, the buffer is released when this value is garbage collected.
+ *
+ * @since 6.4
+ */
+final class OffHeapValue
+{
+
+    /** Encoded value, position 0 and limit set to its size */
+    private final ByteBuffer bytes;
+
+    /** Number of UTF-8 bytes, once inflated */
+    private final int inflatedSize;
+
+    private final boolean compressed;
+
+    /** Hash of the value, as computed by {@link String#hashCode()} */
+    private final int hash;
+
+    /**
+     * @param value
+     * @param compressed True to deflate the value
+     */
+    OffHeapValue( String value, boolean compressed )
+    {
+        byte[] encoded = value.getBytes( Charsets.UTF_8 );
+        this.inflatedSize = encoded.length;
+        this.compressed = compressed;
+        this.hash = value.hashCode();
+        if ( compressed )
+        {
+            encoded = deflate( encoded );
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect( encoded.length );
+        buffer.put( encoded );
+        buffer.flip();
+        this.bytes = buffer.asReadOnlyBuffer();
+    }
+
+    private static byte[] deflate( byte[] input )
+    {
+        Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+        try
+        {
+            deflater.setInput( input );
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream( input.length / 4 + 64 );
+            byte[] chunk = new byte[8192];
+            while ( !deflater.finished() )
+            {
+                output.write( chunk, 0, deflater.deflate( chunk ) );
+            }
+            return output.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private byte[] inflate()
+    {
+        byte[] input = new byte[bytes.limit()];
+        bytes.duplicate().get( input );
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput( input );
+            byte[] output = new byte[inflatedSize];
+            int inflated = 0;
+            while ( inflated < inflatedSize )
+            {
+                inflated += inflater.inflate( output, inflated, inflatedSize - inflated );
+            }
+            return output;
+        }
+        catch ( DataFormatException e )
+        {
+            throw new IllegalStateException( "Off-heap value corrupted", e );
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return Number of bytes held out of the heap
+     */
+    public int getStoredSize()
+    {
+        return bytes.limit();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals( Object obj )
+    {
+        if ( this == obj )
+        {
+            return true;
+        }
+        if ( !( obj instanceof OffHeapValue ) )
+        {
+            return false;
+        }
+        OffHeapValue other = (OffHeapValue) obj;
+        return hash == other.hash && compressed == other.compressed && bytes.equals( other.bytes );
+    }
+
+    /**
+     * @return The value, decoded again on each call
+     */
+    @Override
+    public String toString()
+    {
+        if ( compressed )
+        {
+            return new String( inflate(), Charsets.UTF_8 );
+        }
+        return Charsets.UTF_8.decode( bytes.duplicate() ).toString();
+    }
+
+}
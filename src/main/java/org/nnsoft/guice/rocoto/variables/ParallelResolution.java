@@ -0,0 +1,272 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.common.base.Throwables.propagate;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Resolution of independent groups of keys waiting to be resolved on the threads of an executor, groups which turn out
+ * to look up keys of another group are left waiting to be resolved on the calling thread.<br>
+ * Keys are grouped by connected components of the graph of keys they are known to look up, then components are packed
+ * in batches of at least {@link #MIN_BATCH_SIZE} keys, keys keeping their order. Components holding a key resolved
+ * sequentially are left to the calling thread.
+ *
+ * @param <B> Type of the batches of keys
+ * @since 6.4
+ */
+final class ParallelResolution<B>
+{
+
+    /** Minimum number of keys resolved by a thread */
+    static final int MIN_BATCH_SIZE = 256;
+
+    /**
+     * Keys waiting to be resolved, as known before resolving them, and their resolution by batches.
+     *
+     * @param <B> Type of the batches of keys
+     */
+    interface Keys<B>
+    {
+
+        /**
+         * Collect the keys the given key is expected to look up: the keys known when parsing and the ones looked up
+         * last time.
+         *
+         * @param key
+         * @param lookedUp
+         */
+        void collectKeys( String key, Collection<String> lookedUp );
+
+        /**
+         * @param key
+         * @return False if the value of the given key is plain text, any batch may look it up
+         */
+        boolean needsResolving( String key );
+
+        /**
+         * @param key
+         * @return True if the keys looked up by the given key, or the cycles it belongs to, are only known once the keys
+         *         it needs are resolved: its component is resolved on the calling thread
+         */
+        boolean isSequential( String key );
+
+        /**
+         * @param keys
+         * @return Resolution of the given keys, only reading the map: results are kept aside until merged. It throws
+         *         {@link ForeignKeyException} if a key waiting to be resolved by another batch is looked up.
+         */
+        Callable<B> newBatch( Set<String> keys );
+
+        /**
+         * Store the results of the given batch.
+         *
+         * @param batch
+         */
+        void merge( B batch );
+
+    }
+
+    /**
+     * Thrown when a batch looks up a key waiting to be resolved by another batch, its results must be discarded.
+     */
+    static final class ForeignKeyException
+        extends RuntimeException
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            // control flow only
+            return this;
+        }
+
+    }
+
+    private final Keys<B> keys;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param keys Keys waiting to be resolved
+     * @param executor Executor running the batches
+     */
+    public ParallelResolution( Keys<B> keys, ExecutorService executor )
+    {
+        this.keys = keys;
+        this.executor = executor;
+    }
+
+    /**
+     * @param waiting Number of keys waiting to be resolved
+     * @return True if there are enough keys to make at least two batches
+     */
+    public static boolean isWorthwhile( int waiting )
+    {
+        return waiting >= 2 * MIN_BATCH_SIZE;
+    }
+
+    /**
+     * Resolve and merge the batches of the given keys, batches which looked up keys of another batch are discarded.
+     *
+     * @param waiting Keys waiting to be resolved, in order
+     */
+    public void resolve( Collection<String> waiting )
+    {
+        List<Set<String>> partition = partition( waiting );
+        if ( partition.size() < 2 )
+        {
+            return;
+        }
+
+        List<Future<B>> futures = new ArrayList<Future<B>>( partition.size() );
+        for ( Set<String> batchKeys : partition )
+        {
+            futures.add( executor.submit( keys.newBatch( batchKeys ) ) );
+        }
+
+        // Wait for every batch before touching the map, they are reading it
+        List<B> batches = new ArrayList<B>( partition.size() );
+        Throwable failure = null;
+        for ( Future<B> future : futures )
+        {
+            try
+            {
+                batches.add( getUninterruptibly( future ) );
+            }
+            catch ( ExecutionException e )
+            {
+                if ( failure == null && !( e.getCause() instanceof ForeignKeyException ) )
+                {
+                    failure = e.getCause();
+                }
+            }
+        }
+        for ( B batch : batches )
+        {
+            keys.merge( batch );
+        }
+        if ( failure != null )
+        {
+            throw propagate( failure );
+        }
+    }
+
+    /**
+     * @param waiting Keys waiting to be resolved, in order
+     * @return Batches of keys
+     */
+    private List<Set<String>> partition( Collection<String> waiting )
+    {
+        String[] names = waiting.toArray( new String[waiting.size()] );
+        Map<String, Integer> indexes = new HashMap<String, Integer>( names.length * 2 );
+        int[] parents = new int[names.length];
+        for ( int i = 0; i < names.length; i++ )
+        {
+            indexes.put( names[i], i );
+            parents[i] = i;
+        }
+
+        Set<String> lookedUp = new HashSet<String>();
+        boolean[] sequential = new boolean[names.length];
+        for ( int i = 0; i < names.length; i++ )
+        {
+            if ( !keys.needsResolving( names[i] ) )
+            {
+                continue;
+            }
+            lookedUp.clear();
+            keys.collectKeys( names[i], lookedUp );
+            sequential[i] = keys.isSequential( names[i] );
+            for ( String dependency : lookedUp )
+            {
+                Integer j = indexes.get( dependency );
+                // Plain values are already in the map, any batch may look them up
+                if ( j != null && keys.needsResolving( dependency ) )
+                {
+                    parents[find( parents, i )] = find( parents, j );
+                }
+            }
+        }
+
+        int[] sizes = new int[names.length];
+        for ( int i = 0; i < names.length; i++ )
+        {
+            int root = find( parents, i );
+            sizes[root]++;
+            sequential[root] |= sequential[i];
+        }
+
+        List<Set<String>> batches = new ArrayList<Set<String>>();
+        int[] batchOf = new int[names.length];
+        Arrays.fill( batchOf, -1 );
+        int currentSize = 0;
+        for ( int i = 0; i < names.length; i++ )
+        {
+            int root = find( parents, i );
+            if ( sequential[root] )
+            {
+                continue;
+            }
+            if ( batchOf[root] < 0 )
+            {
+                if ( batches.isEmpty() || currentSize >= MIN_BATCH_SIZE )
+                {
+                    batches.add( new LinkedHashSet<String>() );
+                    currentSize = 0;
+                }
+                batchOf[root] = batches.size() - 1;
+                currentSize += sizes[root];
+            }
+            batches.get( batchOf[root] ).add( names[i] );
+        }
+        return batches;
+    }
+
+    private static int find( int[] parents, int i )
+    {
+        int root = i;
+        while ( parents[root] != root )
+        {
+            root = parents[root];
+        }
+        // Path compression
+        while ( parents[i] != root )
+        {
+            int next = parents[i];
+            parents[i] = root;
+            i = next;
+        }
+        return root;
+    }
+
+}
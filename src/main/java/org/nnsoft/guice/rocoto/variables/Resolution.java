@@ -0,0 +1,129 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import java.util.Map;
+
+/**
+ * Resolution of the value of a key which may be interrupted to resolve a key it looks up first, see
+ * {@link DependencyFirstException}, and resumed where it stopped. Callers keep interrupted resolutions on a stack of
+ * their own: however deep dependencies are chained, resolving them first takes constant Java stack depth.<br>
+ * Only appenders carry on from their last frame: configurations must not interrupt other resolvers, see
+ * {@link #isResumable(Resolver)}.
+ *
+ * @since 6.4
+ */
+final class Resolution
+{
+
+    /** Resolved key */
+    private final String key;
+
+    private final Resolver resolver;
+
+    /** Configuration to resolve against, may throw {@link DependencyFirstException} */
+    private final Map<String, String> configuration;
+
+    /** Work done by the resolution pass */
+    private final ResolvingBudget budget;
+
+    /** Buffer of appenders, null for other resolvers */
+    private final StringBuilder buffer;
+
+    /** Context of appenders, holding the frames left to resolve, null for other resolvers */
+    private final ResolvingContext context;
+
+    /**
+     * @param key Resolved key
+     * @param resolver Resolver of the key value
+     * @param configuration Configuration to resolve against, may throw {@link DependencyFirstException}
+     * @param budget Work done by the resolution pass
+     * @param cycles Known cycles, null if the caller doesn't analyse cycles
+     */
+    public Resolution( String key, Resolver resolver, Map<String, String> configuration, ResolvingBudget budget,
+                       VariableCycles cycles )
+    {
+        this.key = key;
+        this.resolver = resolver;
+        this.configuration = configuration;
+        this.budget = budget;
+        if ( isResumable( resolver ) )
+        {
+            AbstractAppender appender = (AbstractAppender) resolver;
+            buffer = new StringBuilder( appender.sizeEstimate() );
+            context = appender.begin( buffer, budget, key, cycles );
+        }
+        else
+        {
+            buffer = null;
+            context = null;
+        }
+    }
+
+    /**
+     * @param resolver
+     * @return True if resolutions of the given resolver can be interrupted and carry on where they stopped, keys looked
+     *         up by other resolvers must be resolved by nested calls
+     */
+    public static boolean isResumable( Resolver resolver )
+    {
+        return resolver instanceof AbstractAppender;
+    }
+
+    /**
+     * @return Resolved key
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return Configuration to resolve against
+     */
+    public Map<String, String> getConfiguration()
+    {
+        return configuration;
+    }
+
+    /**
+     * Carry on resolving.
+     *
+     * @return Resolved value
+     * @throws DependencyFirstException If a key looked up by an appender has to be resolved first, call again once done
+     * @throws ResolvingLimitExceededException
+     */
+    public String resume()
+    {
+        if ( context == null )
+        {
+            String result = resolver.resolve( configuration );
+            budget.produced( key, result.length() );
+            return result;
+        }
+        context.run( configuration, 0 );
+        return AbstractAppender.end( buffer, context );
+    }
+
+    /**
+     * @return True if recursion has been detected, leaving the resolved value partly unexpanded
+     */
+    public boolean isTruncated()
+    {
+        return context != null && context.getRecursions() > 0;
+    }
+
+}
@@ -25,7 +25,9 @@ public interface Resolver
 {
 
     /**
-     * @param data
+     * Implementations must not modify the given configuration, so that it can be shared by concurrent resolutions.
+     *
+     * @param data Configuration to resolve against
      * @return Resolved value
      */
     String resolve( Map<String, String> data );
@@ -0,0 +1,119 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.lang.String.format;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Work done by a resolution pass, checked against {@link ResolvingLimits}.<br>
+ * Thread safe, keys of a pass may be resolved concurrently.
+ *
+ * @since 6.4
+ */
+final class ResolvingBudget
+{
+
+    private final ResolvingLimits limits;
+
+    /** Key look ups so far */
+    private final AtomicLong steps = new AtomicLong();
+
+    /** Characters produced so far */
+    private final AtomicLong produced = new AtomicLong();
+
+    public ResolvingBudget( ResolvingLimits limits )
+    {
+        this.limits = limits;
+    }
+
+    /**
+     * Count a key look up.
+     *
+     * @param context Context looking up the key
+     * @param key Key looked up
+     */
+    public void step( ResolvingContext context, String key )
+    {
+        if ( steps.incrementAndGet() > limits.getMaxSteps() )
+        {
+            throw exceeded( context, key, format( "maximum number of steps (%s)", limits.getMaxSteps() ) );
+        }
+    }
+
+    /**
+     * Count produced characters and check the length of the value being produced.
+     *
+     * @param context Context producing characters
+     * @param key Key whose value has been appended
+     * @param count Characters just produced
+     * @param valueLength Length of the value being produced
+     */
+    public void produced( ResolvingContext context, String key, int count, int valueLength )
+    {
+        String exceeded = produced( count, valueLength );
+        if ( exceeded != null )
+        {
+            throw exceeded( context, key, exceeded );
+        }
+    }
+
+    /**
+     * Count the characters of a value produced at once, by a resolver other than an appender.
+     *
+     * @param key Key whose value has been produced
+     * @param length Length of the value
+     */
+    public void produced( String key, int length )
+    {
+        String exceeded = produced( length, length );
+        if ( exceeded != null )
+        {
+            throw exceeded( key, key, exceeded );
+        }
+    }
+
+    /**
+     * @return Description of the limit exceeded, null if none
+     */
+    private String produced( int count, int valueLength )
+    {
+        long total = produced.addAndGet( count );
+        if ( valueLength > limits.getMaxValueLength() )
+        {
+            return format( "maximum value length (%s)", limits.getMaxValueLength() );
+        }
+        if ( total > limits.getMaxTotalLength() )
+        {
+            return format( "maximum number of produced characters (%s)", limits.getMaxTotalLength() );
+        }
+        return null;
+    }
+
+    private static ResolvingLimitExceededException exceeded( ResolvingContext context, String key, String limit )
+    {
+        String root = context.getRoot() != null ? context.getRoot() : key;
+        return exceeded( root, context.describe( key ), limit );
+    }
+
+    private static ResolvingLimitExceededException exceeded( String root, String chain, String limit )
+    {
+        return new ResolvingLimitExceededException( root, format( "Resolving '%s' exceeded the %s while expanding %s",
+                                                                  root, limit, chain ) );
+    }
+
+}
@@ -0,0 +1,658 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.util.Collections.nCopies;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolving process state: the stack of keys whose value is being expanded, used to detect recursion.<br>
+ * Appenders are resolved on an explicit stack of frames rather than by nested calls: however deep references and
+ * default values are nested, resolving takes constant Java stack depth.<br>
+ * Keys are also kept in an open addressing hash table, membership checks take constant time and entering/leaving a
+ * key doesn't allocate anything once tables are large enough.<br>
+ * When tracing, the tree of visited appenders is recorded as well, for diagnostic purpose only.<br>
+ * Expanded key values are memoized, so that shared sub-expressions are computed once, and work is counted against the
+ * budget of the resolution pass.<br>
+ * Once recursion has been detected, the keys looked up by each expansion are recorded as well: a value left partly
+ * unexpanded because of recursion is reused wherever the same keys it looked up are being expanded, which is when
+ * expanding it again would give the same value.<br>
+ * Tables are only allocated when needed, and buffers for dynamic keys are reused: resolving a value whose variables
+ * reference keys known when parsing only allocates the result.<br>
+ * When streaming, the buffer of the value is flushed to the output between frames: positions in that buffer count
+ * flushed characters, and values partly flushed are not memoized.
+ *
+ * @since 6.4
+ */
+final class ResolvingContext
+{
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final String[] NO_KEYS = new String[0];
+
+    private static final ResolvingFrame[] NO_FRAMES = new ResolvingFrame[0];
+
+    /** Number of characters buffered before flushing them to the output, when streaming */
+    static final int FLUSH_SIZE = 8192;
+
+    /** Buffer flushed to the output, null if not streaming */
+    private StringBuilder streamed;
+
+    /** Number of characters of {@link #streamed} flushed so far */
+    private int flushed = 0;
+
+    /** Frames of the appenders being resolved, innermost last, reused once popped */
+    private ResolvingFrame[] frames = NO_FRAMES;
+
+    /** Number of frames in use */
+    private int frameCount = 0;
+
+    /** Keys being expanded, in order */
+    private String[] stack = NO_KEYS;
+
+    /** Slot of each stacked key in {@link #table} */
+    private int[] slots;
+
+    /** Number of stacked keys */
+    private int depth = 0;
+
+    /** Linear probing hash table of stacked keys, at most half full */
+    private String[] table = NO_KEYS;
+
+    /** Buffers of dynamic keys being resolved, reused by later keys */
+    private StringBuilder[] keyBuffers;
+
+    /** Number of buffers of dynamic keys in use */
+    private int keyBuffersInUse = 0;
+
+    /** True to record the tree of visited appenders */
+    private final boolean tracing;
+
+    /** Current node of visited appenders tree */
+    private Tree<Appender> trace;
+
+    /** Work done by the resolution pass this context belongs to */
+    private final ResolvingBudget budget;
+
+    /** Key whose value is resolved, null if unknown */
+    private final String root;
+
+    /** Expanded values of keys, as long as expanding them didn't detect any recursion */
+    private Map<String, String> memo;
+
+    /** Expanded values of keys which detected recursion, with the keys they looked up */
+    private Map<String, Truncated> truncated;
+
+    /** Keys looked up by the expansion of each stacked key, null for keys stacked before the first recursion */
+    private List<Set<String>> lookedUp;
+
+    /** Number of times recursion has been detected */
+    private int recursions = 0;
+
+    /** Known cycles, null if the caller doesn't analyse cycles */
+    private final VariableCycles cycles;
+
+    /**
+     * @param tracing True to record the tree of visited appenders
+     * @param budget Work done by the resolution pass this context belongs to
+     * @param root Key whose value is resolved, null if unknown
+     * @param cycles Known cycles, null if the caller doesn't analyse cycles
+     */
+    public ResolvingContext( boolean tracing, ResolvingBudget budget, String root, VariableCycles cycles )
+    {
+        this.tracing = tracing;
+        this.budget = budget;
+        this.root = root;
+        this.cycles = cycles;
+    }
+
+    /**
+     * @return Known cycles, null if the caller doesn't analyse cycles
+     */
+    public VariableCycles getCycles()
+    {
+        return cycles;
+    }
+
+    /**
+     * @return Key whose value is resolved, null if unknown
+     */
+    public String getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Count a look up of the given key against the budget.
+     *
+     * @param key
+     */
+    public void step( String key )
+    {
+        budget.step( this, key );
+    }
+
+    /**
+     * Count characters produced by the given key against the budget.
+     *
+     * @param key
+     * @param count Characters just produced
+     * @param valueLength Length of the value being produced
+     */
+    public void produced( String key, int count, int valueLength )
+    {
+        budget.produced( this, key, count, valueLength );
+    }
+
+    /**
+     * @param key
+     * @return Memoized expanded value of the given key, null if none
+     */
+    public String getExpanded( String key )
+    {
+        String expanded = memo == null ? null : memo.get( key );
+        if ( expanded != null || truncated == null )
+        {
+            return expanded;
+        }
+        Truncated value = truncated.get( key );
+        if ( value == null || !value.isValid( key, this ) )
+        {
+            return null;
+        }
+        // Truncated again by the same recursion
+        recursions++;
+        Set<String> current = currentLookedUp();
+        if ( current != null )
+        {
+            current.addAll( value.lookedUp );
+        }
+        return value.expanded;
+    }
+
+    /**
+     * Record a look up of the given key by the innermost expansion, once recursion has been detected.
+     *
+     * @param key
+     */
+    public void lookedUp( String key )
+    {
+        Set<String> current = currentLookedUp();
+        if ( current != null )
+        {
+            current.add( key );
+        }
+    }
+
+    private Set<String> currentLookedUp()
+    {
+        return lookedUp == null || depth == 0 ? null : lookedUp.get( depth - 1 );
+    }
+
+    /**
+     * Memoize the expanded value of the given key.
+     *
+     * @param key
+     * @param expanded
+     */
+    public void setExpanded( String key, String expanded )
+    {
+        if ( memo == null )
+        {
+            memo = new HashMap<String, String>();
+        }
+        memo.put( key, expanded );
+    }
+
+    /**
+     * Memoize the expanded value of the innermost key, which detected recursion: it is valid as long as the keys it
+     * looked up are being expanded the same way.
+     *
+     * @param key Innermost key
+     * @param expanded
+     */
+    public void setTruncated( String key, String expanded )
+    {
+        Set<String> current = currentLookedUp();
+        if ( current == null )
+        {
+            // Stacked before any recursion: keys looked up are unknown
+            return;
+        }
+        Set<String> stacked = new HashSet<String>();
+        for ( String lookedUpKey : current )
+        {
+            if ( isStacked( lookedUpKey ) )
+            {
+                stacked.add( lookedUpKey );
+            }
+        }
+        if ( truncated == null )
+        {
+            truncated = new HashMap<String, Truncated>();
+        }
+        truncated.put( key, new Truncated( expanded, current, stacked ) );
+    }
+
+    /**
+     * Start expanding the value of the given key.
+     *
+     * @param key
+     * @return False if the key value is already being expanded, i.e. recursion has been detected
+     */
+    public boolean enter( String key )
+    {
+        if ( !doEnter( key ) )
+        {
+            if ( lookedUp == null )
+            {
+                lookedUp = new ArrayList<Set<String>>( nCopies( depth, (Set<String>) null ) );
+            }
+            recursions++;
+            return false;
+        }
+        if ( lookedUp != null )
+        {
+            lookedUp.add( new HashSet<String>() );
+        }
+        return true;
+    }
+
+    /**
+     * @param key
+     * @return True if the value of the given key is being expanded
+     */
+    private boolean isStacked( String key )
+    {
+        if ( depth == 0 )
+        {
+            return false;
+        }
+        int mask = table.length - 1;
+        for ( int slot = hash( key ) & mask; table[slot] != null; slot = ( slot + 1 ) & mask )
+        {
+            if ( table[slot].equals( key ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of times recursion has been detected
+     */
+    public int getRecursions()
+    {
+        return recursions;
+    }
+
+    private boolean doEnter( String key )
+    {
+        if ( table.length == 0 )
+        {
+            stack = new String[INITIAL_CAPACITY];
+            slots = new int[INITIAL_CAPACITY];
+            table = new String[INITIAL_CAPACITY * 2];
+        }
+        int mask = table.length - 1;
+        int slot = hash( key ) & mask;
+        for ( String current = table[slot]; current != null; current = table[slot] )
+        {
+            if ( current.equals( key ) )
+            {
+                return false;
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+
+        if ( depth == stack.length )
+        {
+            grow();
+            return doEnter( key );
+        }
+
+        table[slot] = key;
+        stack[depth] = key;
+        slots[depth] = slot;
+        depth++;
+        return true;
+    }
+
+    /**
+     * Done expanding the value of the last entered key.
+     */
+    public void leave()
+    {
+        depth--;
+        // Keys leave in reverse order, nobody probed past the slot of the last one: no need to rehash
+        table[slots[depth]] = null;
+        stack[depth] = null;
+        if ( lookedUp != null )
+        {
+            Set<String> left = lookedUp.remove( depth );
+            Set<String> current = currentLookedUp();
+            if ( left != null && current != null )
+            {
+                current.addAll( left );
+            }
+        }
+    }
+
+    /**
+     * @return Number of keys being expanded
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    private void grow()
+    {
+        String[] keys = stack;
+        stack = new String[keys.length * 2];
+        slots = new int[keys.length * 2];
+        table = new String[keys.length * 4];
+        int size = depth;
+        depth = 0;
+        for ( int i = 0; i < size; i++ )
+        {
+            doEnter( keys[i] );
+        }
+    }
+
+    /**
+     * Push the frame resolving the given appender into the given buffer, it will be resolved before the frames below.
+     *
+     * @param appender
+     * @param buffer
+     */
+    public void push( Appender appender, StringBuilder buffer )
+    {
+        if ( frameCount == frames.length )
+        {
+            ResolvingFrame[] grown = new ResolvingFrame[Math.max( INITIAL_CAPACITY, frames.length * 2 )];
+            System.arraycopy( frames, 0, grown, 0, frameCount );
+            frames = grown;
+        }
+        ResolvingFrame frame = frames[frameCount];
+        if ( frame == null )
+        {
+            frame = new ResolvingFrame();
+            frames[frameCount] = frame;
+        }
+        frame.reset( appender, buffer );
+        frameCount++;
+        if ( tracing )
+        {
+            visit( appender );
+        }
+    }
+
+    /**
+     * Done with the innermost frame.
+     */
+    public void pop()
+    {
+        frameCount--;
+        if ( tracing )
+        {
+            visited();
+        }
+    }
+
+    /**
+     * @return Number of frames in use
+     */
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * Resolve the innermost frames until the given number of frames is left.<br>
+     * An exception thrown by the configuration leaves the frames as they are: when the configuration is ready, calling
+     * again carries on where resolving stopped.
+     *
+     * @param configuration
+     * @param base Number of frames to leave
+     */
+    public void run( Map<String, String> configuration, int base )
+    {
+        while ( frameCount > base )
+        {
+            ResolvingFrame frame = frames[frameCount - 1];
+            frame.getAppender().resume( frame, configuration, this );
+        }
+    }
+
+    /**
+     * Resolve all frames, flushing the given buffer to the given output whenever it holds {@link #FLUSH_SIZE}
+     * characters, and once done.
+     *
+     * @param output
+     * @param buffer Buffer of the bottom frame
+     * @param configuration
+     * @throws IOException If the output fails
+     */
+    public void runTo( Appendable output, StringBuilder buffer, Map<String, String> configuration )
+        throws IOException
+    {
+        streamed = buffer;
+        while ( frameCount > 0 )
+        {
+            ResolvingFrame frame = frames[frameCount - 1];
+            frame.getAppender().resume( frame, configuration, this );
+            if ( isFlushDue( buffer ) )
+            {
+                flush( output, buffer );
+            }
+        }
+        flush( output, buffer );
+    }
+
+    private void flush( Appendable output, StringBuilder buffer )
+        throws IOException
+    {
+        output.append( buffer );
+        flushed += buffer.length();
+        buffer.setLength( 0 );
+        // Don't hold on the capacity grown by a large value
+        if ( buffer.capacity() > 2 * FLUSH_SIZE )
+        {
+            buffer.trimToSize();
+        }
+    }
+
+    /**
+     * Appenders writing many segments in a row should yield when the buffer they write to is due to be flushed.
+     *
+     * @param buffer
+     * @return True if the given buffer is streamed and holds enough characters to be flushed
+     */
+    public boolean isFlushDue( StringBuilder buffer )
+    {
+        return buffer == streamed && buffer.length() >= FLUSH_SIZE;
+    }
+
+    /**
+     * @param buffer
+     * @return Length of the given buffer, characters flushed to the output included
+     */
+    public int lengthOf( StringBuilder buffer )
+    {
+        return buffer == streamed ? flushed + buffer.length() : buffer.length();
+    }
+
+    /**
+     * @param buffer
+     * @param start Position in the buffer, characters flushed to the output included
+     * @return Content of the given buffer from the given position, null if partly flushed to the output
+     */
+    public String contentFrom( StringBuilder buffer, int start )
+    {
+        int offset = buffer == streamed ? flushed : 0;
+        return start < offset ? null : buffer.substring( start - offset );
+    }
+
+    /**
+     * Borrow an empty buffer to resolve a dynamic key into, until {@link #releaseKeyBuffer()}.
+     *
+     * @return Buffer of the innermost dynamic key
+     */
+    public StringBuilder borrowKeyBuffer()
+    {
+        if ( keyBuffers == null )
+        {
+            keyBuffers = new StringBuilder[2];
+        }
+        else if ( keyBuffersInUse == keyBuffers.length )
+        {
+            StringBuilder[] grown = new StringBuilder[keyBuffers.length * 2];
+            System.arraycopy( keyBuffers, 0, grown, 0, keyBuffers.length );
+            keyBuffers = grown;
+        }
+        StringBuilder keyBuffer = keyBuffers[keyBuffersInUse];
+        if ( keyBuffer == null )
+        {
+            keyBuffer = new StringBuilder();
+            keyBuffers[keyBuffersInUse] = keyBuffer;
+        }
+        keyBuffersInUse++;
+        keyBuffer.setLength( 0 );
+        return keyBuffer;
+    }
+
+    /**
+     * Done with the buffer of the innermost dynamic key.
+     */
+    public void releaseKeyBuffer()
+    {
+        keyBuffersInUse--;
+    }
+
+    private static int hash( String key )
+    {
+        int h = key.hashCode();
+        return h ^ ( h >>> 16 );
+    }
+
+    /**
+     * @return True if the tree of visited appenders is recorded
+     */
+    public boolean isTracing()
+    {
+        return tracing;
+    }
+
+    /**
+     * Record a visit to the given appender, if tracing.
+     *
+     * @param appender
+     */
+    public void visit( Appender appender )
+    {
+        trace = trace == null ? new Tree<Appender>( appender ) : trace.addLeaf( appender );
+    }
+
+    /**
+     * Done visiting the last visited appender, if tracing.
+     */
+    public void visited()
+    {
+        if ( !trace.isRoot() )
+        {
+            trace = trace.getParent();
+        }
+    }
+
+    /**
+     * @return Tree of visited appenders, null if not tracing
+     */
+    public Tree<Appender> getTrace()
+    {
+        return trace == null ? null : trace.getRoot();
+    }
+
+    /**
+     * Describe the keys being expanded followed by the given one.
+     *
+     * @param key
+     * @return Chain of keys
+     */
+    public String describe( String key )
+    {
+        StringBuilder chain = new StringBuilder();
+        if ( root != null )
+        {
+            chain.append( root ).append( " -> " );
+        }
+        for ( int i = 0; i < depth; i++ )
+        {
+            chain.append( stack[i] ).append( " -> " );
+        }
+        return chain.append( key ).toString();
+    }
+
+    /**
+     * Expanded value which detected recursion.
+     */
+    private static final class Truncated
+    {
+
+        private final String expanded;
+
+        /** Keys looked up while expanding */
+        private final Set<String> lookedUp;
+
+        /** Keys looked up which were being expanded, the expanded key included */
+        private final Set<String> stacked;
+
+        private Truncated( String expanded, Set<String> lookedUp, Set<String> stacked )
+        {
+            this.expanded = expanded;
+            this.lookedUp = lookedUp;
+            this.stacked = stacked;
+        }
+
+        /**
+         * @param key Expanded key, about to be expanded again
+         * @param context
+         * @return True if the keys looked up which are being expanded are the same: expanding again gives this value
+         */
+        private boolean isValid( String key, ResolvingContext context )
+        {
+            for ( String lookedUpKey : lookedUp )
+            {
+                if ( stacked.contains( lookedUpKey ) != ( lookedUpKey.equals( key ) || context.isStacked( lookedUpKey ) ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+/**
+ * Appender being resolved on the explicit stack of a {@link ResolvingContext}: where its output goes and how far it
+ * got, so that it can carry on once the frames it pushed are done.<br>
+ * Frames are reused once popped, pushing one doesn't allocate anything.
+ *
+ * @since 6.4
+ */
+final class ResolvingFrame
+{
+
+    /** Step of a frame just pushed */
+    static final int START = 0;
+
+    private Appender appender;
+
+    private StringBuilder buffer;
+
+    /** Progress of the appender, meaning is up to the appender */
+    private int step;
+
+    /** Index of the inner appender or segment being resolved */
+    private int index;
+
+    /** Buffer the dynamic key is resolved into, null if none */
+    private StringBuilder keyBuffer;
+
+    /** Key whose value is being expanded */
+    private String expandedKey;
+
+    /** Buffer length when the value started being expanded */
+    private int expandedStart;
+
+    /** Recursions detected when the value started being expanded */
+    private int expandedRecursions;
+
+    /**
+     * Reset this frame to resolve the given appender into the given buffer.
+     *
+     * @param appender
+     * @param buffer
+     */
+    void reset( Appender appender, StringBuilder buffer )
+    {
+        this.appender = appender;
+        this.buffer = buffer;
+        this.step = START;
+        this.index = 0;
+        this.keyBuffer = null;
+        this.expandedKey = null;
+    }
+
+    /**
+     * @return Appender resolved by this frame
+     */
+    public Appender getAppender()
+    {
+        return appender;
+    }
+
+    /**
+     * @return Buffer the appender writes to
+     */
+    public StringBuilder getBuffer()
+    {
+        return buffer;
+    }
+
+    public int getStep()
+    {
+        return step;
+    }
+
+    public void setStep( int step )
+    {
+        this.step = step;
+    }
+
+    public int getIndex()
+    {
+        return index;
+    }
+
+    public void setIndex( int index )
+    {
+        this.index = index;
+    }
+
+    /**
+     * @return Buffer the dynamic key is resolved into, null if none
+     */
+    public StringBuilder getKeyBuffer()
+    {
+        return keyBuffer;
+    }
+
+    public void setKeyBuffer( StringBuilder keyBuffer )
+    {
+        this.keyBuffer = keyBuffer;
+    }
+
+    /**
+     * Record the value of the given key starts being expanded.
+     *
+     * @param key
+     * @param start Buffer length before the value
+     * @param recursions Recursions detected so far
+     */
+    void expanding( String key, int start, int recursions )
+    {
+        this.expandedKey = key;
+        this.expandedStart = start;
+        this.expandedRecursions = recursions;
+    }
+
+    /**
+     * @return Key whose value is being expanded
+     */
+    public String getExpandedKey()
+    {
+        return expandedKey;
+    }
+
+    /**
+     * @return Buffer length when the value started being expanded
+     */
+    public int getExpandedStart()
+    {
+        return expandedStart;
+    }
+
+    /**
+     * @return Recursions detected when the value started being expanded
+     */
+    public int getExpandedRecursions()
+    {
+        return expandedRecursions;
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+/**
+ * Thrown when resolving a variable exceeds one of the {@link ResolvingLimits}.
+ *
+ * @since 6.4
+ */
+public final class ResolvingLimitExceededException
+    extends IllegalArgumentException
+{
+
+    private static final long serialVersionUID = 1L;
+
+    /** Key whose resolution exceeded the limit */
+    private final String key;
+
+    /**
+     * @param key Key whose resolution exceeded the limit
+     * @param message
+     */
+    public ResolvingLimitExceededException( String key, String message )
+    {
+        super( message );
+        this.key = key;
+    }
+
+    /**
+     * @return Key whose resolution exceeded the limit, may be null if resolving a value outside of a variables map
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.lang.String.format;
+
+/**
+ * Limits on the work done by a resolution pass, to protect against values expanding exponentially such as
+ * <tt>a=${b}${b}</tt>, <tt>b=${c}${c}</tt>, etc.
+ *
+ * @since 6.4
+ */
+public final class ResolvingLimits
+{
+
+    /** No limit at all */
+    public static final ResolvingLimits NONE = new ResolvingLimits( Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE );
+
+    /**
+     * Limits of a {@link VariablesMap} unless set: values up to 16M characters, 256M characters and 16M key look ups
+     * by pass, far beyond any sane configuration but stopping values crafted to expand exponentially.
+     */
+    public static final ResolvingLimits DEFAULT = new ResolvingLimits( 1 << 24, 1L << 28, 1L << 24 );
+
+    /** Maximum length of a resolved value */
+    private final int maxValueLength;
+
+    /** Maximum number of characters produced by a pass */
+    private final long maxTotalLength;
+
+    /** Maximum number of key look ups by a pass */
+    private final long maxSteps;
+
+    /**
+     * @param maxValueLength Maximum length of a resolved value
+     * @param maxTotalLength Maximum number of characters produced by a pass, each expanded key value counts
+     * @param maxSteps Maximum number of key look ups by a pass
+     */
+    public ResolvingLimits( int maxValueLength, long maxTotalLength, long maxSteps )
+    {
+        if ( maxValueLength < 0 || maxTotalLength < 0 || maxSteps < 0 )
+        {
+            throw new IllegalArgumentException( "Limits must be positive" );
+        }
+        this.maxValueLength = maxValueLength;
+        this.maxTotalLength = maxTotalLength;
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * @return Maximum length of a resolved value
+     */
+    public int getMaxValueLength()
+    {
+        return maxValueLength;
+    }
+
+    /**
+     * @return Maximum number of characters produced by a pass
+     */
+    public long getMaxTotalLength()
+    {
+        return maxTotalLength;
+    }
+
+    /**
+     * @return Maximum number of key look ups by a pass
+     */
+    public long getMaxSteps()
+    {
+        return maxSteps;
+    }
+
+    @Override
+    public String toString()
+    {
+        return format( "ResolvingLimits[maxValueLength=%s, maxTotalLength=%s, maxSteps=%s]", maxValueLength,
+                       maxTotalLength, maxSteps );
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+/**
+ * Read-only view on a range of a string, characters are not copied until {@link #toString()} is called.
+ *
+ * @since 6.4
+ */
+final class Slice
+    implements CharSequence
+{
+
+    private final String source;
+
+    private final int start;
+
+    private final int end;
+
+    /**
+     * @param source
+     * @param start Inclusive start index
+     * @param end Exclusive end index
+     */
+    public Slice( String source, int start, int end )
+    {
+        if ( start < 0 || end > source.length() || start > end )
+        {
+            throw new IndexOutOfBoundsException( "[" + start + ", " + end + "[ out of [0, " + source.length() + "[" );
+        }
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    public int length()
+    {
+        return end - start;
+    }
+
+    public char charAt( int index )
+    {
+        if ( index < 0 || index >= length() )
+        {
+            throw new IndexOutOfBoundsException( String.valueOf( index ) );
+        }
+        return source.charAt( start + index );
+    }
+
+    public CharSequence subSequence( int from, int to )
+    {
+        if ( from < 0 || to > length() || from > to )
+        {
+            throw new IndexOutOfBoundsException( "[" + from + ", " + to + "[ out of [0, " + length() + "[" );
+        }
+        return new Slice( source, start + from, start + to );
+    }
+
+    @Override
+    public String toString()
+    {
+        return source.substring( start, end );
+    }
+
+}
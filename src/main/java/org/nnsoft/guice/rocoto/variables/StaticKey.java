@@ -0,0 +1,81 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+/**
+ * Key known when parsing, bound to its id in the {@link SymbolTable} of the last configuration it was looked up in:
+ * as long as configurations share that table, look ups are array reads instead of hash look ups.<br>
+ * Appenders may be shared between configurations by a caching parser, the binding is replaced as a whole when the table
+ * changes.
+ *
+ * @since 6.4
+ */
+final class StaticKey
+{
+
+    private static final class Binding
+    {
+
+        final SymbolTable symbols;
+
+        final int id;
+
+        Binding( SymbolTable symbols, int id )
+        {
+            this.symbols = symbols;
+            this.id = id;
+        }
+
+    }
+
+    private final String name;
+
+    /** Immutable, safely published without synchronization thanks to its final fields */
+    private Binding binding;
+
+    public StaticKey( String name )
+    {
+        this.name = name;
+    }
+
+    /**
+     * @param symbols
+     * @return Id of this key in the given table, -1 if not interned yet
+     */
+    public int idIn( SymbolTable symbols )
+    {
+        Binding current = binding;
+        if ( current == null || current.symbols != symbols )
+        {
+            int id = symbols.idOf( name );
+            if ( id < 0 )
+            {
+                // Not interned yet: keys get an id when they are put
+                return -1;
+            }
+            current = new Binding( symbols, id );
+            binding = current;
+        }
+        return current.id;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+}
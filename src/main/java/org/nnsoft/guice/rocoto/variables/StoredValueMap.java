@@ -0,0 +1,213 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Map keeping its values as stored by a {@link ValueStore}, values are decoded when read only.<br>
+ * Not thread safe.
+ *
+ * @since 6.4
+ */
+final class StoredValueMap
+    extends AbstractMap<String, String>
+{
+
+    /** Values as stored, in a {@link SymbolMap} or a {@link KeyTrie} */
+    private final Map<String, Object> stored;
+
+    private final ValueStore store;
+
+    /**
+     * @param stored Empty map to keep values as stored in
+     * @param store
+     */
+    public StoredValueMap( Map<String, Object> stored, ValueStore store )
+    {
+        this.stored = stored;
+        this.store = store;
+    }
+
+    /**
+     * @param id
+     * @return Value of the key of the given id, null if none
+     * @throws ClassCastException if values are not kept in a {@link SymbolMap}
+     */
+    @SuppressWarnings( "unchecked" )
+    public String get( int id )
+    {
+        return ValueStore.load( ( (SymbolMap<Object>) stored ).get( id ) );
+    }
+
+    @Override
+    public String get( Object key )
+    {
+        return ValueStore.load( stored.get( key ) );
+    }
+
+    /**
+     * @param key
+     * @return Value of the given key as stored, null if none
+     */
+    public Object getStored( Object key )
+    {
+        return stored.get( key );
+    }
+
+    /**
+     * Store the given value, unlike {@link #put(String, String)} the previous value is not decoded.
+     *
+     * @param key
+     * @param value Value, or value already stored by the store of this map
+     */
+    public void putStored( String key, Object value )
+    {
+        stored.put( key, value instanceof String ? store.store( (String) value ) : value );
+    }
+
+    /**
+     * @param other Map whose entries are added as stored
+     */
+    public void putAllStored( StoredValueMap other )
+    {
+        stored.putAll( other.stored );
+    }
+
+    @Override
+    public String put( String key, String value )
+    {
+        return ValueStore.load( stored.put( key, store.store( value ) ) );
+    }
+
+    @Override
+    public boolean containsKey( Object key )
+    {
+        return stored.containsKey( key );
+    }
+
+    @Override
+    public String remove( Object key )
+    {
+        return ValueStore.load( stored.remove( key ) );
+    }
+
+    @Override
+    public int size()
+    {
+        return stored.size();
+    }
+
+    @Override
+    public void clear()
+    {
+        stored.clear();
+    }
+
+    @Override
+    public Set<String> keySet()
+    {
+        return stored.keySet();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet()
+    {
+        return new AbstractSet<Entry<String, String>>()
+        {
+
+            @Override
+            public int size()
+            {
+                return stored.size();
+            }
+
+            @Override
+            public Iterator<Entry<String, String>> iterator()
+            {
+                final Iterator<Entry<String, Object>> entries = stored.entrySet().iterator();
+                return new Iterator<Entry<String, String>>()
+                {
+
+                    public boolean hasNext()
+                    {
+                        return entries.hasNext();
+                    }
+
+                    public Entry<String, String> next()
+                    {
+                        final Entry<String, Object> entry = entries.next();
+                        return new Entry<String, String>()
+                        {
+
+                            public String getKey()
+                            {
+                                return entry.getKey();
+                            }
+
+                            public String getValue()
+                            {
+                                return ValueStore.load( entry.getValue() );
+                            }
+
+                            public String setValue( String value )
+                            {
+                                return ValueStore.load( entry.setValue( store.store( value ) ) );
+                            }
+
+                            @Override
+                            public boolean equals( Object obj )
+                            {
+                                if ( obj instanceof Entry<?, ?> )
+                                {
+                                    Entry<?, ?> other = (Entry<?, ?>) obj;
+                                    return getKey().equals( other.getKey() ) && getValue().equals( other.getValue() );
+                                }
+                                return false;
+                            }
+
+                            @Override
+                            public int hashCode()
+                            {
+                                // Hash of stored values is the hash of the value
+                                return getKey().hashCode() ^ entry.getValue().hashCode();
+                            }
+
+                            @Override
+                            public String toString()
+                            {
+                                return getKey() + "=" + getValue();
+                            }
+
+                        };
+                    }
+
+                    public void remove()
+                    {
+                        entries.remove();
+                    }
+
+                };
+            }
+
+        };
+    }
+
+}
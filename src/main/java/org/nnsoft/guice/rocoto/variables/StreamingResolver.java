@@ -0,0 +1,43 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Resolver able to write the resolved value straight to an output, e.g. a {@link java.io.Writer}, rather than
+ * returning it: large values can be streamed to files or sockets without building them in memory.<br>
+ * Resolvers produced by {@link AntStyleParser} implement it.
+ *
+ * @since 6.4
+ */
+public interface StreamingResolver
+    extends Resolver
+{
+
+    /**
+     * Write the same characters as {@link #resolve(Map)} would return to the given output, as they are resolved.
+     * Implementations must not modify the given configuration.
+     *
+     * @param output Output to write the resolved value to
+     * @param data Configuration to resolve against
+     * @throws IOException If the output fails
+     */
+    void resolveTo( Appendable output, Map<String, String> data )
+        throws IOException;
+
+}
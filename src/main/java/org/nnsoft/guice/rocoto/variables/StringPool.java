@@ -0,0 +1,112 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.lang.String.format;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Pool of weakly referenced strings, so that identical keys and values read by many modules or injectors share one
+ * instance: pooled strings are garbage collected once no configuration references them anymore.<br>
+ * Pools are thread safe, a single pool can be shared by all the configurations of a JVM.
+ *
+ * @since 6.4
+ */
+public final class StringPool
+{
+
+    /** Estimated size of a string besides its characters: object and array headers, fields */
+    private static final int STRING_OVERHEAD = 40;
+
+    /** Pool shared by the whole JVM */
+    private static final StringPool SHARED = new StringPool();
+
+    /**
+     * @return Pool shared by the whole JVM
+     */
+    public static StringPool shared()
+    {
+        return SHARED;
+    }
+
+    private final Interner<String> interner = Interners.newWeakInterner();
+
+    /** Number of strings interned */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /** Number of strings replaced by a pooled instance */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /** Estimated bytes of the strings replaced by a pooled instance */
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    /**
+     * @param value String to intern, may be null
+     * @return The pooled instance equal to the given string, the given string itself if none was pooled yet
+     */
+    public String intern( String value )
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+
+        requestCount.incrementAndGet();
+        String pooled = interner.intern( value );
+        if ( pooled != value )
+        {
+            hitCount.incrementAndGet();
+            savedBytes.addAndGet( STRING_OVERHEAD + 2L * value.length() );
+        }
+        return pooled;
+    }
+
+    /**
+     * @return Number of strings interned
+     */
+    public long getRequestCount()
+    {
+        return requestCount.get();
+    }
+
+    /**
+     * @return Number of strings replaced by an equal pooled instance
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * @return Estimated bytes of the strings replaced by an equal pooled instance, which could be reclaimed as a result
+     */
+    public long getSavedBytes()
+    {
+        return savedBytes.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return format( "StringPool[requests=%s, hits=%s, savedBytes=%s]", getRequestCount(), getHitCount(),
+                       getSavedBytes() );
+    }
+
+}
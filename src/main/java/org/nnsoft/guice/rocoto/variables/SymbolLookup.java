@@ -0,0 +1,39 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+/**
+ * Configuration able to look keys up by their id in a {@link SymbolTable}.
+ *
+ * @since 6.4
+ */
+interface SymbolLookup
+{
+
+    /**
+     * @return Table giving the ids of keys, null if keys can't be looked up by id
+     */
+    SymbolTable getSymbols();
+
+    /**
+     * Same as {@link java.util.Map#get(Object)} with the name of the given id.
+     *
+     * @param id
+     * @return Value of the key of the given id, null if none
+     */
+    String get( int id );
+
+}
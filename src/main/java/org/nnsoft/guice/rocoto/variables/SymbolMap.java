@@ -0,0 +1,238 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map storing its values in an array indexed by the ids of their keys in a {@link SymbolTable}, possibly shared with
+ * other maps: knowing the id of a key, {@link #get(int)} is a plain array read.<br>
+ * Entries are iterated in id order. Null values are not supported.<br>
+ * Not thread safe.
+ *
+ * @param <V> Value type
+ * @since 6.4
+ */
+final class SymbolMap<V>
+    extends AbstractMap<String, V>
+{
+
+    private final SymbolTable symbols;
+
+    /** Value of each id, null if none */
+    private Object[] values = new Object[16];
+
+    private int size = 0;
+
+    /** Structural modifications count, to fail fast on concurrent modification */
+    private int modCount = 0;
+
+    /**
+     * @param symbols Table giving the ids of keys
+     */
+    public SymbolMap( SymbolTable symbols )
+    {
+        this.symbols = symbols;
+    }
+
+    /**
+     * @return Table giving the ids of keys
+     */
+    public SymbolTable getSymbols()
+    {
+        return symbols;
+    }
+
+    /**
+     * @param id
+     * @return Value of the key of the given id, null if none
+     */
+    @SuppressWarnings( "unchecked" )
+    public V get( int id )
+    {
+        return id < values.length ? (V) values[id] : null;
+    }
+
+    @Override
+    public V get( Object key )
+    {
+        if ( !( key instanceof String ) )
+        {
+            return null;
+        }
+        int id = symbols.idOf( (String) key );
+        return id < 0 ? null : get( id );
+    }
+
+    @Override
+    public boolean containsKey( Object key )
+    {
+        return get( key ) != null;
+    }
+
+    @Override
+    public V put( String key, V value )
+    {
+        checkNotNull( value, "Null values are not supported" );
+        int id = symbols.intern( key );
+        if ( id >= values.length )
+        {
+            values = Arrays.copyOf( values, Math.max( values.length * 2, symbols.size() ) );
+        }
+        V previous = get( id );
+        values[id] = value;
+        if ( previous == null )
+        {
+            size++;
+            modCount++;
+        }
+        return previous;
+    }
+
+    @Override
+    public V remove( Object key )
+    {
+        if ( !( key instanceof String ) )
+        {
+            return null;
+        }
+        int id = symbols.idOf( (String) key );
+        return id < 0 ? null : removeId( id );
+    }
+
+    private V removeId( int id )
+    {
+        V previous = get( id );
+        if ( previous != null )
+        {
+            values[id] = null;
+            size--;
+            modCount++;
+        }
+        return previous;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public void clear()
+    {
+        Arrays.fill( values, null );
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet()
+    {
+        return new AbstractSet<Entry<String, V>>()
+        {
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+
+            @Override
+            public Iterator<Entry<String, V>> iterator()
+            {
+                return new Iterator<Entry<String, V>>()
+                {
+
+                    private int next = skipEmpty( 0 );
+
+                    private int last = -1;
+
+                    private int expectedModCount = modCount;
+
+                    private int skipEmpty( int id )
+                    {
+                        while ( id < values.length && values[id] == null )
+                        {
+                            id++;
+                        }
+                        return id;
+                    }
+
+                    public boolean hasNext()
+                    {
+                        return next < values.length;
+                    }
+
+                    public Entry<String, V> next()
+                    {
+                        if ( modCount != expectedModCount )
+                        {
+                            throw new ConcurrentModificationException();
+                        }
+                        if ( next >= values.length )
+                        {
+                            throw new NoSuchElementException();
+                        }
+                        final int id = next;
+                        last = id;
+                        next = skipEmpty( id + 1 );
+                        return new SimpleEntry<String, V>( symbols.nameOf( id ), get( id ) )
+                        {
+
+                            private static final long serialVersionUID = 1L;
+
+                            @Override
+                            public V setValue( V value )
+                            {
+                                checkNotNull( value, "Null values are not supported" );
+                                values[id] = value;
+                                return super.setValue( value );
+                            }
+
+                        };
+                    }
+
+                    public void remove()
+                    {
+                        if ( last < 0 )
+                        {
+                            throw new IllegalStateException();
+                        }
+                        if ( modCount != expectedModCount )
+                        {
+                            throw new ConcurrentModificationException();
+                        }
+                        removeId( last );
+                        last = -1;
+                        expectedModCount = modCount;
+                    }
+
+                };
+            }
+
+        };
+    }
+
+}
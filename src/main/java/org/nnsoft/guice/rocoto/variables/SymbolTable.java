@@ -0,0 +1,144 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+/**
+ * Dense integer ids of keys: the first interned key gets 0, the next one 1, and so on. Ids are never reused, so that
+ * values can be stored in arrays indexed by id.<br>
+ * Names are kept in an open addressing hash table of ids.<br>
+ * Only one thread may intern keys, any number of threads may look them up when none does.
+ *
+ * @since 6.4
+ */
+final class SymbolTable
+{
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Name of each id */
+    private String[] names = new String[INITIAL_CAPACITY];
+
+    /** Number of ids */
+    private int size = 0;
+
+    /** Linear probing hash table of ids plus one, 0 for empty slots, at most half full */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    /**
+     * Names are hashed and compared character by character, buffers or slices don't need to be made a string.
+     *
+     * @param name
+     * @return Id of the given name, -1 if not interned
+     */
+    public int idOf( CharSequence name )
+    {
+        int mask = table.length - 1;
+        for ( int slot = hash( name ) & mask; table[slot] != 0; slot = ( slot + 1 ) & mask )
+        {
+            int id = table[slot] - 1;
+            if ( names[id].contentEquals( name ) )
+            {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name
+     * @return Id of the given name, a new one if not interned yet
+     */
+    public int intern( String name )
+    {
+        int mask = table.length - 1;
+        int slot = hash( name ) & mask;
+        for ( ; table[slot] != 0; slot = ( slot + 1 ) & mask )
+        {
+            int id = table[slot] - 1;
+            if ( names[id].equals( name ) )
+            {
+                return id;
+            }
+        }
+
+        if ( size == names.length )
+        {
+            grow();
+            return intern( name );
+        }
+        int id = size++;
+        names[id] = name;
+        table[slot] = id + 1;
+        return id;
+    }
+
+    /**
+     * @param id
+     * @return Name of the given id
+     */
+    public String nameOf( int id )
+    {
+        return names[id];
+    }
+
+    /**
+     * @return Number of ids, the next interned name gets this one
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    private void grow()
+    {
+        String[] grown = new String[names.length * 2];
+        System.arraycopy( names, 0, grown, 0, size );
+        names = grown;
+        table = new int[grown.length * 2];
+        int mask = table.length - 1;
+        for ( int id = 0; id < size; id++ )
+        {
+            int slot = hash( names[id] ) & mask;
+            while ( table[slot] != 0 )
+            {
+                slot = ( slot + 1 ) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * @return Spread {@link String#hashCode()} of the given characters, cached by strings
+     */
+    private static int hash( CharSequence name )
+    {
+        int h;
+        if ( name instanceof String )
+        {
+            h = name.hashCode();
+        }
+        else
+        {
+            h = 0;
+            for ( int i = 0; i < name.length(); i++ )
+            {
+                h = 31 * h + name.charAt( i );
+            }
+        }
+        return h ^ ( h >>> 16 );
+    }
+
+}
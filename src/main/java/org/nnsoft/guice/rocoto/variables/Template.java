@@ -0,0 +1,151 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pattern compiled once and rendered many times, such as URL or message templates rendered on every request, with the
+ * syntax of {@link AntStyleParser}: <tt>${key|default}</tt>.<br>
+ * Values are queried through a {@link Lookup}, such as request scoped values, optionally falling back to a
+ * configuration: rendering copies no entry into a map. Looked up values having variables are resolved as well.<br>
+ * Immutable and thread safe.
+ *
+ * @since 6.4
+ */
+public final class Template
+{
+
+    /** Parser compiling templates into flat programs, values looked up are parsed through its cache */
+    private static final Parser DEFAULT_PARSER = new CachingParser( new AntStyleParser( true ) );
+
+    /**
+     * @param pattern
+     * @return Template compiled from the given pattern
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    public static Template compile( String pattern )
+    {
+        return compile( pattern, DEFAULT_PARSER );
+    }
+
+    /**
+     * @param pattern
+     * @param parser Parser of the pattern and of the values looked up, must produce immutable resolvers
+     * @return Template compiled from the given pattern
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    public static Template compile( String pattern, Parser parser )
+    {
+        checkNotNull( pattern, "Parameter 'pattern' must be not null" );
+        checkNotNull( parser, "Parameter 'parser' must be not null" );
+
+        return new Template( pattern, parser.parse( pattern ) );
+    }
+
+    private final String pattern;
+
+    private final Resolver resolver;
+
+    /** Keys known when compiling */
+    private final Set<String> keys;
+
+    private Template( String pattern, Resolver resolver )
+    {
+        this.pattern = pattern;
+        this.resolver = resolver;
+        Set<String> collected = new LinkedHashSet<String>();
+        if ( resolver instanceof Appender )
+        {
+            ( (Appender) resolver ).collectKeys( collected );
+        }
+        this.keys = Collections.unmodifiableSet( collected );
+    }
+
+    /**
+     * @param lookup Values of the referenced keys
+     * @return Rendered template
+     */
+    public String render( Lookup lookup )
+    {
+        return render( lookup, null );
+    }
+
+    /**
+     * @param lookup Values of the referenced keys
+     * @param fallback Configuration of the keys the lookup has no value for, may be null
+     * @return Rendered template
+     */
+    public String render( Lookup lookup, Map<String, String> fallback )
+    {
+        checkNotNull( lookup, "Parameter 'lookup' must be not null" );
+
+        return resolver.needsResolving() ? resolver.resolve( new LookupMap( lookup, fallback ) ) : pattern;
+    }
+
+    /**
+     * Same as {@link #render(Lookup, Map)}, streaming the rendered template to the given output.
+     *
+     * @param output
+     * @param lookup Values of the referenced keys
+     * @param fallback Configuration of the keys the lookup has no value for, may be null
+     * @throws IOException if the output fails
+     */
+    public void renderTo( Appendable output, Lookup lookup, Map<String, String> fallback )
+        throws IOException
+    {
+        checkNotNull( output, "Parameter 'output' must be not null" );
+        checkNotNull( lookup, "Parameter 'lookup' must be not null" );
+
+        if ( resolver instanceof StreamingResolver )
+        {
+            ( (StreamingResolver) resolver ).resolveTo( output, new LookupMap( lookup, fallback ) );
+        }
+        else
+        {
+            output.append( render( lookup, fallback ) );
+        }
+    }
+
+    /**
+     * @return Keys referenced by the template, except those computed when rendering
+     */
+    public Set<String> getKeys()
+    {
+        return keys;
+    }
+
+    /**
+     * @return Pattern of the template
+     */
+    public String getPattern()
+    {
+        return pattern;
+    }
+
+    @Override
+    public String toString()
+    {
+        return pattern;
+    }
+
+}
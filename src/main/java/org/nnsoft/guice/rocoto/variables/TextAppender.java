@@ -31,10 +31,10 @@ final class TextAppender extends AbstractAppender
         super( chunk );
     }
 
-    @Override
-    protected void doAppend( StringBuilder buffer, Map<String, String> configuration, Tree<Appender> context )
+    public void resume( ResolvingFrame frame, Map<String, String> configuration, ResolvingContext context )
     {
-        buffer.append( chunk );
+        frame.getBuffer().append( chunk );
+        context.pop();
     }
 
     @Override
@@ -0,0 +1,136 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store keeping values above a size threshold out of the heap, in direct buffers optionally compressed, so that large
+ * values such as certificates, embedded documents or scripts neither weigh on the old generation nor on garbage
+ * collections. Smaller values are kept as they are.<br>
+ * Values stored out of the heap are decoded each time they are read: large values read often are better kept on the
+ * heap by raising the threshold.<br>
+ * Stores are thread safe, a single store can be shared by several maps.
+ *
+ * @since 6.4
+ */
+public final class ValueStore
+{
+
+    /** Default minimum length of values stored out of the heap */
+    public static final int DEFAULT_THRESHOLD = 16 * 1024;
+
+    /** Minimum length of values stored out of the heap */
+    private final int threshold;
+
+    /** True to deflate values stored out of the heap */
+    private final boolean compressed;
+
+    /** Number of values stored out of the heap */
+    private final AtomicLong storedCount = new AtomicLong();
+
+    /** Bytes allocated out of the heap */
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    /**
+     * Store values of {@link #DEFAULT_THRESHOLD} characters and more uncompressed.
+     */
+    public ValueStore()
+    {
+        this( DEFAULT_THRESHOLD, false );
+    }
+
+    /**
+     * @param threshold Minimum length of values stored out of the heap
+     * @param compressed True to deflate values stored out of the heap, trading reading time for memory
+     */
+    public ValueStore( int threshold, boolean compressed )
+    {
+        checkArgument( threshold >= 0, "Parameter 'threshold' must be positive" );
+
+        this.threshold = threshold;
+        this.compressed = compressed;
+    }
+
+    /**
+     * @param value Value to store, may be null
+     * @return The given value if below the threshold, otherwise a handle whose {@link Object#toString()} decodes it
+     */
+    Object store( String value )
+    {
+        if ( value == null || value.length() < threshold )
+        {
+            return value;
+        }
+
+        OffHeapValue stored = new OffHeapValue( value, compressed );
+        storedCount.incrementAndGet();
+        storedBytes.addAndGet( stored.getStoredSize() );
+        return stored;
+    }
+
+    /**
+     * @param stored Value returned by {@link #store(String)}, may be null
+     * @return The value stored
+     */
+    static String load( Object stored )
+    {
+        return stored == null ? null : stored.toString();
+    }
+
+    /**
+     * @return Minimum length of values stored out of the heap
+     */
+    public int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * @return True if values stored out of the heap are deflated
+     */
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+
+    /**
+     * @return Number of values stored out of the heap so far
+     */
+    public long getStoredCount()
+    {
+        return storedCount.get();
+    }
+
+    /**
+     * @return Bytes allocated out of the heap so far, including those of values released since
+     */
+    public long getStoredBytes()
+    {
+        return storedBytes.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return format( "ValueStore[threshold=%s, compressed=%s, storedCount=%s, storedBytes=%s]", threshold,
+                       compressed, getStoredCount(), getStoredBytes() );
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups of variables looking each other up, i.e. strongly connected components of the graph of keys looked up while
+ * resolving.<br>
+ * Variables of a cycle are not expanded: references between them are left as is, and other variables get their value
+ * as is.
+ *
+ * @since 6.4
+ */
+public final class VariableCycles
+{
+
+    /** No cycle */
+    public static final VariableCycles NONE = new VariableCycles( new ArrayList<Set<String>>() );
+
+    private final List<Set<String>> cycles;
+
+    /** Cycle of each cyclic key */
+    private final Map<String, Set<String>> cycleByKey = new HashMap<String, Set<String>>();
+
+    private VariableCycles( List<Set<String>> cycles )
+    {
+        this.cycles = cycles;
+        for ( Set<String> cycle : cycles )
+        {
+            for ( String key : cycle )
+            {
+                cycleByKey.put( key, cycle );
+            }
+        }
+    }
+
+    /**
+     * @return Keys of each cycle, in detection order
+     */
+    public List<Set<String>> getCycles()
+    {
+        return unmodifiableList( cycles );
+    }
+
+    /**
+     * @param key
+     * @return Keys of the cycle the given key belongs to, null if not cyclic
+     */
+    public Set<String> getCycle( String key )
+    {
+        return cycleByKey.get( key );
+    }
+
+    /**
+     * @return All cyclic keys
+     */
+    public Set<String> getKeys()
+    {
+        return unmodifiableSet( cycleByKey.keySet() );
+    }
+
+    public boolean isEmpty()
+    {
+        return cycles.isEmpty();
+    }
+
+    /**
+     * @param found Cycles to add
+     * @return These cycles and the given ones
+     */
+    VariableCycles with( List<Set<String>> found )
+    {
+        if ( found.isEmpty() )
+        {
+            return this;
+        }
+        List<Set<String>> union = new ArrayList<Set<String>>( cycles );
+        union.addAll( found );
+        return new VariableCycles( union );
+    }
+
+    /**
+     * @param key
+     * @return These cycles but the one of the given key
+     */
+    VariableCycles without( String key )
+    {
+        Set<String> cycle = cycleByKey.get( key );
+        if ( cycle == null )
+        {
+            return this;
+        }
+        List<Set<String>> remaining = new ArrayList<Set<String>>( cycles );
+        remaining.remove( cycle );
+        return new VariableCycles( remaining );
+    }
+
+    @Override
+    public String toString()
+    {
+        return cycles.toString();
+    }
+
+    /**
+     * Find cycles among the given keys with Tarjan's strongly connected components algorithm, in O(keys + edges).<br>
+     * Keys are walked with an explicit stack, long chains of variables don't overflow the call stack.
+     *
+     * @param keys Keys to analyse, edges to other keys are ignored
+     * @param graph Keys looked up by each key
+     * @return Cycles found
+     */
+    static List<Set<String>> find( Collection<String> keys, Map<String, Set<String>> graph )
+    {
+        if ( keys.isEmpty() )
+        {
+            return emptyList();
+        }
+
+        Map<String, Integer> indexes = new HashMap<String, Integer>( keys.size() * 2 );
+        for ( String key : keys )
+        {
+            if ( !indexes.containsKey( key ) )
+            {
+                indexes.put( key, indexes.size() );
+            }
+        }
+        String[] names = new String[indexes.size()];
+        for ( Map.Entry<String, Integer> index : indexes.entrySet() )
+        {
+            names[index.getValue()] = index.getKey();
+        }
+
+        int size = names.length;
+        // Visit order of each key, 0 if not visited yet
+        int[] order = new int[size];
+        int[] lowLink = new int[size];
+        boolean[] onStack = new boolean[size];
+        int[] component = new int[size];
+        int componentSize = 0;
+        // Walk stack: key and iterator on its edges
+        int[] walk = new int[size];
+        List<Iterator<String>> edges = new ArrayList<Iterator<String>>( size );
+        for ( int i = 0; i < size; i++ )
+        {
+            edges.add( null );
+        }
+        int visited = 0;
+
+        List<Set<String>> cycles = new ArrayList<Set<String>>();
+        for ( int start = 0; start < size; start++ )
+        {
+            if ( order[start] != 0 )
+            {
+                continue;
+            }
+
+            int depth = 0;
+            walk[depth++] = start;
+            order[start] = lowLink[start] = ++visited;
+            component[componentSize++] = start;
+            onStack[start] = true;
+            edges.set( start, dependencies( graph, names[start] ) );
+
+            while ( depth > 0 )
+            {
+                int current = walk[depth - 1];
+                Iterator<String> currentEdges = edges.get( current );
+                if ( currentEdges.hasNext() )
+                {
+                    Integer next = indexes.get( currentEdges.next() );
+                    if ( next == null )
+                    {
+                        continue;
+                    }
+                    if ( order[next] == 0 )
+                    {
+                        walk[depth++] = next;
+                        order[next] = lowLink[next] = ++visited;
+                        component[componentSize++] = next;
+                        onStack[next] = true;
+                        edges.set( next, dependencies( graph, names[next] ) );
+                    }
+                    else if ( onStack[next] )
+                    {
+                        lowLink[current] = Math.min( lowLink[current], order[next] );
+                    }
+                    continue;
+                }
+
+                // All edges walked
+                depth--;
+                edges.set( current, null );
+                if ( depth > 0 )
+                {
+                    int parent = walk[depth - 1];
+                    lowLink[parent] = Math.min( lowLink[parent], lowLink[current] );
+                }
+                if ( lowLink[current] == order[current] )
+                {
+                    Set<String> cycle = new LinkedHashSet<String>();
+                    int member;
+                    do
+                    {
+                        member = component[--componentSize];
+                        onStack[member] = false;
+                        cycle.add( names[member] );
+                    }
+                    while ( member != current );
+
+                    // A single key is a cycle only if it looks itself up
+                    Set<String> self = graph.get( names[current] );
+                    if ( cycle.size() > 1 || self != null && self.contains( names[current] ) )
+                    {
+                        cycles.add( cycle );
+                    }
+                }
+            }
+        }
+        return cycles;
+    }
+
+    private static Iterator<String> dependencies( Map<String, Set<String>> graph, String key )
+    {
+        Set<String> dependencies = graph.get( key );
+        if ( dependencies == null )
+        {
+            List<String> none = emptyList();
+            return none.iterator();
+        }
+        return dependencies.iterator();
+    }
+
+}
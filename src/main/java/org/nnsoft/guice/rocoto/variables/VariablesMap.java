@@ -15,38 +15,72 @@
  */
 package org.nnsoft.guice.rocoto.variables;
 
+import static com.google.common.base.Preconditions.checkState;
 import static java.text.MessageFormat.format;
+import static java.util.Collections.singleton;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.logging.Logger.getLogger;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+import com.google.common.base.Predicate;
 
 /**
+ * Map resolving variables in its values against its own entries.<br>
+ * Keys looked up while resolving a value are recorded, so that a change only re-resolves the keys depending on it,
+ * dependencies first.<br>
+ * Given an executor, independent groups of keys are resolved in parallel. In lazy mode, keys are resolved on first read.<br>
+ * Cycles among the keys resolved by a pass are found at once and reported in a single warning, see
+ * {@link #getCycles()}: cycles made of keys looked up whatever the values are found before expanding anything.<br>
+ * Keys get dense ids and values are stored in arrays indexed by id, unless keys are stored in a prefix trie sharing
+ * common prefixes in memory, see {@link #setPrefixTrie(boolean)}.<br>
+ * Not thread safe, but readers on other threads can use the immutable {@link VariablesSnapshot} published after each
+ * change.
+ * 
  * @since 6.0
  */
 public final class VariablesMap implements Map<String, String>
 {
+	private static final Logger logger = getLogger(VariablesMap.class.getName());
+
 	/**
 	 * Object representing a variable value
 	 */
-	private static class VariableValue implements Resolver
+	private static class VariableValue
 	{
-		/** Original final value */
-		private final String original;
-		/** Current resolver for current parser */
-		private final Resolver resolver;
+		/** Original final value, as stored by the value store of the map */
+		private final Object original;
+		/** Current resolver for current parser, null if dropped: parsed again from the original when needed */
+		private Resolver resolver;
+		/** True if the resolver needs resolving */
+		private final boolean needsResolving;
 
 		/**
 		 * Default constructor
 		 * 
 		 * @param original
 		 */
-		private VariableValue( String original, Resolver resolver )
+		private VariableValue( Object original, Resolver resolver )
 		{
 			this.original = original;
 			this.resolver = resolver;
+			this.needsResolving = resolver.needsResolving();
 		}
 
 		@Override
@@ -57,41 +91,582 @@ public final class VariablesMap implements Map<String, String>
 
 		public String getOriginal()
 		{
-			return original;
+			return ValueStore.load(original);
+		}
+
+		/**
+		 * @param parser Parser of the map, parsing the original value again if the resolver has been dropped
+		 * @return Resolver of the original value
+		 */
+		public Resolver getResolver( Parser parser )
+		{
+			if ( resolver == null )
+			{
+				resolver = parser.parse(getOriginal());
+			}
+			return resolver;
 		}
 
-		public String resolve( Map<String, String> data )
+		/**
+		 * Drop the resolver until needed again.
+		 */
+		public void dropResolver()
 		{
-			return resolver.resolve(data);
+			resolver = null;
 		}
 
 		public boolean needsResolving()
 		{
-			return resolver.needsResolving();
+			return needsResolving;
+		}
+
+		/**
+		 * Collect the keys known to be looked up by the resolver, dynamic keys and custom resolvers are unknown.
+		 * 
+		 * @param keys
+		 * @param parser Parser of the map, parsing the original value again if the resolver has been dropped
+		 */
+		public void collectKeys( Collection<String> keys, Parser parser )
+		{
+			Resolver current = getResolver(parser);
+			if ( current instanceof Appender )
+			{
+				((Appender) current).collectKeys(keys);
+			}
+		}
+
+		/**
+		 * Collect the keys looked up by the resolver whatever the values.
+		 * 
+		 * @param keys
+		 * @param present Tells whether a key may have a value
+		 * @param parser Parser of the map, parsing the original value again if the resolver has been dropped
+		 * @see Appender#collectCertainKeys(Collection, Predicate)
+		 */
+		public void collectCertainKeys( Collection<String> keys, Predicate<String> present, Parser parser )
+		{
+			Resolver current = getResolver(parser);
+			if ( current instanceof Appender )
+			{
+				((Appender) current).collectCertainKeys(keys, present);
+			}
+		}
+
+		/**
+		 * @param parser Parser of the map, parsing the original value again if the resolver has been dropped
+		 * @return True if the resolver may look up keys unknown to {@link #collectKeys(Collection, Parser)}: dynamic
+		 *         keys, or any key for custom resolvers
+		 */
+		public boolean hasDynamicKeys( Parser parser )
+		{
+			Resolver current = getResolver(parser);
+			return !(current instanceof Appender) || ((Appender) current).hasDynamicKeys();
+		}
+	}
+
+	/**
+	 * Bulk loader: entries are parsed as they come, and all resolved in a single pass when the map is built.
+	 * 
+	 * @since 6.4
+	 */
+	public static final class Builder
+	{
+		/** Map being loaded, null once built */
+		private VariablesMap variablesMap;
+
+		/** Cycles found when the map was built */
+		private VariableCycles cycles = VariableCycles.NONE;
+
+		public Builder( Parser parser )
+		{
+			variablesMap = new VariablesMap(parser);
+		}
+
+		public Builder()
+		{
+			this(new CachingParser(new AntStyleParser()));
+		}
+
+		public Builder put( String key, String value )
+		{
+			checkNotBuilt().putValue(key, value);
+			return this;
+		}
+
+		public Builder putAll( Map<? extends String, ? extends String> t )
+		{
+			VariablesMap loading = checkNotBuilt();
+			for ( Entry<? extends String, ? extends String> entry : t.entrySet() )
+			{
+				loading.putValue(entry.getKey(), entry.getValue());
+			}
+			return this;
+		}
+
+		public Builder putAll( Properties properties )
+		{
+			VariablesMap loading = checkNotBuilt();
+			for ( Entry<Object, Object> entry : properties.entrySet() )
+			{
+				loading.putValue(entry.getKey().toString(), entry.getValue().toString());
+			}
+			return this;
+		}
+
+		/**
+		 * @param limits Limits of the resolution pass run when the map is built
+		 */
+		public Builder withLimits( ResolvingLimits limits )
+		{
+			checkNotBuilt().setLimits(limits);
+			return this;
+		}
+
+		/**
+		 * @param executor Executor resolving independent groups of variables in parallel when the map is built
+		 */
+		public Builder withExecutor( ExecutorService executor )
+		{
+			checkNotBuilt().setExecutor(executor);
+			return this;
+		}
+
+		/**
+		 * Store keys in a prefix trie.
+		 * 
+		 * @see VariablesMap#setPrefixTrie(boolean)
+		 */
+		public Builder withPrefixTrie()
+		{
+			checkNotBuilt().setPrefixTrie(true);
+			return this;
+		}
+
+		/**
+		 * Store values compactly.
+		 * 
+		 * @see VariablesMap#setCompact(boolean)
+		 */
+		public Builder withCompactStorage()
+		{
+			checkNotBuilt().setCompact(true);
+			return this;
+		}
+
+		/**
+		 * Share identical keys and values through the given pool.
+		 * 
+		 * @see VariablesMap#setStringPool(StringPool)
+		 */
+		public Builder withStringPool( StringPool stringPool )
+		{
+			checkNotBuilt().setStringPool(stringPool);
+			return this;
+		}
+
+		/**
+		 * Keep large values out of the heap.
+		 * 
+		 * @see VariablesMap#setValueStore(ValueStore)
+		 */
+		public Builder withValueStore( ValueStore valueStore )
+		{
+			checkNotBuilt().setValueStore(valueStore);
+			return this;
+		}
+
+		/**
+		 * Look keys missing from the map up in the given namespaces.
+		 * 
+		 * @see VariablesMap#setNamespaces(Namespaces)
+		 */
+		public Builder withNamespaces( Namespaces namespaces )
+		{
+			checkNotBuilt().setNamespaces(namespaces);
+			return this;
+		}
+
+		/**
+		 * Resolve all loaded entries, this builder can't be used anymore afterwards.
+		 * 
+		 * @return Immutable map of resolved entries
+		 */
+		public Map<String, String> build()
+		{
+			VariablesMap loaded = checkNotBuilt();
+			variablesMap = null;
+			loaded.resolveVariables();
+			cycles = loaded.cycles;
+			return unmodifiableMap(loaded.snapshot);
+		}
+
+		/**
+		 * @return Cycles found when the map was built, none before
+		 */
+		public VariableCycles getCycles()
+		{
+			return cycles;
+		}
+
+		private VariablesMap checkNotBuilt()
+		{
+			checkState(variablesMap != null, "Variables map already built");
+			return variablesMap;
 		}
 	}
 
 	/** Parser to use for variables resolving */
 	private Parser parser;
 
+	/** Limits of each resolution pass */
+	private ResolvingLimits limits = ResolvingLimits.DEFAULT;
+
+	/** True to resolve keys when they are read only */
+	private boolean lazy = false;
+
+	/** Executor resolving independent groups of variables in parallel, null to resolve on the calling thread */
+	private ExecutorService executor;
+
+	/** True to store literal values once, without resolver, and drop resolvers of resolved values */
+	private boolean compact = false;
+
+	/** Pool sharing identical keys and values, null if none */
+	private StringPool stringPool;
+
+	/** Store keeping large values out of the heap, null to keep all values on the heap */
+	private ValueStore valueStore;
+
+	/** Namespaces of the keys looked up lazily when missing from the map */
+	private Namespaces namespaces = Namespaces.NONE;
+
 	public VariablesMap( Parser parser )
 	{
 		setParser(parser);
 	}
 
+	/**
+	 * Create a map using a {@link CachingParser} on top of an {@link AntStyleParser}.
+	 */
 	public VariablesMap()
 	{
-		this(new AntStyleParser());
+		this(new CachingParser(new AntStyleParser()));
+	}
+
+	/**
+	 * Read-only view of the snapshot handed to resolvers, records every key looked up while resolving a variable and
+	 * makes sure the looked up key is resolved first.<br>
+	 * Keys known when parsing are looked up by id, unless keys are stored in a prefix trie.
+	 */
+	private class DependencyRecorder extends AbstractMap<String, String> implements SymbolLookup
+	{
+		/** Batch the resolved variable belongs to */
+		private final Batch batch;
+
+		/** Keys looked up while resolving */
+		private final Set<String> dependencies = new HashSet<String>();
+
+		/** True if the resolution can be interrupted to resolve a dependency first */
+		private final boolean interruptible;
+
+		private DependencyRecorder( Batch batch, boolean interruptible )
+		{
+			this.batch = batch;
+			this.interruptible = interruptible;
+		}
+
+		@Override
+		public String get( Object dependency )
+		{
+			record(dependency);
+			if ( batch.resolved.containsKey(dependency) )
+			{
+				return batch.resolved.get(dependency);
+			}
+			String value = snapshot.get(dependency);
+			return value != null || !(dependency instanceof String) ? value : namespaces.lookup((String) dependency);
+		}
+
+		public SymbolTable getSymbols()
+		{
+			return symbols;
+		}
+
+		public String get( int id )
+		{
+			String dependency = symbols.nameOf(id);
+			record(dependency);
+			String resolved = batch.resolved.get(dependency);
+			if ( resolved != null )
+			{
+				return resolved;
+			}
+			String value = snapshot instanceof StoredValueMap ? ((StoredValueMap) snapshot).get(id)
+					: ((SymbolMap<String>) snapshot).get(id);
+			return value != null ? value : namespaces.lookup(dependency);
+		}
+
+		@Override
+		public boolean containsKey( Object dependency )
+		{
+			record(dependency);
+			return batch.resolved.containsKey(dependency) || snapshot.containsKey(dependency);
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet()
+		{
+			if ( batch.resolved.isEmpty() )
+			{
+				return unmodifiableMap(snapshot).entrySet();
+			}
+			Map<String, String> entries = new HashMap<String, String>(snapshot);
+			entries.putAll(batch.resolved);
+			return unmodifiableMap(entries).entrySet();
+		}
+
+		private void record( Object dependency )
+		{
+			if ( dependency instanceof String )
+			{
+				String dependencyKey = (String) dependency;
+				dependencies.add(dependencyKey);
+				// Resolve in topological order: a dependency still waiting for resolution is resolved first
+				if ( batch.pending.contains(dependencyKey) )
+				{
+					if ( interruptible )
+					{
+						throw new DependencyFirstException(dependencyKey);
+					}
+					batch.resolve(dependencyKey);
+				} else if ( !batch.keys.contains(dependencyKey) && dirty.contains(dependencyKey) && needsResolving(dependencyKey) )
+				{
+					throw new ParallelResolution.ForeignKeyException();
+				}
+			}
+		}
 	}
 
-	private final Map<String, VariableValue> resolvers = new HashMap<String, VariableValue>();
+	/**
+	 * Keys resolved together on one thread, dependencies first.<br>
+	 * The map is only read meanwhile: resolved values and looked up keys are kept aside until merged.
+	 */
+	private final class Batch implements Callable<Batch>
+	{
+		/** Keys of this batch */
+		private final Set<String> keys;
+
+		/** Keys of this batch waiting to be resolved, may be the set of keys of the map waiting to be resolved */
+		private final Set<String> pending;
+
+		/** Keys of this batch resolved so far, in order */
+		private final List<String> done = new ArrayList<String>();
+
+		private final Map<String, String> resolved = new HashMap<String, String>();
 
-	private final Map<String, String> snapshot = new HashMap<String, String>();
+		/**
+		 * Values left partly unexpanded by recursion, hidden from the keys of this batch until merged: keys of a cycle
+		 * found once resolved would otherwise expand them again, growing them at each key of the cycle
+		 */
+		private final Map<String, String> truncated = new HashMap<String, String>();
+
+		/** Keys looked up while resolving a given key */
+		private final Map<String, Set<String>> recorded = new HashMap<String, Set<String>>();
+
+		/** Work done by the resolution pass */
+		private final ResolvingBudget budget;
+
+		private Batch( Set<String> keys, Set<String> pending, ResolvingBudget budget )
+		{
+			this.keys = keys;
+			this.pending = pending;
+			this.budget = budget;
+		}
+
+		public Batch call()
+		{
+			while (!pending.isEmpty())
+			{
+				resolve(pending.iterator().next());
+			}
+			return this;
+		}
+
+		/**
+		 * Resolve the given key and record what it depends on.<br>
+		 * Keys it looks up while waiting to be resolved are resolved first, interrupted resolutions are kept on a stack.<br>
+		 * If the resolution pass exceeds its limits, the keys being resolved keep their original value.
+		 * 
+		 * @param key
+		 * @throws ResolvingLimitExceededException
+		 */
+		private void resolve( String key )
+		{
+			List<Resolution> stack = new ArrayList<Resolution>();
+			push(stack, key);
+			try
+			{
+				while (!stack.isEmpty())
+				{
+					Resolution resolution = stack.get(stack.size() - 1);
+					String value;
+					try
+					{
+						value = resolution.resume();
+					} catch (DependencyFirstException e)
+					{
+						push(stack, e.getKey());
+						continue;
+					}
+					stack.remove(stack.size() - 1);
+					(resolution.isTruncated() ? truncated : resolved).put(resolution.getKey(), value);
+					recorded.put(resolution.getKey(), ((DependencyRecorder) resolution.getConfiguration()).dependencies);
+				}
+			} catch (ResolvingLimitExceededException e)
+			{
+				for ( int i = stack.size() - 1; i >= 0; i-- )
+				{
+					String stacked = stack.get(i).getKey();
+					resolved.put(stacked, resolvers.get(stacked).getOriginal());
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * Start resolving the given key, if needed.
+		 * 
+		 * @param stack Resolutions in progress
+		 * @param key
+		 */
+		private void push( List<Resolution> stack, String key )
+		{
+			pending.remove(key);
+			done.add(key);
+
+			VariableValue value = resolvers.get(key);
+			if ( value != null && value.needsResolving() )
+			{
+				Resolver resolver = value.getResolver(parser);
+				DependencyRecorder recorder = new DependencyRecorder(this, Resolution.isResumable(resolver));
+				stack.add(new Resolution(key, resolver, recorder, budget, cycles));
+			}
+		}
+	}
+
+	/**
+	 * Keys waiting to be resolved, walked for cycles before expanding anything.
+	 */
+	private final class WaitingKeys implements CycleAnalysis.Keys, Predicate<String>
+	{
+		public boolean isWaiting( String key )
+		{
+			return dirty.contains(key);
+		}
+
+		public void collectCertainKeys( String key, Collection<String> lookedUp )
+		{
+			VariableValue value = resolvers.get(key);
+			if ( value != null && value.needsResolving() )
+			{
+				value.collectCertainKeys(lookedUp, this, parser);
+			}
+		}
+
+		/**
+		 * @return True if the given key may have a value
+		 */
+		public boolean apply( String key )
+		{
+			return snapshot.containsKey(key) || namespaces.covers(key);
+		}
+	}
+
+	/**
+	 * Keys waiting to be resolved by a pass, in batches sharing the budget of the pass.
+	 */
+	private final class ParallelKeys implements ParallelResolution.Keys<Batch>
+	{
+		/** Work done by the resolution pass */
+		private final ResolvingBudget budget;
+
+		private ParallelKeys( ResolvingBudget budget )
+		{
+			this.budget = budget;
+		}
+
+		public void collectKeys( String key, Collection<String> lookedUp )
+		{
+			resolvers.get(key).collectKeys(lookedUp, parser);
+			// Keys computed dynamically last time are likely looked up again
+			Set<String> previous = dependencies.get(key);
+			if ( previous != null )
+			{
+				lookedUp.addAll(previous);
+			}
+		}
+
+		public boolean needsResolving( String key )
+		{
+			return VariablesMap.this.needsResolving(key);
+		}
+
+		public boolean isSequential( String key )
+		{
+			return resolvers.get(key).hasDynamicKeys(parser) || cycles.getCycle(key) != null;
+		}
+
+		public Callable<Batch> newBatch( Set<String> keys )
+		{
+			return new Batch(keys, new LinkedHashSet<String>(keys), budget);
+		}
+
+		public void merge( Batch batch )
+		{
+			VariablesMap.this.merge(batch);
+		}
+	}
+
+	/** Ids of keys, shared by {@link #resolvers} and {@link #snapshot}, null if keys are stored in a prefix trie */
+	private SymbolTable symbols = new SymbolTable();
+
+	private Map<String, VariableValue> resolvers = new SymbolMap<VariableValue>(symbols);
+
+	private Map<String, String> snapshot = new SymbolMap<String>(symbols);
+
+	/** Keys looked up during last resolution of a given key */
+	private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+
+	/** Reverse index of {@link #dependencies}: keys which looked up a given key (present or not) */
+	private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+	/** Snapshot published after the last change */
+	private volatile VariablesSnapshot published = VariablesSnapshot.EMPTY;
+
+	/** Keys whose value changed since the last published snapshot */
+	private final Set<String> unpublished = new HashSet<String>();
+
+	/** Keys waiting to be resolved */
+	private final Set<String> dirty = new LinkedHashSet<String>();
+
+	/** Keys resolved by the current pass, not analysed for cycles yet */
+	private final List<String> justResolved = new ArrayList<String>();
+
+	/** Cycles found so far, their keys are not expanded until one of them changes */
+	private VariableCycles cycles = VariableCycles.NONE;
+
+	private final CycleAnalysis cycleAnalysis = new CycleAnalysis(new WaitingKeys(), logger);
 
 	public void clear()
 	{
-		resolvers.clear();
-		snapshot.clear();
+		// Start over with new stores, ids of removed keys are forgotten
+		newStores(isPrefixTrie());
+		unpublished.clear();
+		published = VariablesSnapshot.EMPTY;
+		dependencies.clear();
+		dependents.clear();
+		dirty.clear();
+		justResolved.clear();
+		cycles = VariableCycles.NONE;
 	}
 
 	public boolean containsKey( Object key )
@@ -101,16 +676,20 @@ public final class VariablesMap implements Map<String, String>
 
 	public boolean containsValue( Object value )
 	{
-		return snapshot.containsValue(value);
+		return resolvedSnapshot().containsValue(value);
 	}
 
 	public Set<Entry<String, String>> entrySet()
 	{
-		return snapshot.entrySet();
+		return resolvedSnapshot().entrySet();
 	}
 
 	public String get( Object key )
 	{
+		if ( lazy )
+		{
+			resolveOnDemand(key);
+		}
 		return snapshot.get(key);
 	}
 
@@ -127,8 +706,8 @@ public final class VariablesMap implements Map<String, String>
 	public String put( String key, String value )
 	{
 		putValue(key, value);
-		resolveVariables();
-		return snapshot.get(key);
+		resolveIfEager();
+		return get(key);
 	}
 
 	public void putAll( Map<? extends String, ? extends String> t )
@@ -137,7 +716,7 @@ public final class VariablesMap implements Map<String, String>
 		{
 			putValue(entry.getKey(), entry.getValue());
 		}
-		resolveVariables();
+		resolveIfEager();
 	}
 
 	public void putAll( Properties properties )
@@ -146,22 +725,297 @@ public final class VariablesMap implements Map<String, String>
 		{
 			putValue(entry.getKey().toString(), entry.getValue().toString());
 		}
-		resolveVariables();
+		resolveIfEager();
 	}
 
 	private void putValue( String key, String value )
 	{
-		snapshot.put(key, value);
-		resolvers.put(key, new VariableValue(value, parser.parse(value)));
+		if ( stringPool != null )
+		{
+			key = stringPool.intern(key);
+			value = stringPool.intern(value);
+		}
+		Object stored = valueStore != null ? valueStore.store(value) : value;
+		// Literal values held out of the heap are not kept by a resolver either
+		boolean storedOnce = compact || stored != value;
+		Resolver resolver = storedOnce && AbstractAppender.isPlainText(parser, value) ? null : parser.parse(value);
+		putSnapshot(key, stored);
+		unpublished.add(key);
+		if ( storedOnce && (resolver == null || !resolver.needsResolving()) )
+		{
+			// Literal value, stored once in the snapshot
+			resolvers.remove(key);
+		} else
+		{
+			resolvers.put(key, new VariableValue(stored, resolver));
+		}
+		invalidate(key);
+	}
+
+	/**
+	 * @param key
+	 * @param value Value, or value already stored by the value store
+	 */
+	private void putSnapshot( String key, Object value )
+	{
+		if ( snapshot instanceof StoredValueMap )
+		{
+			((StoredValueMap) snapshot).putStored(key, value);
+		} else
+		{
+			snapshot.put(key, (String) value);
+		}
+	}
+
+	/**
+	 * Mark the given key and all its transitive dependents as waiting to be resolved, marked keys get their original
+	 * value back until resolved.<br>
+	 * Cycles of the marked keys are forgotten, and their keys marked as well: they are expanded again on next pass.
+	 * 
+	 * @param key
+	 */
+	private void invalidate( String key )
+	{
+		LinkedList<String> pending = new LinkedList<String>();
+		pending.add(key);
+		while (!pending.isEmpty())
+		{
+			String current = pending.removeFirst();
+			if ( dirty.add(current) )
+			{
+				VariableValue value = resolvers.get(current);
+				if ( value != null && value.needsResolving() )
+				{
+					// Looked up as is until resolved again, a stale value would tie results to the order of changes
+					putSnapshot(current, value.original);
+					unpublished.add(current);
+				}
+				Set<String> currentDependents = dependents.get(current);
+				if ( currentDependents != null )
+				{
+					pending.addAll(currentDependents);
+				}
+				Set<String> cycle = cycles.getCycle(current);
+				if ( cycle != null )
+				{
+					cycles = cycles.without(current);
+					pending.addAll(cycle);
+				}
+			}
+		}
 	}
 
+	/**
+	 * Resolve all keys waiting to be resolved, dependencies first, until no new cycle is found.
+	 */
 	private void resolveVariables()
 	{
-		for ( Entry<String, VariableValue> entry : resolvers.entrySet() )
+		ResolvingBudget budget = new ResolvingBudget(limits);
+		do
 		{
-			if ( entry.getValue().needsResolving() )
+			cycles = cycles.with(cycleAnalysis.findBeforeExpanding(dirty, cycles));
+			if ( executor != null && ParallelResolution.isWorthwhile(dirty.size()) )
+			{
+				new ParallelResolution<Batch>(new ParallelKeys(budget), executor).resolve(dirty);
+			}
+			if ( !dirty.isEmpty() )
 			{
-				snapshot.put(entry.getKey(), entry.getValue().resolve(snapshot));
+				// Only batch of the map, it may pick keys waiting to be resolved directly
+				Batch batch = new Batch(dirty, dirty, budget);
+				try
+				{
+					batch.call();
+				} finally
+				{
+					merge(batch);
+				}
+			}
+		} while (analyseCycles());
+	}
+
+	/**
+	 * Find cycles among the keys resolved by the current pass. Keys of the cycles found and the keys depending on them
+	 * are marked to be resolved again from their original value, without expanding cyclic keys: cycles only depend on
+	 * the final values, not on the order of changes.
+	 * 
+	 * @return True if new cycles have been found, some keys are waiting to be resolved again
+	 * @see CycleAnalysis
+	 */
+	private boolean analyseCycles()
+	{
+		List<Set<String>> found = cycleAnalysis.findOnceResolved(justResolved, dependencies, cycles);
+		justResolved.clear();
+		for ( Set<String> cycle : found )
+		{
+			for ( String key : cycle )
+			{
+				invalidate(key);
+			}
+		}
+		// Known once marked, otherwise marking would forget them
+		cycles = cycles.with(found);
+		return !found.isEmpty();
+	}
+
+	/**
+	 * Resolve all keys waiting to be resolved and publish a new snapshot, unless in lazy mode.
+	 */
+	private void resolveIfEager()
+	{
+		if ( !lazy )
+		{
+			try
+			{
+				resolveVariables();
+			} finally
+			{
+				publish();
+			}
+		}
+	}
+
+	/**
+	 * Publish a snapshot sharing everything but changed entries with the previous one.
+	 */
+	private void publish()
+	{
+		VariablesSnapshot next = published;
+		for ( String key : unpublished )
+		{
+			// Values held out of the heap are published as stored
+			Object value = snapshot instanceof StoredValueMap ? ((StoredValueMap) snapshot).getStored(key)
+					: snapshot.get(key);
+			next = value != null ? next.withStored(key, value) : next.without(key);
+		}
+		unpublished.clear();
+		published = next;
+	}
+
+	/**
+	 * Immutable view of the map as of the last change, readers on any thread get a consistent view without locking.
+	 * In lazy mode, keys waiting to be resolved are resolved first: only the thread changing the map may call it.
+	 * 
+	 * @return Resolved entries
+	 * @since 6.4
+	 */
+	public VariablesSnapshot getSnapshot()
+	{
+		if ( lazy )
+		{
+			resolveVariables();
+			publish();
+		}
+		return published;
+	}
+
+	/**
+	 * Resolve the given key if it is waiting to be resolved, along with the keys it looks up only.
+	 * 
+	 * @param key
+	 */
+	private void resolveOnDemand( Object key )
+	{
+		if ( dirty.contains(key) )
+		{
+			ResolvingBudget budget = new ResolvingBudget(limits);
+			do
+			{
+				cycles = cycles.with(cycleAnalysis.findBeforeExpanding(singleton((String) key), cycles));
+				Batch batch = new Batch(dirty, dirty, budget);
+				try
+				{
+					batch.resolve((String) key);
+				} finally
+				{
+					merge(batch);
+				}
+			} while (analyseCycles() && dirty.contains(key));
+		}
+	}
+
+	/**
+	 * @return Snapshot of resolved values
+	 */
+	private Map<String, String> resolvedSnapshot()
+	{
+		if ( lazy )
+		{
+			resolveVariables();
+		}
+		return snapshot;
+	}
+
+	private boolean needsResolving( String key )
+	{
+		VariableValue value = resolvers.get(key);
+		return value != null && value.needsResolving();
+	}
+
+	/**
+	 * Store the values resolved by the given batch and what they depend on.
+	 * 
+	 * @param batch
+	 */
+	private void merge( Batch batch )
+	{
+		for ( String key : batch.done )
+		{
+			dirty.remove(key);
+			justResolved.add(key);
+			unregisterDependencies(key);
+			if ( compact )
+			{
+				VariableValue value = resolvers.get(key);
+				if ( value != null )
+				{
+					value.dropResolver();
+				}
+			}
+			String resolved = batch.resolved.containsKey(key) ? batch.resolved.get(key) : batch.truncated.get(key);
+			if ( resolved != null )
+			{
+				putSnapshot(key, stringPool != null ? stringPool.intern(resolved) : resolved);
+				unpublished.add(key);
+			}
+			Set<String> keyDependencies = batch.recorded.get(key);
+			if ( keyDependencies != null )
+			{
+				dependencies.put(key, keyDependencies);
+				for ( String dependency : keyDependencies )
+				{
+					Set<String> dependencyDependents = dependents.get(dependency);
+					if ( dependencyDependents == null )
+					{
+						dependencyDependents = new HashSet<String>();
+						dependents.put(dependency, dependencyDependents);
+					}
+					dependencyDependents.add(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove the given key from the reverse index of its previous dependencies.
+	 * 
+	 * @param key
+	 */
+	private void unregisterDependencies( String key )
+	{
+		Set<String> previous = dependencies.remove(key);
+		if ( previous != null )
+		{
+			for ( String dependency : previous )
+			{
+				Set<String> dependencyDependents = dependents.get(dependency);
+				if ( dependencyDependents != null )
+				{
+					dependencyDependents.remove(key);
+					if ( dependencyDependents.isEmpty() )
+					{
+						dependents.remove(dependency);
+					}
+				}
 			}
 		}
 	}
@@ -171,9 +1025,14 @@ public final class VariablesMap implements Map<String, String>
 		String value = null;
 		if ( containsKey(key) )
 		{
-			value = snapshot.remove(key);
-			resolvers.remove(key);
-			resolveVariables();
+			String removedKey = (String) key;
+			value = get(removedKey);
+			snapshot.remove(removedKey);
+			unpublished.add(removedKey);
+			resolvers.remove(removedKey);
+			unregisterDependencies(removedKey);
+			invalidate(removedKey);
+			resolveIfEager();
 		}
 		return value;
 	}
@@ -185,13 +1044,311 @@ public final class VariablesMap implements Map<String, String>
 
 	public Collection<String> values()
 	{
-		return snapshot.values();
+		return resolvedSnapshot().values();
 	}
 
 	@Override
 	public String toString()
 	{
-		return snapshot.toString();
+		return resolvedSnapshot().toString();
+	}
+
+	/**
+	 * Keys of a cycle are not expanded: references between them are left as is, other keys get their value as is.
+	 * A cycle is forgotten as soon as one of its keys needs resolving again.
+	 * 
+	 * @return Cycles found so far
+	 * @since 6.4
+	 */
+	public VariableCycles getCycles()
+	{
+		return cycles;
+	}
+
+	/**
+	 * Read-only live view of the entries whose key starts with the given prefix, keyed by the rest of their key, e.g.
+	 * {@code subMap("db.primary.")} holds {@code pool.max} for {@code db.primary.pool.max}.<br>
+	 * With keys stored in a prefix trie, finding the entries of the prefix takes O(prefix length), otherwise all entries
+	 * are filtered.
+	 * 
+	 * @param prefix
+	 * @return Entries of the given namespace
+	 * @since 6.4
+	 */
+	public Map<String, String> subMap( String prefix )
+	{
+		return new Namespace(prefix);
+	}
+
+	private final class Namespace extends AbstractMap<String, String>
+	{
+		private final String prefix;
+
+		private Namespace( String prefix )
+		{
+			this.prefix = prefix;
+		}
+
+		@Override
+		public String get( Object key )
+		{
+			return key instanceof String ? VariablesMap.this.get(prefix + key) : null;
+		}
+
+		@Override
+		public boolean containsKey( Object key )
+		{
+			return key instanceof String && VariablesMap.this.containsKey(prefix + key);
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet()
+		{
+			Map<String, String> resolved = resolvedSnapshot();
+			if ( resolved instanceof KeyTrie<?> )
+			{
+				return unmodifiableMap(((KeyTrie<String>) resolved).subMap(prefix)).entrySet();
+			}
+			return new AbstractSet<Entry<String, String>>()
+			{
+				@Override
+				public Iterator<Entry<String, String>> iterator()
+				{
+					final Iterator<Entry<String, String>> entries = resolvedSnapshot().entrySet().iterator();
+					return new Iterator<Entry<String, String>>()
+					{
+						private Entry<String, String> next = fetch();
+
+						private Entry<String, String> fetch()
+						{
+							while (entries.hasNext())
+							{
+								Entry<String, String> entry = entries.next();
+								if ( entry.getKey().startsWith(prefix) )
+								{
+									return new SimpleImmutableEntry<String, String>(entry.getKey().substring(prefix.length()),
+											entry.getValue());
+								}
+							}
+							return null;
+						}
+
+						public boolean hasNext()
+						{
+							return next != null;
+						}
+
+						public Entry<String, String> next()
+						{
+							if ( next == null )
+							{
+								throw new NoSuchElementException();
+							}
+							Entry<String, String> current = next;
+							next = fetch();
+							return current;
+						}
+
+						public void remove()
+						{
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					int size = 0;
+					for ( String key : snapshot.keySet() )
+					{
+						if ( key.startsWith(prefix) )
+						{
+							size++;
+						}
+					}
+					return size;
+				}
+			};
+		}
+	}
+
+	/**
+	 * @return True if keys are stored in a prefix trie
+	 * @since 6.4
+	 */
+	public boolean isPrefixTrie()
+	{
+		return symbols == null;
+	}
+
+	/**
+	 * Store keys in a prefix trie instead of a symbol table: keys sharing a prefix share its characters in memory, which
+	 * pays off with large hierarchical configurations, and {@link #subMap(String)} views are cheap. Look ups take
+	 * O(key length) instead of array reads for keys known when parsing, and entries are iterated in key order.<br>
+	 * By default, keys get dense ids from a symbol table, values are stored in arrays indexed by id, and variables
+	 * whose key is known when parsing look the value up by id.
+	 * 
+	 * @param prefixTrie True to store keys in a prefix trie, false to store them in a symbol table
+	 * @since 6.4
+	 */
+	public void setPrefixTrie( boolean prefixTrie )
+	{
+		if ( prefixTrie != isPrefixTrie() )
+		{
+			Map<String, VariableValue> movedResolvers = resolvers;
+			Map<String, String> movedSnapshot = snapshot;
+			newStores(prefixTrie);
+			resolvers.putAll(movedResolvers);
+			if ( movedSnapshot instanceof StoredValueMap )
+			{
+				((StoredValueMap) snapshot).putAllStored((StoredValueMap) movedSnapshot);
+			} else
+			{
+				snapshot.putAll(movedSnapshot);
+			}
+		}
+	}
+
+	/**
+	 * Replace stores of resolvers and resolved values by empty ones.
+	 * 
+	 * @param prefixTrie True to store keys in a prefix trie, false to store them in a symbol table
+	 */
+	private void newStores( boolean prefixTrie )
+	{
+		if ( prefixTrie )
+		{
+			symbols = null;
+			resolvers = new KeyTrie<VariableValue>();
+			snapshot = valueStore != null ? new StoredValueMap(new KeyTrie<Object>(), valueStore) : new KeyTrie<String>();
+		} else
+		{
+			symbols = new SymbolTable();
+			resolvers = new SymbolMap<VariableValue>(symbols);
+			snapshot = valueStore != null ? new StoredValueMap(new SymbolMap<Object>(symbols), valueStore)
+					: new SymbolMap<String>(symbols);
+		}
+	}
+
+	/**
+	 * @return True if values are stored compactly
+	 * @since 6.4
+	 */
+	public boolean isCompact()
+	{
+		return compact;
+	}
+
+	/**
+	 * In compact mode, literal values are stored once in the resolved entries, without resolver, and are not parsed at
+	 * all when the parser is known to parse them as text. Resolvers of values having variables are dropped once
+	 * resolved: they are parsed again from the original value when they have to be resolved again.<br>
+	 * Memory is saved on large configurations made of literal values mostly, at the cost of parsing values again when
+	 * their dependencies change.
+	 * 
+	 * @param compact True to store values compactly
+	 * @since 6.4
+	 */
+	public void setCompact( boolean compact )
+	{
+		if ( compact != this.compact )
+		{
+			this.compact = compact;
+			applyParser();
+		}
+	}
+
+	/**
+	 * @return Number of values holding a resolver: in compact mode, literal values have none and other values drop theirs
+	 *         once resolved
+	 */
+	int getResolverCount()
+	{
+		int count = 0;
+		for ( VariableValue value : resolvers.values() )
+		{
+			if ( value.resolver != null )
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return Pool sharing identical keys and values, null if none
+	 * @since 6.4
+	 */
+	public StringPool getStringPool()
+	{
+		return stringPool;
+	}
+
+	/**
+	 * Keys, values and resolved values put from now on are interned in the given pool, so that identical ones share
+	 * one instance with other maps using the same pool.
+	 * 
+	 * @param stringPool Pool to use, null to keep strings as given
+	 * @since 6.4
+	 */
+	public void setStringPool( StringPool stringPool )
+	{
+		this.stringPool = stringPool;
+	}
+
+	/**
+	 * @return Store keeping large values out of the heap, null if none
+	 * @since 6.4
+	 */
+	public ValueStore getValueStore()
+	{
+		return valueStore;
+	}
+
+	/**
+	 * Keep values above the threshold of the given store out of the heap, in this map and in its published snapshots:
+	 * they are decoded each time they are read. Literal values held out of the heap have no resolver, as in
+	 * {@link #setCompact(boolean) compact} mode.<br>
+	 * Entries already in the map are stored again.
+	 * 
+	 * @param valueStore Store to use, null to keep all values on the heap
+	 * @since 6.4
+	 */
+	public void setValueStore( ValueStore valueStore )
+	{
+		if ( valueStore != this.valueStore )
+		{
+			this.valueStore = valueStore;
+			applyParser();
+		}
+	}
+
+	/**
+	 * @return Namespaces of the keys looked up lazily when missing from the map
+	 * @since 6.4
+	 */
+	public Namespaces getNamespaces()
+	{
+		return namespaces;
+	}
+
+	/**
+	 * Variables referencing keys missing from this map, such as <tt>${env:HOME}</tt>, are resolved with the lookup of
+	 * their namespace, if any: values are queried when resolving and are not added to this map.<br>
+	 * Entries already in the map are resolved again.
+	 * 
+	 * @param namespaces Namespaces to use, {@link Namespaces#NONE} if null
+	 * @since 6.4
+	 */
+	public void setNamespaces( Namespaces namespaces )
+	{
+		Namespaces applied = namespaces == null ? Namespaces.NONE : namespaces;
+		if ( applied != this.namespaces )
+		{
+			this.namespaces = applied;
+			applyParser();
+		}
 	}
 
 	public Parser getParser()
@@ -199,9 +1356,72 @@ public final class VariablesMap implements Map<String, String>
 		return parser;
 	}
 
+	/**
+	 * @return Limits of each resolution pass, {@link ResolvingLimits#DEFAULT} unless set
+	 * @since 6.4
+	 */
+	public ResolvingLimits getLimits()
+	{
+		return limits;
+	}
+
+	/**
+	 * Limits apply from the next resolution pass on, values already resolved are not checked again.
+	 * 
+	 * @param limits Limits of each resolution pass, null for none
+	 * @since 6.4
+	 */
+	public void setLimits( ResolvingLimits limits )
+	{
+		this.limits = limits == null ? ResolvingLimits.NONE : limits;
+	}
+
+	/**
+	 * @return True if keys are resolved when they are read only
+	 * @since 6.4
+	 */
+	public boolean isLazy()
+	{
+		return lazy;
+	}
+
+	/**
+	 * In lazy mode, changes only mark the keys depending on them as waiting to be resolved: {@link #get(Object)}
+	 * resolves the requested key and the keys it looks up, while reading all entries resolves them all.
+	 * 
+	 * @param lazy True to resolve keys when they are read only
+	 * @since 6.4
+	 */
+	public void setLazy( boolean lazy )
+	{
+		this.lazy = lazy;
+		resolveIfEager();
+	}
+
+	/**
+	 * @return Executor resolving independent groups of variables in parallel, null if none
+	 * @since 6.4
+	 */
+	public ExecutorService getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * Resolve independent groups of variables in parallel, results are the same as when resolving on the calling thread.
+	 * The executor is not shut down by this map.
+	 * 
+	 * @param executor Executor to use, null to resolve on the calling thread
+	 * @since 6.4
+	 */
+	public void setExecutor( ExecutorService executor )
+	{
+		this.executor = executor;
+	}
+
 	public void setParser( Parser parser )
 	{
-		this.parser = parser == null ? new AntStyleParser() : parser;
+		this.parser = parser == null ? new CachingParser(new AntStyleParser()) : parser;
 		applyParser();
 	}
 
@@ -210,12 +1430,14 @@ public final class VariablesMap implements Map<String, String>
 	 */
 	private void applyParser()
 	{
-		this.snapshot.clear();
-		Map<String, String> originals = new HashMap<String, String>(this.resolvers.size());
-		for ( Entry<String, VariableValue> resolver : this.resolvers.entrySet() )
+		Map<String, String> originals = new HashMap<String, String>(snapshot.size());
+		for ( Entry<String, String> entry : snapshot.entrySet() )
 		{
-			originals.put(resolver.getKey(), resolver.getValue().getOriginal());
+			// Literal values of compact maps have no resolver
+			VariableValue value = resolvers.get(entry.getKey());
+			originals.put(entry.getKey(), value != null ? value.getOriginal() : entry.getValue());
 		}
+		clear();
 		putAll(originals);
 	}
 }
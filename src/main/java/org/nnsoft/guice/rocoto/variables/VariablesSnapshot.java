@@ -0,0 +1,559 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.Integer.bitCount;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map of resolved variables, safe to share between threads without locking.<br>
+ * Entries are stored in a hash array mapped trie: {@link #with(String, String)} and {@link #without(String)} copy the
+ * path to the changed entry only, and share everything else with the original snapshot.
+ *
+ * @since 6.4
+ */
+public final class VariablesSnapshot
+    extends AbstractMap<String, String>
+{
+
+    /** Bits of the hash consumed by each level of the trie */
+    private static final int BITS = 5;
+
+    private static final int MASK = ( 1 << BITS ) - 1;
+
+    /** Trie levels, last one consumes the remaining bits only */
+    private static final int MAX_DEPTH = ( 32 + BITS - 1 ) / BITS;
+
+    /** Snapshot without any entry */
+    public static final VariablesSnapshot EMPTY = new VariablesSnapshot( new BitmapNode( 0, new Object[0] ), 0 );
+
+    /**
+     * Immutable entry.
+     */
+    private static final class Leaf
+        implements Entry<String, String>
+    {
+
+        private final int hash;
+
+        private final String key;
+
+        /** Value as stored by a {@link ValueStore} */
+        private final Object value;
+
+        private Leaf( int hash, String key, Object value )
+        {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        public String getValue()
+        {
+            return ValueStore.load( value );
+        }
+
+        public String setValue( String value )
+        {
+            throw new UnsupportedOperationException( "Snapshots are immutable" );
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( obj instanceof Entry<?, ?> )
+            {
+                Entry<?, ?> other = (Entry<?, ?>) obj;
+                return key.equals( other.getKey() ) && getValue().equals( other.getValue() );
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return key + "=" + getValue();
+        }
+
+    }
+
+    /**
+     * Trie node, its slots hold either {@link Leaf}s or child nodes.
+     */
+    private static abstract class Node
+    {
+
+        /** Leaves and child nodes */
+        protected final Object[] slots;
+
+        protected Node( Object[] slots )
+        {
+            this.slots = slots;
+        }
+
+        abstract Leaf find( String key, int hash, int shift );
+
+        /**
+         * @return This node if the leaf was already there, a copy holding the leaf otherwise
+         */
+        abstract Node with( Leaf leaf, int shift );
+
+        /**
+         * @return This node if the key was not there, otherwise a copy without it, the last leaf if only one is left,
+         *         or null if none is left
+         */
+        abstract Object without( String key, int hash, int shift );
+
+    }
+
+    /**
+     * Node whose slots are indexed by a 5 bits fragment of the key hash, only present fragments have a slot.
+     */
+    private static final class BitmapNode
+        extends Node
+    {
+
+        /** Bit set for each hash fragment having a slot */
+        private final int bitmap;
+
+        private BitmapNode( int bitmap, Object[] slots )
+        {
+            super( slots );
+            this.bitmap = bitmap;
+        }
+
+        private int index( int bit )
+        {
+            return bitCount( bitmap & ( bit - 1 ) );
+        }
+
+        @Override
+        Leaf find( String key, int hash, int shift )
+        {
+            int bit = bit( hash, shift );
+            if ( ( bitmap & bit ) == 0 )
+            {
+                return null;
+            }
+            Object slot = slots[index( bit )];
+            if ( slot instanceof Leaf )
+            {
+                Leaf leaf = (Leaf) slot;
+                return leaf.hash == hash && leaf.key.equals( key ) ? leaf : null;
+            }
+            return ( (Node) slot ).find( key, hash, shift + BITS );
+        }
+
+        @Override
+        Node with( Leaf leaf, int shift )
+        {
+            int bit = bit( leaf.hash, shift );
+            int index = index( bit );
+            if ( ( bitmap & bit ) == 0 )
+            {
+                Object[] copy = new Object[slots.length + 1];
+                System.arraycopy( slots, 0, copy, 0, index );
+                copy[index] = leaf;
+                System.arraycopy( slots, index, copy, index + 1, slots.length - index );
+                return new BitmapNode( bitmap | bit, copy );
+            }
+
+            Object slot = slots[index];
+            Object replacement;
+            if ( slot instanceof Leaf )
+            {
+                Leaf existing = (Leaf) slot;
+                if ( existing.hash == leaf.hash && existing.key.equals( leaf.key ) )
+                {
+                    if ( existing.value.equals( leaf.value ) )
+                    {
+                        return this;
+                    }
+                    replacement = leaf;
+                }
+                else
+                {
+                    replacement = pair( existing, leaf, shift + BITS );
+                }
+            }
+            else
+            {
+                replacement = ( (Node) slot ).with( leaf, shift + BITS );
+                if ( replacement == slot )
+                {
+                    return this;
+                }
+            }
+            Object[] copy = slots.clone();
+            copy[index] = replacement;
+            return new BitmapNode( bitmap, copy );
+        }
+
+        @Override
+        Object without( String key, int hash, int shift )
+        {
+            int bit = bit( hash, shift );
+            if ( ( bitmap & bit ) == 0 )
+            {
+                return this;
+            }
+            int index = index( bit );
+            Object slot = slots[index];
+            Object replacement;
+            if ( slot instanceof Leaf )
+            {
+                Leaf leaf = (Leaf) slot;
+                if ( leaf.hash != hash || !leaf.key.equals( key ) )
+                {
+                    return this;
+                }
+                replacement = null;
+            }
+            else
+            {
+                replacement = ( (Node) slot ).without( key, hash, shift + BITS );
+                if ( replacement == slot )
+                {
+                    return this;
+                }
+            }
+
+            if ( replacement != null )
+            {
+                Object[] copy = slots.clone();
+                copy[index] = replacement;
+                return new BitmapNode( bitmap, copy );
+            }
+            if ( slots.length == 1 )
+            {
+                return null;
+            }
+            if ( slots.length == 2 && shift > 0 && slots[1 - index] instanceof Leaf )
+            {
+                // Single leaf left, the parent holds it directly
+                return slots[1 - index];
+            }
+            Object[] copy = new Object[slots.length - 1];
+            System.arraycopy( slots, 0, copy, 0, index );
+            System.arraycopy( slots, index + 1, copy, index, slots.length - index - 1 );
+            return new BitmapNode( bitmap & ~bit, copy );
+        }
+
+    }
+
+    /**
+     * Node holding leaves whose keys have the same hash.
+     */
+    private static final class CollisionNode
+        extends Node
+    {
+
+        private final int hash;
+
+        private CollisionNode( int hash, Object[] leaves )
+        {
+            super( leaves );
+            this.hash = hash;
+        }
+
+        private int indexOf( String key )
+        {
+            for ( int i = 0; i < slots.length; i++ )
+            {
+                if ( ( (Leaf) slots[i] ).key.equals( key ) )
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Leaf find( String key, int hash, int shift )
+        {
+            int index = hash == this.hash ? indexOf( key ) : -1;
+            return index < 0 ? null : (Leaf) slots[index];
+        }
+
+        @Override
+        Node with( Leaf leaf, int shift )
+        {
+            if ( leaf.hash != hash )
+            {
+                // Hashes differ at this level or deeper, nest this node under a regular one
+                return new BitmapNode( bit( hash, shift ), new Object[] { this } ).with( leaf, shift );
+            }
+            int index = indexOf( leaf.key );
+            if ( index < 0 )
+            {
+                Object[] copy = new Object[slots.length + 1];
+                System.arraycopy( slots, 0, copy, 0, slots.length );
+                copy[slots.length] = leaf;
+                return new CollisionNode( hash, copy );
+            }
+            if ( ( (Leaf) slots[index] ).value.equals( leaf.value ) )
+            {
+                return this;
+            }
+            Object[] copy = slots.clone();
+            copy[index] = leaf;
+            return new CollisionNode( hash, copy );
+        }
+
+        @Override
+        Object without( String key, int hash, int shift )
+        {
+            int index = hash == this.hash ? indexOf( key ) : -1;
+            if ( index < 0 )
+            {
+                return this;
+            }
+            if ( slots.length == 2 )
+            {
+                return slots[1 - index];
+            }
+            Object[] copy = new Object[slots.length - 1];
+            System.arraycopy( slots, 0, copy, 0, index );
+            System.arraycopy( slots, index + 1, copy, index, slots.length - index - 1 );
+            return new CollisionNode( hash, copy );
+        }
+
+    }
+
+    private static int bit( int hash, int shift )
+    {
+        return 1 << ( ( hash >>> shift ) & MASK );
+    }
+
+    /**
+     * @return Node holding both leaves, from the given level of the trie
+     */
+    private static Node pair( Leaf a, Leaf b, int shift )
+    {
+        if ( a.hash == b.hash )
+        {
+            return new CollisionNode( a.hash, new Object[] { a, b } );
+        }
+        int bitA = bit( a.hash, shift );
+        int bitB = bit( b.hash, shift );
+        if ( bitA == bitB )
+        {
+            return new BitmapNode( bitA, new Object[] { pair( a, b, shift + BITS ) } );
+        }
+        // Slots are ordered by hash fragment, the bit of fragment 31 is negative
+        boolean ordered = ( ( a.hash >>> shift ) & MASK ) < ( ( b.hash >>> shift ) & MASK );
+        return new BitmapNode( bitA | bitB, ordered ? new Object[] { a, b } : new Object[] { b, a } );
+    }
+
+    private final Node root;
+
+    private final int size;
+
+    private VariablesSnapshot( Node root, int size )
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    @Override
+    public String get( Object key )
+    {
+        Leaf leaf = find( key );
+        return leaf == null ? null : leaf.getValue();
+    }
+
+    @Override
+    public boolean containsKey( Object key )
+    {
+        return find( key ) != null;
+    }
+
+    private Leaf find( Object key )
+    {
+        if ( !( key instanceof String ) )
+        {
+            return null;
+        }
+        String name = (String) key;
+        return root.find( name, name.hashCode(), 0 );
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return Snapshot holding the given entry, this one if it already does
+     */
+    public VariablesSnapshot with( String key, String value )
+    {
+        return withStored( key, value );
+    }
+
+    /**
+     * @param key
+     * @param value Value as stored by a {@link ValueStore}, kept as is
+     * @return Snapshot holding the given entry, this one if it already does
+     */
+    VariablesSnapshot withStored( String key, Object value )
+    {
+        checkNotNull( key, "Parameter 'key' must be not null" );
+        checkNotNull( value, "Parameter 'value' must be not null" );
+        Node changed = root.with( new Leaf( key.hashCode(), key, value ), 0 );
+        if ( changed == root )
+        {
+            return this;
+        }
+        return new VariablesSnapshot( changed, containsKey( key ) ? size : size + 1 );
+    }
+
+    /**
+     * @param key
+     * @return Snapshot without the given key, this one if it has no such key
+     */
+    public VariablesSnapshot without( String key )
+    {
+        if ( !containsKey( key ) )
+        {
+            return this;
+        }
+        Object changed = root.without( key, key.hashCode(), 0 );
+        return changed == null ? EMPTY : new VariablesSnapshot( (Node) changed, size - 1 );
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet()
+    {
+        return new AbstractSet<Entry<String, String>>()
+        {
+
+            @Override
+            public Iterator<Entry<String, String>> iterator()
+            {
+                return new LeafIterator( root );
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+
+            @Override
+            public boolean contains( Object obj )
+            {
+                if ( obj instanceof Entry<?, ?> )
+                {
+                    Entry<?, ?> entry = (Entry<?, ?>) obj;
+                    Leaf leaf = find( entry.getKey() );
+                    return leaf != null && leaf.getValue().equals( entry.getValue() );
+                }
+                return false;
+            }
+
+        };
+    }
+
+    /**
+     * Depth first walk through the trie.
+     */
+    private static final class LeafIterator
+        implements Iterator<Entry<String, String>>
+    {
+
+        /** Slots of the nodes being walked, one per level */
+        private final Object[][] nodes = new Object[MAX_DEPTH + 1][];
+
+        /** Next slot to visit at each level */
+        private final int[] positions = new int[MAX_DEPTH + 1];
+
+        private int depth = 0;
+
+        private Leaf next;
+
+        private LeafIterator( Node root )
+        {
+            nodes[0] = root.slots;
+            advance();
+        }
+
+        private void advance()
+        {
+            next = null;
+            while ( depth >= 0 )
+            {
+                if ( positions[depth] == nodes[depth].length )
+                {
+                    depth--;
+                    continue;
+                }
+                Object slot = nodes[depth][positions[depth]++];
+                if ( slot instanceof Leaf )
+                {
+                    next = (Leaf) slot;
+                    return;
+                }
+                depth++;
+                nodes[depth] = ( (Node) slot ).slots;
+                positions[depth] = 0;
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        public Entry<String, String> next()
+        {
+            if ( next == null )
+            {
+                throw new NoSuchElementException();
+            }
+            Leaf current = next;
+            advance();
+            return current;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException( "Snapshots are immutable" );
+        }
+
+    }
+
+}
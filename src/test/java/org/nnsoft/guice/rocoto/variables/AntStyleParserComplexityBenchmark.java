@@ -0,0 +1,78 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+import static java.lang.String.format;
+import static org.nnsoft.guice.rocoto.variables.AntStyleParserComplexityTestCase.DOLLARS;
+import static org.nnsoft.guice.rocoto.variables.AntStyleParserComplexityTestCase.NESTED;
+import static org.nnsoft.guice.rocoto.variables.AntStyleParserComplexityTestCase.NESTED_PIPES;
+import static org.nnsoft.guice.rocoto.variables.AntStyleParserComplexityTestCase.PIPES;
+import static org.nnsoft.guice.rocoto.variables.AntStyleParserComplexityTestCase.RANDOM;
+import static org.nnsoft.guice.rocoto.variables.AntStyleParserComplexityTestCase.UNCLOSED;
+import static org.nnsoft.guice.rocoto.variables.AntStyleParserComplexityTestCase.WHITESPACES;
+
+import org.nnsoft.guice.rocoto.variables.AntStyleParserComplexityTestCase.Generator;
+
+/**
+ * Manual benchmark comparing parsing times of small and large pathological inputs, run its main method from the test
+ * classpath: linear growth is the size ratio, quadratic growth its square.
+ */
+public final class AntStyleParserComplexityBenchmark
+{
+
+	private static final int SMALL = 1 << 13;
+
+	private static final int LARGE = 1 << 17;
+
+	public static void main( String[] args )
+	{
+		benchmark("unclosed", UNCLOSED);
+		benchmark("nested", NESTED);
+		benchmark("nested pipes", NESTED_PIPES);
+		benchmark("pipes", PIPES);
+		benchmark("whitespaces", WHITESPACES);
+		benchmark("dollars", DOLLARS);
+		benchmark("random", RANDOM);
+	}
+
+	private static void benchmark( String name, Generator generator )
+	{
+		Parser parser = AntStyleParserComplexityTestCase.unboundedParser();
+		String small = generator.generate(SMALL);
+		String large = generator.generate(LARGE);
+
+		// warm up
+		bestOf(10, parser, small);
+
+		long smallTime = bestOf(5, parser, small);
+		long largeTime = bestOf(5, parser, large);
+		System.out.println(format("%-14s %8d chars %8dus %8d chars %8dus  x%.1f for x%.1f", name, small.length(),
+				smallTime / 1000, large.length(), largeTime / 1000, (double) largeTime / smallTime,
+				(double) large.length() / small.length()));
+	}
+
+	private static long bestOf( int runs, Parser parser, String input )
+	{
+		long best = Long.MAX_VALUE;
+		for ( int i = 0; i < runs; i++ )
+		{
+			long start = System.nanoTime();
+			AntStyleParserComplexityTestCase.parse(parser, input);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Check {@link AntStyleParser} parses large pathological inputs at once: parsing them in quadratic time would take
+ * minutes. See {@link AntStyleParserComplexityBenchmark} to measure the growth of parsing time.
+ */
+public class AntStyleParserComplexityTestCase
+{
+	private static final int SIZE = 1 << 20;
+
+	/** Way beyond linear parsing time, way below quadratic parsing time */
+	private static final long TIMEOUT = 10000;
+
+	/**
+	 * Produce an input of about the given size.
+	 */
+	interface Generator
+	{
+		String generate( int size );
+	}
+
+	private static String repeat( String pattern, int times )
+	{
+		StringBuilder buffer = new StringBuilder(pattern.length() * times);
+		for ( int i = 0; i < times; i++ )
+		{
+			buffer.append(pattern);
+		}
+		return buffer.toString();
+	}
+
+	static final Generator UNCLOSED = new Generator()
+	{
+		public String generate( int size )
+		{
+			return repeat("${", size / 2);
+		}
+	};
+
+	static final Generator NESTED = new Generator()
+	{
+		public String generate( int size )
+		{
+			return repeat("${a", size / 4) + repeat("}", size / 4);
+		}
+	};
+
+	static final Generator NESTED_PIPES = new Generator()
+	{
+		public String generate( int size )
+		{
+			return repeat("${a|b|", size / 7) + repeat("}", size / 7);
+		}
+	};
+
+	static final Generator PIPES = new Generator()
+	{
+		public String generate( int size )
+		{
+			return "${a" + repeat("|", size) + "}";
+		}
+	};
+
+	static final Generator WHITESPACES = new Generator()
+	{
+		public String generate( int size )
+		{
+			return repeat("${ " + repeat(" ", 16) + "${x}" + repeat(" ", 16) + "}", size / 40);
+		}
+	};
+
+	static final Generator DOLLARS = new Generator()
+	{
+		public String generate( int size )
+		{
+			return repeat("$", size / 2) + repeat("{$|", size / 6);
+		}
+	};
+
+	static final Generator RANDOM = new Generator()
+	{
+		public String generate( int size )
+		{
+			Random random = new Random(size);
+			char[] alphabet = "${}| a".toCharArray();
+			StringBuilder buffer = new StringBuilder(size);
+			for ( int i = 0; i < size; i++ )
+			{
+				buffer.append(alphabet[random.nextInt(alphabet.length)]);
+			}
+			return buffer.toString();
+		}
+	};
+
+	/**
+	 * @return Parser without nesting limit
+	 */
+	static Parser unboundedParser()
+	{
+		return new AntStyleParser(false, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Parse the given input, syntax errors included.
+	 */
+	static void parse( Parser parser, String input )
+	{
+		try
+		{
+			parser.parse(input);
+		} catch (IllegalArgumentException syntaxError)
+		{
+			// fine, only time matters
+		}
+	}
+
+	private static void verifyParsed( Generator generator )
+	{
+		parse(unboundedParser(), generator.generate(SIZE));
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void verifyUnclosed()
+	{
+		verifyParsed(UNCLOSED);
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void verifyNested()
+	{
+		verifyParsed(NESTED);
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void verifyNestedPipes()
+	{
+		verifyParsed(NESTED_PIPES);
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void verifyPipes()
+	{
+		verifyParsed(PIPES);
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void verifyWhitespaces()
+	{
+		verifyParsed(WHITESPACES);
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void verifyDollars()
+	{
+		verifyParsed(DOLLARS);
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void verifyRandom()
+	{
+		verifyParsed(RANDOM);
+	}
+
+	@Test
+	public void verifyNestingDepthBounded()
+	{
+		Parser parser = new AntStyleParser();
+		String deepest = repeat("${a", AntStyleParser.DEFAULT_MAX_NESTING_DEPTH) + repeat("}", AntStyleParser.DEFAULT_MAX_NESTING_DEPTH);
+		assertEquals(deepest, parser.parse(deepest).resolve(new HashMap<String, String>()));
+		try
+		{
+			parser.parse("${" + deepest + "}");
+			fail("Expected an IllegalArgumentException for too deeply nested variables");
+		} catch (IllegalArgumentException expected)
+		{
+			// ok
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Check {@link AntStyleParser} creates the appender suited to each variable.
+ */
+public class AntStyleParserTestCase
+{
+	private final AntStyleParser parser = new AntStyleParser();
+
+	private static void assertType( Class<?> expected, Resolver resolver )
+	{
+		assertEquals(expected, resolver.getClass());
+	}
+
+	@Test
+	public void verifySpecializedKeyAppenders()
+	{
+		assertType(StaticKeyAppender.class, parser.parse("${a}"));
+		assertType(LiteralDefaultKeyAppender.class, parser.parse("${a|b}"));
+		assertType(StaticKeyAppender.class, parser.parse("${a|${b}}"));
+		assertType(DynamicKeyAppender.class, parser.parse("${a.${b}}"));
+		assertType(DynamicKeyAppender.class, parser.parse("${a.${b}|c}"));
+		assertType(MixinAppender.class, parser.parse("x ${a} y"));
+		assertType(TextAppender.class, parser.parse("no variable"));
+	}
+
+	@Test
+	public void verifyResolving()
+	{
+		Map<String, String> configuration = new HashMap<String, String>();
+		configuration.put("a", "A");
+		configuration.put("b", "B");
+		configuration.put("a.B", "dynamic");
+
+		assertEquals("A", parser.parse("${a}").resolve(configuration));
+		assertEquals("${z}", parser.parse("${z}").resolve(configuration));
+		assertEquals("c", parser.parse("${z|c}").resolve(configuration));
+		assertEquals("B", parser.parse("${z|${b}}").resolve(configuration));
+		assertEquals("dynamic", parser.parse("${a.${b}}").resolve(configuration));
+		assertEquals("${a.${a}}", parser.parse("${a.${a}}").resolve(configuration));
+		assertEquals("c", parser.parse("${a.${a}|c}").resolve(configuration));
+	}
+
+	@Test
+	public void verifyLiteralMixinCollapsed()
+	{
+		Appender collapsed = MixinAppender.create("abc",
+				asList((Appender) new TextAppender("a"), new TextAppender("b"), new TextAppender("c")));
+		assertType(TextAppender.class, collapsed);
+		assertEquals("abc", collapsed.toString());
+		assertFalse(collapsed.needsResolving());
+	}
+
+	@Test
+	public void verifyMixinIdentity()
+	{
+		Appender a = parser.parse("${a}");
+		Appender b = parser.parse("${b}");
+		MixinAppender ab = new MixinAppender("${a}${b}", a, b);
+		MixinAppender ba = new MixinAppender("${b}${a}", b, a);
+		assertTrue(ab.needsResolving());
+		assertEquals(ab, new MixinAppender("${a}${b}", parser.parse("${a}"), parser.parse("${b}")));
+		assertEquals(ab.hashCode(), new MixinAppender("${a}${b}", a, b).hashCode());
+		assertFalse(ab.equals(ba));
+		assertFalse(new MixinAppender("text", new TextAppender("te"), new TextAppender("xt")).needsResolving());
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Test {@link CachingParser} memoization, bounds and statistics.
+ */
+public class CachingParserTestCase
+{
+
+	@Test
+	public void verifySameInputSharesResolver()
+	{
+		CachingParser parser = new CachingParser(new AntStyleParser());
+		Resolver first = parser.parse("${foo|bar}");
+		Resolver second = parser.parse("${foo|bar}");
+		assertSame(first, second);
+		assertEquals(1, parser.getMissCount());
+		assertEquals(1, parser.getHitCount());
+	}
+
+	@Test
+	public void verifyLookedUpValuesParsedThroughCache()
+	{
+		CachingParser parser = new CachingParser(new AntStyleParser());
+		VariablesMap variablesMap = new VariablesMap(parser);
+		// plain values without any '$' are not parsed at all
+		variablesMap.put("shared", "${base}/$hared");
+		variablesMap.put("base", "/opt");
+		for ( int i = 0; i < 10; i++ )
+		{
+			variablesMap.put("dependent." + i, "${shared}/" + i);
+		}
+		assertEquals("/opt/$hared/9", variablesMap.get("dependent.9"));
+		// the resolved shared value is parsed once, then served from the cache for other dependents
+		assertTrue(parser.getHitCount() >= 9);
+	}
+
+	@Test
+	public void verifyBounded()
+	{
+		CachingParser parser = new CachingParser(new AntStyleParser(), 100);
+		for ( int i = 0; i < 1000; i++ )
+		{
+			parser.parse("${key." + i + "}");
+		}
+		assertTrue(parser.size() < 100);
+	}
+
+	@Test
+	public void verifySyntaxErrorPropagated()
+	{
+		CachingParser parser = new CachingParser(new AntStyleParser());
+		try
+		{
+			parser.parse("${foo");
+			fail("Expected an IllegalArgumentException for syntaxically incorrect value");
+		} catch (IllegalArgumentException expected)
+		{
+			// ok
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Run all variable resolving tests against a compact {@link VariablesMap}, and check literal values are neither
+ * parsed nor kept twice.
+ */
+public class CompactVariablesMapTestCase
+    extends VariableResolvingTestCase
+{
+	private static final int ENTRIES = 10000;
+
+	/**
+	 * Parser counting parsed patterns.
+	 */
+	private static final class CountingParser extends AntStyleParser
+	{
+		private int parsed = 0;
+
+		@Override
+		public Appender parse( String pattern )
+		{
+			parsed++;
+			return super.parse(pattern);
+		}
+	}
+
+	@Override
+	protected VariablesMap newVariablesMap()
+	{
+		VariablesMap variablesMap = super.newVariablesMap();
+		variablesMap.setCompact(true);
+		return variablesMap;
+	}
+
+	@Test
+	public void verifyLiteralsNotParsed()
+	{
+		CountingParser parser = new CountingParser();
+		VariablesMap variablesMap = new VariablesMap(parser);
+		variablesMap.setCompact(true);
+		variablesMap.put("host", "localhost");
+		variablesMap.put("port", "8080");
+		assertEquals(0, parser.parsed);
+
+		variablesMap.put("url", "http://${host}:${port}/");
+		assertEquals("http://localhost:8080/", variablesMap.get("url"));
+		int parsed = parser.parsed;
+
+		// Dropped once resolved, parsed again when its dependencies change
+		variablesMap.put("port", "9090");
+		assertEquals("http://localhost:9090/", variablesMap.get("url"));
+		assertEquals(parsed + 1, parser.parsed);
+		assertEquals("localhost", variablesMap.get("host"));
+	}
+
+	@Test
+	public void verifyCompactModeSwitched()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.put("name", "rocoto");
+		variablesMap.put("greeting", "hello ${name}");
+		variablesMap.setCompact(true);
+		assertEquals("hello rocoto", variablesMap.get("greeting"));
+		variablesMap.put("name", "guice");
+		assertEquals("hello guice", variablesMap.get("greeting"));
+		variablesMap.setCompact(false);
+		assertEquals("hello guice", variablesMap.get("greeting"));
+		assertEquals(2, variablesMap.size());
+	}
+
+	/**
+	 * @return Map loaded with the given entries, all resolved
+	 */
+	private static VariablesMap load( Map<String, String> entries, boolean compact )
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.setCompact(compact);
+		variablesMap.putAll(entries);
+		return variablesMap;
+	}
+
+	@Test
+	public void verifyResolversDropped()
+	{
+		// Large configuration made of literal values mostly
+		Map<String, String> entries = new HashMap<String, String>();
+		for ( int i = 0; i < ENTRIES; i++ )
+		{
+			entries.put("entry." + i, i % 10 == 0 ? "${entry." + (i + 1) + "}/path" : "value of entry " + i);
+		}
+
+		VariablesMap regular = load(entries, false);
+		VariablesMap compact = load(entries, true);
+		assertEquals(ENTRIES, regular.getResolverCount());
+		// No resolver for literal values, resolvers of other values dropped once resolved
+		assertEquals(0, compact.getResolverCount());
+		assertEquals(new HashMap<String, String>(regular), new HashMap<String, String>(compact));
+
+		compact.put("entry.1", "changed");
+		assertEquals("changed/path", compact.get("entry.0"));
+		assertEquals(0, compact.getResolverCount());
+	}
+
+}
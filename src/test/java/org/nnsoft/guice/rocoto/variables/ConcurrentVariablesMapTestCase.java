@@ -0,0 +1,338 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.text.MessageFormat.format;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress {@link ConcurrentVariablesMap} with many threads, checking results against {@link VariableResolvingTestCase}
+ * expectations and a sequential {@link VariablesMap}.
+ */
+public class ConcurrentVariablesMapTestCase
+{
+	private static final int THREADS = 8;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp()
+	{
+		executor = Executors.newFixedThreadPool(THREADS + 2);
+	}
+
+	@After
+	public void tearDown()
+	{
+		executor.shutdownNow();
+	}
+
+	private static void waitFor( List<Future<Void>> futures ) throws Exception
+	{
+		for ( Future<Void> future : futures )
+		{
+			future.get();
+		}
+	}
+
+	/**
+	 * Apply the given changes to both maps, checking values and cycles match after each of them.
+	 * 
+	 * @param changes Entries to put, keys alone to remove
+	 */
+	private static void assertSameAsVariablesMap( ConcurrentVariablesMap variablesMap, VariablesMap expected,
+			String... changes )
+	{
+		for ( String change : changes )
+		{
+			int separator = change.indexOf('=');
+			if ( separator < 0 )
+			{
+				variablesMap.remove(change);
+				expected.remove(change);
+			} else
+			{
+				variablesMap.put(change.substring(0, separator), change.substring(separator + 1));
+				expected.put(change.substring(0, separator), change.substring(separator + 1));
+			}
+			assertEquals(change, new HashMap<String, String>(expected), new HashMap<String, String>(variablesMap));
+			assertEquals(change, new HashSet<Set<String>>(expected.getCycles().getCycles()),
+					new HashSet<Set<String>>(variablesMap.getCycles().getCycles()));
+		}
+	}
+
+	@Test
+	public void verifyFixtureLoadedConcurrently() throws Exception
+	{
+		final ConcurrentVariablesMap variablesMap = new ConcurrentVariablesMap();
+		final Map<String, String> fixture = VariableResolvingTestCase.fixture();
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for ( int t = 0; t < THREADS; t++ )
+		{
+			final Random random = new Random(t);
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				public Void call()
+				{
+					for ( int i = 0; i < 20; i++ )
+					{
+						List<String> keys = new ArrayList<String>(fixture.keySet());
+						Collections.shuffle(keys, random);
+						for ( String key : keys )
+						{
+							variablesMap.put(key, fixture.get(key));
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		waitFor(futures);
+
+		VariablesMap expected = new VariablesMap();
+		expected.putAll(fixture);
+		assertEquals(new HashMap<String, String>(expected), new HashMap<String, String>(variablesMap));
+
+		// a few expectations of VariableResolvingTestCase
+		assertEquals("One, Two, Three", variablesMap.get("simple"));
+		assertEquals("I'm here to kill it with fire!", variablesMap.get("withLotsOfDefault"));
+		assertEquals("Property: One!", variablesMap.get("dynamicDefaultVariable"));
+		assertEquals("Hi!", variablesMap.get("hello.i18n"));
+		assertEquals("yeah", variablesMap.get("trimDynamic"));
+	}
+
+	@Test
+	public void verifyIndependentGroupsUnderLoad() throws Exception
+	{
+		final ConcurrentVariablesMap variablesMap = new ConcurrentVariablesMap();
+		variablesMap.putAll(VariableResolvingTestCase.fixture());
+		variablesMap.put("shared", "A");
+
+		final AtomicBoolean done = new AtomicBoolean();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for ( int t = 0; t < THREADS; t++ )
+		{
+			final String group = "group." + t;
+			variablesMap.put(group + ".label", "${" + group + ".name} v${" + group + ".version} of ${shared} (${prop.1})");
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				public Void call()
+				{
+					variablesMap.put(group + ".name", group);
+					for ( int i = 0; i < 500; i++ )
+					{
+						variablesMap.put(group + ".version", String.valueOf(i));
+						String label = variablesMap.get(group + ".label");
+						String prefix = format("{0} v{1} of ", group, String.valueOf(i));
+						assertTrue(label, label.equals(prefix + "A (One)") || label.equals(prefix + "B (One)"));
+					}
+					return null;
+				}
+			}));
+		}
+
+		// a writer shared by all groups, and a reader
+		Future<Void> sharedWriter = executor.submit(new Callable<Void>()
+		{
+			public Void call()
+			{
+				for ( int i = 0; !done.get(); i++ )
+				{
+					variablesMap.put("shared", i % 2 == 0 ? "B" : "A");
+				}
+				variablesMap.put("shared", "A");
+				return null;
+			}
+		});
+		Future<Void> reader = executor.submit(new Callable<Void>()
+		{
+			public Void call()
+			{
+				while (!done.get())
+				{
+					for ( int t = 0; t < THREADS; t++ )
+					{
+						String label = variablesMap.get("group." + t + ".label");
+						assertTrue(label, label.startsWith("${group.") || label.startsWith("group." + t + " v"));
+					}
+				}
+				return null;
+			}
+		});
+
+		try
+		{
+			waitFor(futures);
+		} finally
+		{
+			done.set(true);
+		}
+		sharedWriter.get();
+		reader.get();
+
+		VariablesMap expected = new VariablesMap();
+		for ( String key : variablesMap.keySet() )
+		{
+			expected.put(key, variablesMap.get(key));
+		}
+		for ( int t = 0; t < THREADS; t++ )
+		{
+			assertEquals(format("group.{0} v499 of A (One)", String.valueOf(t)), variablesMap.get("group." + t + ".label"));
+		}
+		assertEquals(new HashMap<String, String>(expected), new HashMap<String, String>(variablesMap));
+	}
+
+	@Test
+	public void verifyCyclesSameAsVariablesMap()
+	{
+		ConcurrentVariablesMap variablesMap = new ConcurrentVariablesMap();
+		VariablesMap expected = new VariablesMap();
+
+		// a change within a cycle doesn't keep the previous values
+		assertSameAsVariablesMap(variablesMap, expected, "a=x${b}", "b=${a}", "a=y${b}", "a=z${b}");
+		assertEquals("z${b}", variablesMap.get("a"));
+
+		// a doubled cycle doesn't grow
+		assertSameAsVariablesMap(variablesMap, expected, "a=${b}${c}", "c=${a}", "a=${b}${c}", "b=${a}");
+		assertEquals("${b}${c}", variablesMap.get("a"));
+
+		// self-referencing keys, and keys depending on them
+		assertSameAsVariablesMap(variablesMap, expected, "self=${self}", "twice=${self}${self}", "self=!${self}");
+		assertEquals("!${self}!${self}", variablesMap.get("twice"));
+
+		// cycle through a dynamic key and a default value, then broken
+		assertSameAsVariablesMap(variablesMap, expected, "name=b", "d=${${name}}!", "e=${missing|${d}}", "name=e");
+		assertEquals(2, variablesMap.getCycles().getCycle("d").size());
+		assertSameAsVariablesMap(variablesMap, expected, "e=end", "b", "a=done");
+		assertNull(variablesMap.getCycles().getCycle("d"));
+		assertEquals("end!", variablesMap.get("d"));
+	}
+
+	@Test(timeout = 30000)
+	public void verifyRandomCyclesSameAsVariablesMap()
+	{
+		Random random = new Random(5);
+		for ( int run = 0; run < 300; run++ )
+		{
+			int count = 4 + random.nextInt(8);
+			String[] changes = new String[3 * count];
+			for ( int i = 0; i < changes.length; i++ )
+			{
+				String key = (random.nextInt(4) == 0 ? "i" : "k") + random.nextInt(count);
+				if ( random.nextInt(8) == 0 )
+				{
+					changes[i] = key;
+				} else
+				{
+					changes[i] = key + '=' + (key.startsWith("i") ? String.valueOf(random.nextInt(count))
+							: VariableCyclesTestCase.randomValue(random, count));
+				}
+			}
+			assertSameAsVariablesMap(new ConcurrentVariablesMap(), new VariablesMap(), changes);
+		}
+	}
+
+	@Test
+	public void verifyCyclesLoadedConcurrently() throws Exception
+	{
+		final ConcurrentVariablesMap variablesMap = new ConcurrentVariablesMap();
+		final Map<String, String> entries = new HashMap<String, String>();
+		for ( int t = 0; t < THREADS; t++ )
+		{
+			entries.put("ring." + t, "${ring." + (t + 1) % THREADS + "}" + t);
+			entries.put("self." + t, "${self." + t + "}${ring." + t + "}");
+			entries.put("index." + t, String.valueOf(t));
+			entries.put("dynamic." + t, "${dynamic.${index." + (t + 1) % THREADS + "}}");
+		}
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for ( int t = 0; t < THREADS; t++ )
+		{
+			final Random random = new Random(t);
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				public Void call()
+				{
+					for ( int i = 0; i < 20; i++ )
+					{
+						List<String> keys = new ArrayList<String>(entries.keySet());
+						Collections.shuffle(keys, random);
+						for ( String key : keys )
+						{
+							variablesMap.put(key, entries.get(key));
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		waitFor(futures);
+
+		VariablesMap expected = new VariablesMap();
+		expected.putAll(entries);
+		assertEquals(new HashMap<String, String>(expected), new HashMap<String, String>(variablesMap));
+		assertEquals(new HashSet<Set<String>>(expected.getCycles().getCycles()),
+				new HashSet<Set<String>>(variablesMap.getCycles().getCycles()));
+		assertEquals("${ring.1}0", variablesMap.get("ring.0"));
+	}
+
+	@Test
+	public void verifyConditionalChanges()
+	{
+		ConcurrentVariablesMap variablesMap = new ConcurrentVariablesMap();
+		variablesMap.put("host", "localhost");
+		variablesMap.put("url", "http://${host}/");
+
+		assertEquals("localhost", variablesMap.putIfAbsent("host", "example.org"));
+		assertNull(variablesMap.putIfAbsent("port", "80"));
+		assertNull(variablesMap.replace("missing", "value"));
+		assertFalse(variablesMap.containsKey("missing"));
+
+		assertFalse(variablesMap.replace("url", "http://example.org/", "${host}"));
+		assertTrue(variablesMap.replace("host", "localhost", "example.org"));
+		assertEquals("http://example.org/", variablesMap.get("url"));
+
+		assertFalse(variablesMap.remove("host", "localhost"));
+		assertTrue(variablesMap.remove("host", "example.org"));
+		assertEquals("http://${host}/", variablesMap.get("url"));
+
+		variablesMap.clear();
+		assertTrue(variablesMap.isEmpty());
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Check resolution takes constant stack depth, however deep references are chained: values are resolved on a thread
+ * whose stack overflows after a few hundred nested calls.
+ */
+public class DeepReferenceChainTestCase
+{
+	private static final int DEPTH = 5000;
+
+	private static final long STACK_SIZE = 256 * 1024;
+
+	private static <T> T onSmallStack( final Callable<T> callable ) throws Throwable
+	{
+		final AtomicReference<T> result = new AtomicReference<T>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread thread = new Thread(null, new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					result.set(callable.call());
+				} catch (Throwable e)
+				{
+					failure.set(e);
+				}
+			}
+		}, "small-stack", STACK_SIZE);
+		thread.start();
+		thread.join();
+		if ( failure.get() != null )
+		{
+			throw failure.get();
+		}
+		return result.get();
+	}
+
+	/**
+	 * @return chain.0 = ${chain.1}, chain.1 = ${chain.2}... down to the given last value
+	 */
+	private static Map<String, String> chain( String pattern, String last )
+	{
+		Map<String, String> chain = new HashMap<String, String>();
+		for ( int i = 0; i < DEPTH; i++ )
+		{
+			chain.put("chain." + i, pattern.replace("NEXT", "chain." + (i + 1)));
+		}
+		chain.put("chain." + DEPTH, last);
+		return chain;
+	}
+
+	private static void verifyResolved( final Parser parser, final Map<String, String> configuration, String expected )
+			throws Throwable
+	{
+		assertEquals(expected, onSmallStack(new Callable<String>()
+		{
+			public String call()
+			{
+				return parser.parse("${chain.0}").resolve(configuration);
+			}
+		}));
+	}
+
+	@Test
+	public void verifyChainResolvedByParsers() throws Throwable
+	{
+		StringBuilder nested = new StringBuilder();
+		for ( int i = 0; i < DEPTH; i++ )
+		{
+			nested.append('<');
+		}
+		nested.append("end");
+		for ( int i = 0; i < DEPTH; i++ )
+		{
+			nested.append('>');
+		}
+
+		for ( Parser parser : new Parser[] { new AntStyleParser(), new AntStyleParser(true),
+				new CachingParser(new AntStyleParser()) } )
+		{
+			verifyResolved(parser, chain("${NEXT}", "end"), "end");
+			verifyResolved(parser, chain("<${NEXT}>", "end"), nested.toString());
+			verifyResolved(parser, chain("${missing|${NEXT}}", "end"), "end");
+			verifyResolved(parser, chain("${chain.${NEXT}}", "end"), "${chain.${chain.1}}");
+		}
+	}
+
+	@Test
+	public void verifyDeeplyNestedDefaults() throws Throwable
+	{
+		final StringBuilder pattern = new StringBuilder();
+		for ( int i = 0; i < DEPTH; i++ )
+		{
+			pattern.append("${missing.").append(i).append('|');
+		}
+		pattern.append("${found}");
+		for ( int i = 0; i < DEPTH; i++ )
+		{
+			pattern.append('}');
+		}
+		final Map<String, String> configuration = new HashMap<String, String>();
+		configuration.put("found", "deep");
+		// Parsed outside: compiling recurses through nested variables, as deep as the parser allows
+		final Resolver resolver = new AntStyleParser(false, DEPTH + 1).parse(pattern.toString());
+		assertEquals("deep", onSmallStack(new Callable<String>()
+		{
+			public String call()
+			{
+				return resolver.resolve(configuration);
+			}
+		}));
+	}
+
+	@Test
+	public void verifyChainResolvedByVariablesMap() throws Throwable
+	{
+		final Map<String, String> chain = chain("${NEXT}/", "end");
+		assertEquals("end", onSmallStack(new Callable<String>()
+		{
+			public String call()
+			{
+				// Keys looked up before being resolved are resolved first
+				Map<String, String> built = new VariablesMap.Builder().putAll(chain).build();
+				VariablesMap lazy = new VariablesMap();
+				lazy.setLazy(true);
+				lazy.putAll(chain);
+				assertEquals(built.get("chain.0"), lazy.get("chain.0"));
+				assertEquals(built, lazy);
+				return built.get("chain." + DEPTH);
+			}
+		}));
+		assertEquals(DEPTH + 3, new VariablesMap.Builder().putAll(chain).build().get("chain.0").length());
+	}
+
+	@Test
+	public void verifyChainResolvedByConcurrentVariablesMap() throws Throwable
+	{
+		final Map<String, String> chain = chain("${NEXT}", "end");
+		assertEquals("changed", onSmallStack(new Callable<String>()
+		{
+			public String call()
+			{
+				ConcurrentVariablesMap variablesMap = new ConcurrentVariablesMap();
+				for ( int i = DEPTH; i >= 0; i-- )
+				{
+					variablesMap.put("chain." + i, chain.get("chain." + i));
+				}
+				assertEquals("end", variablesMap.get("chain.0"));
+				variablesMap.put("chain." + DEPTH, "changed");
+				return variablesMap.get("chain.0");
+			}
+		}));
+	}
+
+}
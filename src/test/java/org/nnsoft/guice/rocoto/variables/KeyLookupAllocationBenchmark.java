@@ -0,0 +1,118 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+import static java.lang.String.format;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manual benchmark printing the bytes allocated by resolving templates referencing 10 and 20 keys, run its main method
+ * from the test classpath on a HotSpot VM: the difference should be the characters added to the buffer and the result.
+ */
+public final class KeyLookupAllocationBenchmark
+{
+
+	private static final int RUNS = 20000;
+
+	/**
+	 * Configuration looking keys up by id.
+	 */
+	private static final class Lookup extends AbstractMap<String, String> implements SymbolLookup
+	{
+		private final SymbolMap<String> values = new SymbolMap<String>(new SymbolTable());
+
+		public SymbolTable getSymbols()
+		{
+			return values.getSymbols();
+		}
+
+		public String get( int id )
+		{
+			return values.get(id);
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet()
+		{
+			return values.entrySet();
+		}
+	}
+
+	public static void main( String[] args )
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if ( !(threads instanceof com.sun.management.ThreadMXBean) )
+		{
+			System.out.println("Allocated bytes are not available on this VM");
+			return;
+		}
+		for ( boolean dynamic : new boolean[] { false, true } )
+		{
+			for ( Parser parser : new Parser[] { new CachingParser(new AntStyleParser()),
+					new CachingParser(new AntStyleParser(true)) } )
+			{
+				Lookup configuration = new Lookup();
+				for ( int references : new int[] { 10, 20 } )
+				{
+					String template = template(configuration, references, dynamic);
+					System.out.println(format("%-8s %-9s %2d references %6d bytes/op", dynamic ? "dynamic" : "static",
+							parser.parse("${a}") instanceof CompiledTemplate ? "compiled" : "tree", references,
+							allocatedPerResolution(threads, parser.parse(template), configuration)));
+				}
+			}
+		}
+	}
+
+	private static String template( Lookup configuration, int references, boolean dynamic )
+	{
+		StringBuilder template = new StringBuilder();
+		for ( int i = 0; i < references; i++ )
+		{
+			configuration.values.put("key." + i, "value" + i);
+			if ( dynamic )
+			{
+				configuration.values.put("index." + i, String.valueOf(i));
+				template.append("${key.${index.").append(i).append("}} ");
+			} else
+			{
+				template.append("${key.").append(i).append("} ");
+			}
+		}
+		return template.toString();
+	}
+
+	private static long allocatedPerResolution( ThreadMXBean threads, Resolver resolver,
+			Map<String, String> configuration )
+	{
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long thread = Thread.currentThread().getId();
+		for ( int i = 0; i < RUNS; i++ )
+		{
+			resolver.resolve(configuration);
+		}
+		long start = allocations.getThreadAllocatedBytes(thread);
+		for ( int i = 0; i < RUNS; i++ )
+		{
+			resolver.resolve(configuration);
+		}
+		return (allocations.getThreadAllocatedBytes(thread) - start) / RUNS;
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Check keys are looked up without making strings out of them: keys known when parsing and keys resolved into reusable
+ * buffers are looked up by id, the configuration is never asked for a key by name.
+ */
+public class KeyLookupTestCase
+{
+
+	/**
+	 * Configuration counting look ups by id and by name.
+	 */
+	private static final class CountingLookup extends AbstractMap<String, String> implements SymbolLookup
+	{
+		private final SymbolMap<String> values = new SymbolMap<String>(new SymbolTable());
+
+		private int byId = 0;
+
+		private int byName = 0;
+
+		public SymbolTable getSymbols()
+		{
+			return values.getSymbols();
+		}
+
+		public String get( int id )
+		{
+			byId++;
+			return values.get(id);
+		}
+
+		@Override
+		public String get( Object key )
+		{
+			byName++;
+			return values.get(key);
+		}
+
+		@Override
+		public boolean containsKey( Object key )
+		{
+			byName++;
+			return values.containsKey(key);
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet()
+		{
+			return values.entrySet();
+		}
+	}
+
+	/**
+	 * Build a template referencing the given number of keys, either directly or through an index key.
+	 */
+	private static String[] template( CountingLookup configuration, int references, boolean dynamic )
+	{
+		StringBuilder template = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for ( int i = 0; i < references; i++ )
+		{
+			configuration.values.put("key." + i, "value" + i);
+			if ( dynamic )
+			{
+				configuration.values.put("index." + i, String.valueOf(i));
+				template.append("${key.${index.").append(i).append("}} ");
+			} else
+			{
+				template.append("${key.").append(i).append("} ");
+			}
+			expected.append("value").append(i).append(' ');
+		}
+		return new String[] { template.toString(), expected.toString() };
+	}
+
+	private static void verifyLookedUpById( boolean dynamic )
+	{
+		for ( Parser parser : new Parser[] { new AntStyleParser(), new AntStyleParser(true) } )
+		{
+			CountingLookup configuration = new CountingLookup();
+			String[] template = template(configuration, 10, dynamic);
+			Resolver resolver = parser.parse(template[0]);
+			for ( int i = 1; i <= 3; i++ )
+			{
+				assertEquals(template[1], resolver.resolve(configuration));
+				assertEquals(0, configuration.byName);
+				// Index keys are looked up as well
+				assertEquals(i * (dynamic ? 20 : 10), configuration.byId);
+			}
+
+			// Configurations without ids are looked up by name
+			Map<String, String> plain = new HashMap<String, String>(configuration);
+			assertEquals(template[1], resolver.resolve(plain));
+		}
+	}
+
+	@Test
+	public void verifyStaticKeys()
+	{
+		verifyLookedUpById(false);
+	}
+
+	@Test
+	public void verifyDynamicKeys()
+	{
+		verifyLookedUpById(true);
+	}
+
+	@Test
+	public void verifyIdsOfCharacterSequences()
+	{
+		SymbolTable symbols = new SymbolTable();
+		String name = new String("key.42");
+		int id = symbols.intern(name);
+		StringBuilder buffer = new StringBuilder("prefix.key.42");
+		assertEquals(id, symbols.idOf(buffer.subSequence(7, buffer.length())));
+		assertEquals(id, symbols.idOf(new StringBuilder("key.42")));
+		assertEquals(-1, symbols.idOf(new StringBuilder("key.43")));
+		// The interned name is used from then on, no string is made out of the buffer
+		assertSame(name, symbols.nameOf(symbols.idOf(new StringBuilder("key.42"))));
+	}
+
+}
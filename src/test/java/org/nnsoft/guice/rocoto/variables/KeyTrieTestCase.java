@@ -0,0 +1,194 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Check {@link KeyTrie} behaves as a sorted map, and its namespace views.
+ */
+public class KeyTrieTestCase
+{
+	private static final String[] SEGMENTS = { "db", "primary", "replica", "pool", "max", "min", "p", "" };
+
+	private static String randomKey( Random random )
+	{
+		StringBuilder key = new StringBuilder();
+		int segments = 1 + random.nextInt(4);
+		for ( int i = 0; i < segments; i++ )
+		{
+			if ( i > 0 )
+			{
+				key.append('.');
+			}
+			key.append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return Entries of the given map whose key starts with the given prefix, keyed by the rest of their key
+	 */
+	private static Map<String, String> namespace( TreeMap<String, String> map, String prefix )
+	{
+		Map<String, String> namespace = new TreeMap<String, String>();
+		for ( Entry<String, String> entry : map.entrySet() )
+		{
+			if ( entry.getKey().startsWith(prefix) )
+			{
+				namespace.put(entry.getKey().substring(prefix.length()), entry.getValue());
+			}
+		}
+		return namespace;
+	}
+
+	private static List<String> keys( Map<String, String> map )
+	{
+		return new ArrayList<String>(map.keySet());
+	}
+
+	@Test
+	public void verifySameAsSortedMap()
+	{
+		Random random = new Random(42);
+		KeyTrie<String> trie = new KeyTrie<String>();
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		for ( int i = 0; i < 20000; i++ )
+		{
+			String key = randomKey(random);
+			if ( random.nextInt(3) == 0 )
+			{
+				assertEquals(expected.remove(key), trie.remove(key));
+			} else
+			{
+				String value = "v" + i;
+				assertEquals(expected.put(key, value), trie.put(key, value));
+			}
+			assertEquals(expected.size(), trie.size());
+			if ( i % 1000 == 0 )
+			{
+				assertEquals(keys(expected), keys(trie));
+				assertEquals(expected, trie);
+			}
+		}
+		assertEquals(keys(expected), keys(trie));
+		for ( String key : expected.keySet() )
+		{
+			assertEquals(expected.get(key), trie.get(key));
+		}
+		assertNull(trie.get("db.nowhere"));
+		assertFalse(trie.containsKey("d"));
+	}
+
+	@Test
+	public void verifyNamespaces()
+	{
+		Random random = new Random(7);
+		KeyTrie<String> trie = new KeyTrie<String>();
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		for ( int i = 0; i < 500; i++ )
+		{
+			String key = randomKey(random);
+			trie.put(key, "v" + i);
+			expected.put(key, "v" + i);
+		}
+
+		for ( String prefix : new String[] { "", "d", "db", "db.", "db.pr", "db.primary.", "p", "pool.max", "x" } )
+		{
+			Map<String, String> namespace = trie.subMap(prefix);
+			assertEquals(prefix, namespace(expected, prefix), new HashMap<String, String>(namespace));
+			assertEquals(prefix, keys(namespace(expected, prefix)), keys(namespace));
+			assertEquals(prefix, namespace(expected, prefix).size(), namespace.size());
+		}
+
+		// Views are live
+		Map<String, String> primary = trie.subMap("db.primary.");
+		primary.put("pool.size", "10");
+		assertEquals("10", trie.get("db.primary.pool.size"));
+		trie.put("db.primary.timeout", "30");
+		assertEquals("30", primary.get("timeout"));
+		primary.remove("timeout");
+		assertFalse(trie.containsKey("db.primary.timeout"));
+	}
+
+	@Test
+	public void verifyIteratorRemove()
+	{
+		Random random = new Random(3);
+		KeyTrie<String> trie = new KeyTrie<String>();
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		for ( int i = 0; i < 1000; i++ )
+		{
+			String key = randomKey(random);
+			trie.put(key, "v" + i);
+			expected.put(key, "v" + i);
+		}
+
+		Iterator<String> keys = trie.subMap("db.").keySet().iterator();
+		while (keys.hasNext())
+		{
+			String key = keys.next();
+			if ( key.length() % 2 == 0 )
+			{
+				keys.remove();
+				expected.remove("db." + key);
+			}
+		}
+		assertEquals(keys(expected), keys(trie));
+
+		trie.subMap("p").clear();
+		assertTrue(trie.subMap("p").isEmpty());
+		assertEquals(keys(expected).size() - namespace(expected, "p").size(), trie.size());
+	}
+
+	@Test
+	public void verifyVariablesMapNamespace()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.setPrefixTrie(true);
+		variablesMap.put("db.host", "localhost");
+		variablesMap.put("db.primary.url", "jdbc://${db.host}/primary");
+		variablesMap.put("db.replica.url", "jdbc://${db.host}/replica");
+		variablesMap.put("cache.url", "memcached://${db.host}");
+
+		Map<String, String> db = variablesMap.subMap("db.");
+		assertEquals(3, db.size());
+		assertEquals("jdbc://localhost/primary", db.get("primary.url"));
+
+		variablesMap.put("db.host", "remote");
+		assertEquals("jdbc://remote/replica", db.get("replica.url"));
+		assertEquals("jdbc://remote/replica", variablesMap.subMap("db.replica.").get("url"));
+
+		variablesMap.setPrefixTrie(false);
+		assertEquals(new HashMap<String, String>(db), new HashMap<String, String>(variablesMap.subMap("db.")));
+		assertEquals(3, variablesMap.subMap("db.").size());
+	}
+
+}
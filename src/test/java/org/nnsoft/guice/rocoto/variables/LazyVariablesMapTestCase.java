@@ -0,0 +1,100 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Run all variable resolving tests against a lazy {@link VariablesMap}, and check only read keys are resolved.
+ */
+public class LazyVariablesMapTestCase
+    extends VariableResolvingTestCase
+{
+
+	/**
+	 * Parser counting resolutions.
+	 */
+	private static final class CountingParser implements Parser
+	{
+		private final Parser delegate = new AntStyleParser();
+
+		private int resolutions = 0;
+
+		public Resolver parse( String input )
+		{
+			final Resolver resolver = delegate.parse(input);
+			return new Resolver()
+			{
+				public String resolve( Map<String, String> data )
+				{
+					resolutions++;
+					return resolver.resolve(data);
+				}
+
+				public boolean needsResolving()
+				{
+					return resolver.needsResolving();
+				}
+			};
+		}
+	}
+
+	@Override
+	protected VariablesMap newVariablesMap()
+	{
+		VariablesMap variablesMap = super.newVariablesMap();
+		variablesMap.setLazy(true);
+		return variablesMap;
+	}
+
+	@Test
+	public void verifyOnlyReadKeysResolved()
+	{
+		CountingParser parser = new CountingParser();
+		VariablesMap variablesMap = new VariablesMap(parser);
+		variablesMap.setLazy(true);
+
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("schema", "rocoto");
+		for ( int i = 0; i < 1000; i++ )
+		{
+			properties.put("cluster." + i + ".host", "host-" + i + ".${domain|local}");
+			properties.put("cluster." + i + ".url", "jdbc://${cluster." + i + ".host}/${schema}");
+		}
+		variablesMap.putAll(properties);
+		assertEquals(0, parser.resolutions);
+
+		assertEquals("jdbc://host-42.local/rocoto", variablesMap.get("cluster.42.url"));
+		assertEquals(2, parser.resolutions);
+		assertEquals("jdbc://host-42.local/rocoto", variablesMap.get("cluster.42.url"));
+		assertEquals(2, parser.resolutions);
+
+		// upstream change invalidates dependents only
+		variablesMap.put("domain", "example.org");
+		assertEquals("jdbc://host-42.example.org/rocoto", variablesMap.get("cluster.42.url"));
+		assertEquals(4, parser.resolutions);
+
+		// reading all entries resolves them all
+		assertEquals("jdbc://host-7.example.org/rocoto", new HashMap<String, String>(variablesMap).get("cluster.7.url"));
+		assertEquals(4 + 999 * 2, parser.resolutions);
+	}
+
+}
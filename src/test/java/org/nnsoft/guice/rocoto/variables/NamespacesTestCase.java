@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.inject.Guice.createInjector;
+import static com.google.inject.name.Names.named;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.nnsoft.guice.rocoto.Rocoto.expandVariables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nnsoft.guice.rocoto.configuration.ConfigurationModule;
+
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+/**
+ * Check keys prefixed by a namespace are looked up lazily.
+ */
+public class NamespacesTestCase
+{
+
+	/**
+	 * Lookup recording the names looked up.
+	 */
+	private static final class RecordingLookup implements Lookup
+	{
+		private final List<String> names = new ArrayList<String>();
+
+		public String lookup( String name )
+		{
+			names.add(name);
+			return name.startsWith("known") ? name.toUpperCase() : null;
+		}
+	}
+
+	@Test
+	public void verifyLookedUpWhenReferenced()
+	{
+		RecordingLookup lookup = new RecordingLookup();
+		Map<String, String> variables = new VariablesMap.Builder()
+				.withNamespaces(Namespaces.NONE.with("test", lookup))
+				.put("value", "${test:known.value}")
+				.put("missing", "${test:missing|default}")
+				.put("unknown", "${other:known.value}")
+				.put("test:overridden", "from map")
+				.put("overridden", "${test:overridden}")
+				.build();
+
+		assertEquals("KNOWN.VALUE", variables.get("value"));
+		assertEquals("default", variables.get("missing"));
+		assertEquals("${other:known.value}", variables.get("unknown"));
+		assertEquals("from map", variables.get("overridden"));
+		assertNull(variables.get("test:known.value"));
+		assertEquals(2, lookup.names.size());
+	}
+
+	@Test
+	public void verifyDefaultNamespaces()
+	{
+		Map<String, String> variables = new VariablesMap.Builder().withNamespaces(Namespaces.DEFAULT)
+				.put("dir", "${sys:user.dir}/target")
+				.build();
+		assertEquals(System.getProperty("user.dir") + "/target", variables.get("dir"));
+		assertEquals(System.getProperty("user.dir"), Namespaces.DEFAULT.lookup("sys:user.dir"));
+		assertEquals(System.getenv("PATH"), Namespaces.DEFAULT.lookup("env:PATH"));
+		assertNull(Namespaces.DEFAULT.lookup("user.dir"));
+		assertNull(Namespaces.NONE.lookup("sys:user.dir"));
+	}
+
+	@Test
+	public void verifyNamespaceReplaced()
+	{
+		Namespaces namespaces = Namespaces.DEFAULT.with("sys", new Lookup()
+		{
+			public String lookup( String name )
+			{
+				return "replaced";
+			}
+		});
+		assertEquals(2, namespaces.getNamespaces().size());
+		assertEquals("replaced", namespaces.lookup("sys:user.dir"));
+	}
+
+	@Test
+	public void verifyNamespacesChanged()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.put("dir", "${sys:user.dir}");
+		assertEquals("${sys:user.dir}", variablesMap.get("dir"));
+		variablesMap.setNamespaces(Namespaces.DEFAULT);
+		assertEquals(System.getProperty("user.dir"), variablesMap.get("dir"));
+	}
+
+	private static ConfigurationModule suitesModule()
+	{
+		return new ConfigurationModule()
+		{
+			@Override
+			protected void bindConfigurations()
+			{
+				bindProperty("test.suites").toValue("${sys:user.dir}/src/test/resources/testng.xml");
+				bindProperty("home").toValue("${env:HOME|none}");
+			}
+		};
+	}
+
+	@Test
+	public void verifyNotExpandedByRocotoByDefault()
+	{
+		Injector injector = createInjector(expandVariables(suitesModule()));
+		assertEquals("${sys:user.dir}/src/test/resources/testng.xml",
+				injector.getInstance(Key.get(String.class, named("test.suites"))));
+		assertEquals("none", injector.getInstance(Key.get(String.class, named("home"))));
+	}
+
+	@Test
+	public void verifyExpandedByRocotoWhenEnabled()
+	{
+		String dir = createInjector(expandVariables(Namespaces.DEFAULT, suitesModule())).getInstance(
+				Key.get(String.class, named("test.suites")));
+		assertEquals(System.getProperty("user.dir") + "/src/test/resources/testng.xml", dir);
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * Run all variable resolving tests against a {@link VariablesMap} keeping every value out of the heap, and check large
+ * values are kept out of the heap.
+ */
+public class OffHeapVariablesMapTestCase
+    extends VariableResolvingTestCase
+{
+	private static final int BLOBS = 8;
+
+	private static final int BLOB_LENGTH = 64 * 1024;
+
+	@Override
+	protected VariablesMap newVariablesMap()
+	{
+		VariablesMap variablesMap = super.newVariablesMap();
+		variablesMap.setValueStore(new ValueStore(0, false));
+		return variablesMap;
+	}
+
+	private static String blob( int seed, int length )
+	{
+		StringBuilder blob = new StringBuilder(length);
+		blob.append("-----BEGIN CERTIFICATE ").append(seed).append("-----\n");
+		while (blob.length() < length)
+		{
+			blob.append("MIIDdzCCAl+gAwIBAgIEAgAAuTANBgkqhkiG9w0BAQUFADBaMQswCQYDVQQGEwJJ\u00e9\n");
+		}
+		return blob.toString();
+	}
+
+	@Test
+	public void verifyStored()
+	{
+		for ( boolean compressed : new boolean[] { false, true } )
+		{
+			ValueStore store = new ValueStore(1024, compressed);
+			assertSame("small", store.store("small"));
+
+			String blob = blob(0, BLOB_LENGTH);
+			Object stored = store.store(blob);
+			assertFalse(stored instanceof String);
+			assertEquals(blob, ValueStore.load(stored));
+			assertEquals(blob.hashCode(), stored.hashCode());
+			assertEquals(stored, store.store(blob));
+			assertEquals(2, store.getStoredCount());
+			if ( compressed )
+			{
+				assertTrue(store.getStoredBytes() < blob.length() / 10);
+			}
+		}
+	}
+
+	@Test
+	public void verifyLargeValuesResolved()
+	{
+		String certificate = blob(0, 8 * 1024);
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.setValueStore(new ValueStore(1024, true));
+		variablesMap.put("certificate", certificate);
+		variablesMap.put("bundle", "${certificate}${certificate}");
+		variablesMap.put("name", "server");
+
+		assertEquals(certificate + certificate, variablesMap.get("bundle"));
+		assertEquals("server", variablesMap.get("name"));
+		assertEquals(certificate, variablesMap.getSnapshot().get("certificate"));
+		assertEquals(new HashMap<String, String>(variablesMap), variablesMap.getSnapshot());
+
+		variablesMap.setPrefixTrie(true);
+		assertEquals(certificate + certificate, variablesMap.get("bundle"));
+		variablesMap.setValueStore(null);
+		assertEquals(certificate, variablesMap.get("certificate"));
+	}
+
+	@Test
+	public void verifyValuesKeptOutOfHeap()
+	{
+		ValueStore store = new ValueStore();
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.setValueStore(store);
+		for ( int i = 0; i < BLOBS; i++ )
+		{
+			variablesMap.put("blob." + i, blob(i, BLOB_LENGTH));
+		}
+		variablesMap.put("name", "server");
+
+		// Small values stay on the heap
+		assertEquals(BLOBS, store.getStoredCount());
+		assertTrue(store.getStoredBytes() >= (long) BLOBS * BLOB_LENGTH);
+		for ( int i = 0; i < BLOBS; i++ )
+		{
+			assertEquals(blob(i, BLOB_LENGTH), variablesMap.get("blob." + i));
+			assertEquals(blob(i, BLOB_LENGTH), variablesMap.getSnapshot().get("blob." + i));
+		}
+		assertEquals("server", variablesMap.get("name"));
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.lang.String.format;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Manual micro benchmark comparing resolvers, run its main method from the test classpath.
+ */
+public final class ResolverBenchmark
+{
+
+	private static final int WARMUP_ROUNDS = 5;
+
+	private static final int MEASURED_ROUNDS = 10;
+
+	private static final int ITERATIONS = 200000;
+
+	private static final String TEMPLATE = "jdbc:${db.vendor}://${db.host|localhost}:${db.port|5432}/${db.${env|prod}.schema}?user=${db.user}&ssl=${db.ssl|false}";
+
+	public static void main( String[] args )
+	{
+		Map<String, String> configuration = new HashMap<String, String>();
+		configuration.put("db.vendor", "postgresql");
+		configuration.put("db.host", "db.example.org");
+		configuration.put("db.prod.schema", "rocoto");
+		configuration.put("db.user", "${db.vendor}-user");
+
+		benchmark("appender tree", new AntStyleParser().parse(TEMPLATE), configuration);
+		benchmark("compiled template", new AntStyleParser(true).parse(TEMPLATE), configuration);
+	}
+
+	private static void benchmark( String name, Resolver resolver, Map<String, String> configuration )
+	{
+		for ( int i = 0; i < WARMUP_ROUNDS; i++ )
+		{
+			run(resolver, configuration);
+		}
+		long best = Long.MAX_VALUE;
+		for ( int i = 0; i < MEASURED_ROUNDS; i++ )
+		{
+			best = Math.min(best, run(resolver, configuration));
+		}
+		System.out.println(format("%-20s %8.1f ns/op", name, (double) best / ITERATIONS));
+	}
+
+	private static long run( Resolver resolver, Map<String, String> configuration )
+	{
+		long start = System.nanoTime();
+		int length = 0;
+		for ( int i = 0; i < ITERATIONS; i++ )
+		{
+			// fresh copy each time, resolvers may update it
+			length += resolver.resolve(new HashMap<String, String>(configuration)).length();
+		}
+		long elapsed = System.nanoTime() - start;
+		if ( length == 0 )
+		{
+			throw new IllegalStateException();
+		}
+		return elapsed;
+	}
+
+}
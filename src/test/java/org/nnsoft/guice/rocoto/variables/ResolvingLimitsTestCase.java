@@ -0,0 +1,155 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Check resolution passes stop with a clear error once they exceed their {@link ResolvingLimits}.
+ */
+public class ResolvingLimitsTestCase
+{
+	/**
+	 * Each level references the previous one twice: level n expands to 2^n characters.
+	 */
+	private static Map<String, String> doubling( int levels )
+	{
+		Map<String, String> variables = new HashMap<String, String>();
+		variables.put("level.0", "x");
+		for ( int i = 1; i <= levels; i++ )
+		{
+			variables.put("level." + i, "${level." + (i - 1) + "}${level." + (i - 1) + "}");
+		}
+		return variables;
+	}
+
+	@Test
+	public void verifyMaxValueLength()
+	{
+		VariablesMap.Builder builder = new VariablesMap.Builder().withLimits(new ResolvingLimits(1 << 10, Long.MAX_VALUE,
+				Long.MAX_VALUE));
+		for ( int i = 0; i <= 64; i++ )
+		{
+			builder.put("level." + i, i == 0 ? "x" : "${level." + (i - 1) + "}${level." + (i - 1) + "}");
+		}
+		try
+		{
+			builder.build();
+			fail("Expected a ResolvingLimitExceededException");
+		} catch (ResolvingLimitExceededException expected)
+		{
+			assertEquals("level.11", expected.getKey());
+			assertTrue(expected.getMessage(), expected.getMessage().contains("level.11"));
+		}
+	}
+
+	@Test
+	public void verifyMaxTotalLength()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.setLimits(new ResolvingLimits(Integer.MAX_VALUE, 100, Long.MAX_VALUE));
+		variablesMap.put("word", "0123456789");
+		variablesMap.put("sentence", "${word} ${word} ${word} ${word} ${word}");
+		assertEquals("0123456789 0123456789 0123456789 0123456789 0123456789", variablesMap.get("sentence"));
+		try
+		{
+			variablesMap.put("paragraph", "${sentence} ${sentence} ${sentence}");
+			fail("Expected a ResolvingLimitExceededException");
+		} catch (ResolvingLimitExceededException expected)
+		{
+			assertEquals("paragraph", expected.getKey());
+		}
+		// offending key keeps its original value
+		assertEquals("${sentence} ${sentence} ${sentence}", variablesMap.get("paragraph"));
+	}
+
+	@Test
+	public void verifyMaxSteps()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.setLimits(new ResolvingLimits(Integer.MAX_VALUE, Long.MAX_VALUE, 3));
+		variablesMap.put("a", "${b}${c}");
+		try
+		{
+			variablesMap.put("b", "${c}${c}${c}");
+			fail("Expected a ResolvingLimitExceededException");
+		} catch (ResolvingLimitExceededException expected)
+		{
+			// the pass resolves b first, its three look ups leave nothing for the dependent a
+			assertEquals("a", expected.getKey());
+		}
+	}
+
+	@Test
+	public void verifyExpandedValuesMemoized()
+	{
+		Map<String, String> variables = doubling(20);
+		Resolver resolver = new AntStyleParser().parse(variables.get("level.20"));
+		// 2^20 look ups without memoization, two per level with it
+		String resolved = ((AbstractAppender) resolver).resolve(variables, new ResolvingBudget(new ResolvingLimits(
+				Integer.MAX_VALUE, Long.MAX_VALUE, 64)), "level.20", null);
+		assertEquals(1 << 20, resolved.length());
+	}
+
+	@Test
+	public void verifyTruncatedValuesMemoized()
+	{
+		// Each level references the next one twice, the last one references the first one back
+		Map<String, String> variables = new HashMap<String, String>();
+		for ( int i = 0; i < 10; i++ )
+		{
+			variables.put("k" + i, "${k" + (i + 1) + "}${k" + (i + 1) + "}");
+		}
+		variables.put("k10", "end ${k0}");
+		Resolver resolver = new AntStyleParser().parse(variables.get("k0"));
+		// 2^11 look ups without memoization of values which detected recursion
+		String resolved = ((AbstractAppender) resolver).resolve(variables, new ResolvingBudget(new ResolvingLimits(
+				Integer.MAX_VALUE, Long.MAX_VALUE, 64)), "k0", null);
+
+		StringBuilder expected = new StringBuilder();
+		for ( int i = 0; i < 1 << 10; i++ )
+		{
+			expected.append("end ${k1}${k1}");
+		}
+		assertEquals(expected.toString(), resolved);
+	}
+
+	@Test
+	public void verifyDefaultLimits()
+	{
+		assertEquals(ResolvingLimits.DEFAULT, new VariablesMap().getLimits());
+		Map<String, String> resolved = new VariablesMap.Builder().putAll(doubling(16)).build();
+		assertEquals(1 << 16, resolved.get("level.16").length());
+
+		VariablesMap unlimited = new VariablesMap();
+		unlimited.setLimits(null);
+		assertEquals(ResolvingLimits.NONE, unlimited.getLimits());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void verifyNegativeLimitsRejected()
+	{
+		new ResolvingLimits(-1, 0, 0);
+	}
+
+}
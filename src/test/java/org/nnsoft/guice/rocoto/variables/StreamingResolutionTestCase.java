@@ -0,0 +1,175 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.text.MessageFormat.format;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Check {@link StreamingResolver#resolveTo(Appendable, Map)} writes what {@link Resolver#resolve(Map)} returns, in
+ * chunks bounded by the flush size.
+ */
+public class StreamingResolutionTestCase
+{
+
+	private static final Parser[] PARSERS = { new AntStyleParser(), new AntStyleParser(true),
+			new CachingParser(new AntStyleParser()) };
+
+	/**
+	 * Output recording the size of the largest chunk written.
+	 */
+	private static final class ChunkRecorder implements Appendable
+	{
+		private final StringBuilder written = new StringBuilder();
+
+		private int largestChunk = 0;
+
+		private int chunks = 0;
+
+		public Appendable append( CharSequence csq )
+		{
+			chunks++;
+			largestChunk = Math.max(largestChunk, csq.length());
+			written.append(csq);
+			return this;
+		}
+
+		public Appendable append( CharSequence csq, int start, int end )
+		{
+			return append(csq.subSequence(start, end));
+		}
+
+		public Appendable append( char c )
+		{
+			return append(String.valueOf(c));
+		}
+	}
+
+	private static String stream( Parser parser, String pattern, Map<String, String> configuration ) throws IOException
+	{
+		StringWriter output = new StringWriter();
+		((StreamingResolver) parser.parse(pattern)).resolveTo(output, configuration);
+		return output.toString();
+	}
+
+	@Test
+	public void verifySameAsResolve() throws IOException
+	{
+		Map<String, String> configuration = VariableResolvingTestCase.fixture();
+		configuration.put("cycle.a", "a then ${cycle.b}");
+		configuration.put("cycle.b", "b then ${cycle.a}");
+		for ( Parser parser : PARSERS )
+		{
+			for ( String pattern : configuration.values() )
+			{
+				assertEquals(pattern, parser.parse(pattern).resolve(configuration), stream(parser, pattern, configuration));
+			}
+		}
+	}
+
+	@Test
+	public void verifyStreamedInChunks() throws IOException
+	{
+		Map<String, String> configuration = new HashMap<String, String>();
+		configuration.put("table", "policies");
+		configuration.put("row", "INSERT INTO ${table} VALUES (${id|0}, '${name|unnamed}');\n");
+		StringBuilder script = new StringBuilder();
+		for ( int i = 0; i < 50000; i++ )
+		{
+			script.append("${row}");
+		}
+
+		for ( Parser parser : PARSERS )
+		{
+			Resolver resolver = parser.parse(script.toString());
+			String expected = resolver.resolve(configuration);
+			assertTrue(expected.length() > 2000000);
+
+			ChunkRecorder output = new ChunkRecorder();
+			((StreamingResolver) resolver).resolveTo(output, configuration);
+			assertEquals(expected, output.written.toString());
+			assertTrue(format("Largest chunk written {0}", output.largestChunk),
+					output.largestChunk < ResolvingContext.FLUSH_SIZE + 100);
+			assertTrue(output.chunks > expected.length() / (ResolvingContext.FLUSH_SIZE + 100));
+		}
+	}
+
+	@Test
+	public void verifyLargeValuesReferencedTwice() throws IOException
+	{
+		Map<String, String> configuration = new HashMap<String, String>();
+		configuration.put("word", "rocoto");
+		StringBuilder large = new StringBuilder();
+		for ( int i = 0; i < 10000; i++ )
+		{
+			large.append("${word} ");
+		}
+		configuration.put("large", large.toString());
+		configuration.put("twice", "${large}|${large}");
+
+		for ( Parser parser : PARSERS )
+		{
+			// Partly flushed values are expanded again
+			String expected = parser.parse("${twice}").resolve(configuration);
+			assertEquals(expected, stream(parser, "${twice}", configuration));
+			assertEquals(2 * 70000 + 1, expected.length());
+		}
+	}
+
+	@Test
+	public void verifyOutputFailurePropagated()
+	{
+		Writer failing = new Writer()
+		{
+			@Override
+			public void write( char[] cbuf, int off, int len ) throws IOException
+			{
+				throw new IOException("disk full");
+			}
+
+			@Override
+			public void flush()
+			{
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+		Map<String, String> configuration = new HashMap<String, String>();
+		configuration.put("key", "value");
+		try
+		{
+			((StreamingResolver) new AntStyleParser().parse("${key}")).resolveTo(failing, configuration);
+			fail();
+		} catch (IOException e)
+		{
+			assertEquals("disk full", e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.inject.Guice.createInjector;
+import static com.google.inject.name.Names.named;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.nnsoft.guice.rocoto.Rocoto.expandVariables;
+
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.nnsoft.guice.rocoto.configuration.ConfigurationModule;
+
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+/**
+ * Check {@link StringPool} shares identical strings across maps and injectors.
+ */
+public class StringPoolTestCase
+{
+
+	/**
+	 * @return A copy of the given string, equal but not identical
+	 */
+	private static String copy( String value )
+	{
+		return new String(value.toCharArray());
+	}
+
+	@Test
+	public void verifyInterned()
+	{
+		StringPool pool = new StringPool();
+		String value = "jdbc:mysql://localhost:3306/rocoto";
+		assertSame(value, pool.intern(value));
+		assertSame(value, pool.intern(copy(value)));
+		assertNull(pool.intern(null));
+
+		assertEquals(2, pool.getRequestCount());
+		assertEquals(1, pool.getHitCount());
+		assertTrue(pool.getSavedBytes() >= 2 * value.length());
+	}
+
+	@Test
+	public void verifyIdenticalInstances()
+	{
+		StringPool pool = new StringPool();
+		StringPool other = new StringPool();
+		String first = copy("shared");
+		assertSame(first, pool.intern(first));
+		for ( int i = 0; i < 10; i++ )
+		{
+			assertSame(first, pool.intern(copy(first)));
+		}
+		assertEquals(11, pool.getRequestCount());
+		assertEquals(10, pool.getHitCount());
+
+		// Pools are independent
+		String another = copy(first);
+		assertSame(another, other.intern(another));
+		assertSame(first, pool.intern(another));
+	}
+
+	@Test
+	public void verifySharedAcrossMaps()
+	{
+		StringPool pool = new StringPool();
+		Map<String, String> first = new VariablesMap.Builder().withStringPool(pool).put(copy("host"), copy("localhost"))
+				.put(copy("url"), "http://${host}/").build();
+		Map<String, String> second = new VariablesMap.Builder().withStringPool(pool).put(copy("host"), copy("localhost"))
+				.put(copy("url"), "http://${host}/").build();
+
+		assertSame(first.get("host"), second.get("host"));
+		assertSame(first.get("url"), second.get("url"));
+		assertSame(first.keySet().iterator().next(), pool.intern(copy(first.keySet().iterator().next())));
+		assertEquals("http://localhost/", second.get("url"));
+	}
+
+	@Test
+	public void verifySharedAcrossInjectors()
+	{
+		final StringPool pool = new StringPool();
+		Injector[] injectors = new Injector[2];
+		for ( int i = 0; i < injectors.length; i++ )
+		{
+			final Properties properties = new Properties();
+			properties.setProperty(copy("jdbc.host"), copy("localhost"));
+			properties.setProperty(copy("jdbc.url"), copy("jdbc:mysql://${jdbc.host}:3306/rocoto"));
+			injectors[i] = createInjector(expandVariables(new ConfigurationModule()
+			{
+				@Override
+				protected void bindConfigurations()
+				{
+					internStrings(pool);
+					bindProperties(properties);
+				}
+			}));
+		}
+
+		Key<String> host = Key.get(String.class, named("jdbc.host"));
+		assertSame(injectors[0].getInstance(host), injectors[1].getInstance(host));
+		assertTrue(pool.getHitCount() >= 4);
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Check {@link SymbolTable} ids are dense, {@link SymbolMap} behaves as a map, and keys known when parsing are looked
+ * up by id.
+ */
+public class SymbolTableTestCase
+{
+
+	/**
+	 * Configuration counting look ups by id and by name.
+	 */
+	private static final class CountingLookup extends AbstractMap<String, String> implements SymbolLookup
+	{
+		private final SymbolMap<String> values = new SymbolMap<String>(new SymbolTable());
+
+		private int byId = 0;
+
+		private int byName = 0;
+
+		public SymbolTable getSymbols()
+		{
+			return values.getSymbols();
+		}
+
+		public String get( int id )
+		{
+			byId++;
+			return values.get(id);
+		}
+
+		@Override
+		public String get( Object key )
+		{
+			byName++;
+			return values.get(key);
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet()
+		{
+			return values.entrySet();
+		}
+	}
+
+	@Test
+	public void verifyDenseIds()
+	{
+		SymbolTable symbols = new SymbolTable();
+		for ( int i = 0; i < 1000; i++ )
+		{
+			assertEquals(i, symbols.intern("key." + i));
+		}
+		for ( int i = 0; i < 1000; i++ )
+		{
+			assertEquals(i, symbols.intern("key." + i));
+			assertEquals(i, symbols.idOf("key." + i));
+			assertEquals("key." + i, symbols.nameOf(i));
+		}
+		assertEquals(-1, symbols.idOf("key.1000"));
+		assertEquals(1000, symbols.size());
+	}
+
+	@Test
+	public void verifySameAsMap()
+	{
+		Random random = new Random(5);
+		SymbolTable symbols = new SymbolTable();
+		SymbolMap<String> map = new SymbolMap<String>(symbols);
+		SymbolMap<String> other = new SymbolMap<String>(symbols);
+		Map<String, String> expected = new HashMap<String, String>();
+		for ( int i = 0; i < 10000; i++ )
+		{
+			String key = "key." + random.nextInt(500);
+			if ( random.nextInt(3) == 0 )
+			{
+				assertEquals(expected.remove(key), map.remove(key));
+			} else
+			{
+				assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+			}
+			other.put("other." + random.nextInt(500), "o" + i);
+			assertEquals(expected.size(), map.size());
+		}
+		assertEquals(expected, map);
+
+		Iterator<String> keys = map.keySet().iterator();
+		while (keys.hasNext())
+		{
+			String key = keys.next();
+			if ( key.hashCode() % 2 == 0 )
+			{
+				keys.remove();
+				expected.remove(key);
+			}
+		}
+		assertEquals(expected, map);
+		assertEquals(expected, new HashMap<String, String>(map));
+	}
+
+	@Test
+	public void verifyStaticKeysLookedUpById()
+	{
+		CountingLookup configuration = new CountingLookup();
+		configuration.values.put("host", "localhost");
+		configuration.values.put("port", "8080");
+
+		Resolver resolver = new AntStyleParser().parse("http://${host}:${port}/${path|index}");
+		assertEquals("http://localhost:8080/index", resolver.resolve(configuration));
+		assertEquals(2, configuration.byId);
+		// Not interned, looked up by name
+		assertEquals(1, configuration.byName);
+
+		configuration.values.put("path", "home");
+		assertEquals("http://localhost:8080/home", resolver.resolve(configuration));
+		assertEquals(5, configuration.byId);
+		assertEquals(1, configuration.byName);
+
+		// Bound again to the table of another configuration
+		CountingLookup another = new CountingLookup();
+		another.values.put("path", "other");
+		another.values.put("port", "80");
+		another.values.put("host", "remote");
+		assertEquals("http://remote:80/other", resolver.resolve(another));
+		assertEquals(3, another.byId);
+		assertEquals("http://localhost:8080/home", resolver.resolve(configuration));
+
+		// Plain maps are looked up by name
+		Map<String, String> plain = new HashMap<String, String>(another);
+		assertEquals("http://remote:80/other", resolver.resolve(plain));
+	}
+
+	@Test
+	public void verifyMapsSharingParser()
+	{
+		Parser parser = new CachingParser(new AntStyleParser());
+		VariablesMap first = new VariablesMap(parser);
+		VariablesMap second = new VariablesMap(parser);
+		second.put("padding", "shifts ids");
+		for ( VariablesMap variablesMap : new VariablesMap[] { first, second } )
+		{
+			variablesMap.put("name", variablesMap == first ? "first" : "second");
+			variablesMap.put("greeting", "Hello ${name}");
+		}
+		assertEquals("Hello first", first.get("greeting"));
+		assertEquals("Hello second", second.get("greeting"));
+
+		first.put("name", "again");
+		assertEquals("Hello again", first.get("greeting"));
+		assertEquals("Hello second", second.get("greeting"));
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.lang.String.format;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Manual throughput benchmark of per request rendering, run its main method from the test classpath: templates
+ * rendered against request lookups falling back to a configuration, compared to resolvers given a map of each request.
+ */
+public final class TemplateBenchmark
+{
+
+	private static final int WARMUP_ROUNDS = 5;
+
+	private static final int MEASURED_ROUNDS = 10;
+
+	private static final int ITERATIONS = 200000;
+
+	private static final String TEMPLATE = "${base}/users/${user}/orders/${order}?page=${page|1}&lang=${lang|en}";
+
+	/**
+	 * Rendering of a request.
+	 */
+	private interface Rendering
+	{
+		int render( int request );
+	}
+
+	public static void main( String[] args ) throws Exception
+	{
+		final Map<String, String> configuration = new HashMap<String, String>();
+		configuration.put("host", "www.example.org");
+		configuration.put("base", "https://${host}/api");
+		for ( int i = 0; i < 200; i++ )
+		{
+			configuration.put("unrelated." + i, "value " + i);
+		}
+
+		final Template template = Template.compile(TEMPLATE);
+		final Resolver resolver = new CachingParser(new AntStyleParser(true)).parse(TEMPLATE);
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		Rendering templates = new Rendering()
+		{
+			public int render( final int request )
+			{
+				return template.render(new Lookup()
+				{
+					public String lookup( String name )
+					{
+						return "user".equals(name) ? "user" + request % 100
+								: "order".equals(name) ? String.valueOf(request) : null;
+					}
+				}, configuration).length();
+			}
+		};
+		Rendering maps = new Rendering()
+		{
+			public int render( int request )
+			{
+				// Request values merged with a copy of the configuration
+				Map<String, String> merged = new HashMap<String, String>(configuration);
+				merged.put("user", "user" + request % 100);
+				merged.put("order", String.valueOf(request));
+				return resolver.resolve(merged).length();
+			}
+		};
+
+		benchmark("template, 1 thread", templates, 1);
+		benchmark("map copy, 1 thread", maps, 1);
+		if ( threads > 1 )
+		{
+			benchmark(format("template, %s threads", threads), templates, threads);
+			benchmark(format("map copy, %s threads", threads), maps, threads);
+		}
+	}
+
+	private static void benchmark( String name, Rendering rendering, int threads ) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			for ( int i = 0; i < WARMUP_ROUNDS; i++ )
+			{
+				run(rendering, executor, threads);
+			}
+			long best = Long.MAX_VALUE;
+			for ( int i = 0; i < MEASURED_ROUNDS; i++ )
+			{
+				best = Math.min(best, run(rendering, executor, threads));
+			}
+			System.out.println(format("%-24s %12.0f renderings/s", name, (double) ITERATIONS * threads * 1e9 / best));
+		} finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return Nanoseconds taken by the given number of threads to render {@link #ITERATIONS} requests each
+	 */
+	private static long run( final Rendering rendering, ExecutorService executor, int threads ) throws Exception
+	{
+		Callable<Integer> task = new Callable<Integer>()
+		{
+			public Integer call()
+			{
+				int length = 0;
+				for ( int i = 0; i < ITERATIONS; i++ )
+				{
+					length += rendering.render(i);
+				}
+				return length;
+			}
+		};
+		long start = System.nanoTime();
+		Future<?>[] results = new Future<?>[threads];
+		for ( int i = 0; i < threads; i++ )
+		{
+			results[i] = executor.submit(task);
+		}
+		for ( Future<?> result : results )
+		{
+			if ( (Integer) result.get() == 0 )
+			{
+				throw new IllegalStateException();
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Check {@link Template} renders against lookups, falling back to a configuration.
+ */
+public class TemplateTestCase
+{
+
+	/**
+	 * Lookup of request parameters.
+	 */
+	private static Lookup request( final String user, final String page )
+	{
+		return new Lookup()
+		{
+			public String lookup( String name )
+			{
+				return "user".equals(name) ? user : "page".equals(name) ? page : null;
+			}
+		};
+	}
+
+	private static Map<String, String> configuration()
+	{
+		Map<String, String> configuration = new HashMap<String, String>();
+		configuration.put("host", "www.example.org");
+		configuration.put("base", "https://${host}");
+		configuration.put("page", "home");
+		return configuration;
+	}
+
+	@Test
+	public void verifyRendered()
+	{
+		Template template = Template.compile("${base}/users/${user}/${page|index}?lang=${lang|en}");
+		assertEquals("https://www.example.org/users/simone/profile?lang=en",
+				template.render(request("simone", "profile"), configuration()));
+		// Request values take precedence, the configuration is used when they have none
+		assertEquals("https://www.example.org/users/guest/home?lang=en",
+				template.render(request("guest", null), configuration()));
+		assertEquals("${base}/users/guest/index?lang=en", template.render(request("guest", null)));
+		assertEquals(new LinkedHashSet<String>(asList("base", "user", "page", "lang")), template.getKeys());
+	}
+
+	@Test
+	public void verifyDynamicKeys()
+	{
+		Map<String, String> configuration = new HashMap<String, String>();
+		configuration.put("greeting.fr", "Bonjour ${user}");
+		configuration.put("greeting.en", "Hello ${user}");
+		Template template = Template.compile("${greeting.${lang|en}}!", new AntStyleParser());
+		assertEquals("Hello simone!", template.render(request("simone", null), configuration));
+	}
+
+	@Test
+	public void verifyRenderedTo() throws IOException
+	{
+		Template template = Template.compile("${base}/${page}");
+		StringWriter output = new StringWriter();
+		template.renderTo(output, request("simone", "about"), configuration());
+		assertEquals("https://www.example.org/about", output.toString());
+	}
+
+	@Test
+	public void verifyInvalidPattern()
+	{
+		try
+		{
+			Template.compile("${unclosed");
+			fail();
+		} catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+
+	@Test
+	public void verifyThreadSafe() throws Exception
+	{
+		final Template template = Template.compile("${base}/users/${user}/${page|index}");
+		final Map<String, String> configuration = configuration();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try
+		{
+			List<Future<Void>> renderings = new ArrayList<Future<Void>>();
+			for ( int i = 0; i < 8; i++ )
+			{
+				final String user = "user" + i;
+				renderings.add(executor.submit(new Callable<Void>()
+				{
+					public Void call()
+					{
+						for ( int j = 0; j < 10000; j++ )
+						{
+							assertEquals("https://www.example.org/users/" + user + "/" + j,
+									template.render(request(user, String.valueOf(j)), configuration));
+						}
+						return null;
+					}
+				}));
+			}
+			for ( Future<Void> rendering : renderings )
+			{
+				rendering.get();
+			}
+		} finally
+		{
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,358 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static com.google.inject.name.Names.named;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.nnsoft.guice.rocoto.Rocoto.expandVariablesRejectingCycles;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+
+/**
+ * Check cycles are found at once over the whole graph of variables, reported once and not expanded.
+ */
+public class VariableCyclesTestCase
+{
+
+	private static Map<String, Set<String>> graph( String... edges )
+	{
+		Map<String, Set<String>> graph = new HashMap<String, Set<String>>();
+		for ( String edge : edges )
+		{
+			String[] keys = edge.split("->");
+			Set<String> targets = graph.get(keys[0]);
+			if ( targets == null )
+			{
+				targets = new HashSet<String>();
+				graph.put(keys[0], targets);
+			}
+			targets.add(keys[1]);
+		}
+		return graph;
+	}
+
+	private static Set<Set<String>> cycles( List<Set<String>> found )
+	{
+		return new HashSet<Set<String>>(found);
+	}
+
+	private static Set<String> keys( String... keys )
+	{
+		return new HashSet<String>(asList(keys));
+	}
+
+	/**
+	 * @return Value looking up some of the keys k0 to k{count - 1}, directly, through dynamic keys or default values
+	 */
+	static String randomValue( Random random, int count )
+	{
+		StringBuilder value = new StringBuilder();
+		int parts = 1 + random.nextInt(3);
+		for ( int i = 0; i < parts; i++ )
+		{
+			switch (random.nextInt(6))
+			{
+				case 0:
+				case 1:
+					value.append("${k").append(random.nextInt(count)).append('}');
+					break;
+				case 2:
+					value.append("${k${i").append(random.nextInt(count)).append("}}");
+					break;
+				case 3:
+					value.append("${k").append(random.nextInt(count + 2)).append("|${k").append(random.nextInt(count)).append("}}");
+					break;
+				case 4:
+					value.append((char) ('a' + random.nextInt(3)));
+					break;
+				default:
+					value.append("${k${k").append(random.nextInt(count)).append("|1}|d}");
+					break;
+			}
+		}
+		return value.toString();
+	}
+
+	@Test
+	public void verifyStronglyConnectedComponents()
+	{
+		Map<String, Set<String>> graph = graph("a->b", "b->c", "c->a", "c->d", "d->e", "e->d", "f->f", "g->a", "h->i");
+		List<Set<String>> found = VariableCycles.find(asList("a", "b", "c", "d", "e", "f", "g", "h", "i"), graph);
+
+		Set<Set<String>> expected = new HashSet<Set<String>>();
+		expected.add(keys("a", "b", "c"));
+		expected.add(keys("d", "e"));
+		expected.add(keys("f"));
+		assertEquals(expected, cycles(found));
+	}
+
+	@Test
+	public void verifyEdgesOutsideAnalysedKeysIgnored()
+	{
+		Map<String, Set<String>> graph = graph("a->b", "b->a", "c->d", "d->c");
+		assertEquals(cycles(asList(keys("a", "b"))), cycles(VariableCycles.find(asList("a", "b", "c"), graph)));
+	}
+
+	@Test
+	public void verifyLongChainsDontOverflow()
+	{
+		int length = 100000;
+		List<String> keys = new ArrayList<String>();
+		Map<String, Set<String>> graph = new HashMap<String, Set<String>>();
+		for ( int i = 0; i < length; i++ )
+		{
+			keys.add("k" + i);
+			graph.put("k" + i, keys("k" + ((i + 1) % length)));
+		}
+		List<Set<String>> found = VariableCycles.find(keys, graph);
+		assertEquals(1, found.size());
+		assertEquals(length, found.get(0).size());
+	}
+
+	@Test
+	public void verifyCyclesNotExpanded()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		Map<String, String> entries = new HashMap<String, String>();
+		entries.put("found", "I'm here");
+		entries.put("a", "${found} I am ${b}");
+		entries.put("b", "what ${a}");
+		entries.put("c", "[${a}]");
+		entries.put("self", "${self} again");
+		variablesMap.putAll(entries);
+
+		assertEquals("I'm here I am ${b}", variablesMap.get("a"));
+		assertEquals("what ${a}", variablesMap.get("b"));
+		assertEquals("[I'm here I am ${b}]", variablesMap.get("c"));
+		assertEquals("${self} again", variablesMap.get("self"));
+
+		Set<Set<String>> expected = new HashSet<Set<String>>();
+		expected.add(keys("a", "b"));
+		expected.add(keys("self"));
+		assertEquals(expected, cycles(variablesMap.getCycles().getCycles()));
+		assertEquals(keys("a", "b", "self"), variablesMap.getCycles().getKeys());
+		assertNull(variablesMap.getCycles().getCycle("c"));
+	}
+
+	@Test
+	public void verifyCyclesKeptByUnrelatedChanges()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.put("a", "${b}");
+		variablesMap.put("b", "${a}");
+		VariableCycles cycles = variablesMap.getCycles();
+		assertEquals(1, cycles.getCycles().size());
+
+		variablesMap.put("other", "${unrelated}");
+		assertTrue(cycles == variablesMap.getCycles());
+	}
+
+	@Test
+	public void verifyChangeBreaksCycle()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.put("a", "${b}!");
+		variablesMap.put("b", "${a}?");
+		variablesMap.put("c", "<${a}>");
+		assertEquals(keys("a", "b"), variablesMap.getCycles().getCycle("a"));
+
+		variablesMap.put("b", "done");
+		assertTrue(variablesMap.getCycles().isEmpty());
+		assertEquals("done!", variablesMap.get("a"));
+		assertEquals("<done!>", variablesMap.get("c"));
+	}
+
+	@Test
+	public void verifyBuilderReportsCycles()
+	{
+		VariablesMap.Builder builder = new VariablesMap.Builder();
+		for ( int i = 0; i < 100; i++ )
+		{
+			builder.put("key." + i, "${key." + ((i + 1) % 100) + "}");
+			builder.put("other." + i, "${key." + i + "}");
+		}
+		builder.build();
+
+		List<Set<String>> cycles = builder.getCycles().getCycles();
+		assertEquals(1, cycles.size());
+		assertEquals(100, cycles.get(0).size());
+	}
+
+	@Test(timeout = 5000)
+	public void verifyDoubledCycleFoundBeforeExpanding()
+	{
+		// Expanding k0 would expand k1 twice, k2 four times... before finding the cycle back to k0
+		VariablesMap.Builder builder = new VariablesMap.Builder();
+		for ( int i = 0; i < 5; i++ )
+		{
+			builder.put("k" + i, "${k" + (i + 1) + "}${k" + (i + 1) + "}");
+		}
+		builder.put("k5", "end ${k0}");
+		Map<String, String> resolved = builder.build();
+
+		assertEquals("${k1}${k1}", resolved.get("k0"));
+		assertEquals("end ${k0}", resolved.get("k5"));
+		assertEquals(keys("k0", "k1", "k2", "k3", "k4", "k5"), builder.getCycles().getCycle("k0"));
+		assertEquals(1, builder.getCycles().getCycles().size());
+	}
+
+	@Test(timeout = 5000)
+	public void verifyDoubledCycleClosedByPutFoundBeforeExpanding()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		for ( int i = 0; i < 5; i++ )
+		{
+			variablesMap.put("k" + i, "${k" + (i + 1) + "}${k" + (i + 1) + "}");
+		}
+		variablesMap.put("k5", "end ${k0}");
+
+		assertEquals("${k1}${k1}", variablesMap.get("k0"));
+		assertEquals(keys("k0", "k1", "k2", "k3", "k4", "k5"), variablesMap.getCycles().getCycle("k5"));
+	}
+
+	@Test(timeout = 5000)
+	public void verifyDoubledCycleThroughDynamicKeysResolvedOnce()
+	{
+		// Found once resolved only: values truncated by recursion must not be expanded again by the next key
+		VariablesMap.Builder builder = new VariablesMap.Builder();
+		for ( int i = 0; i < 16; i++ )
+		{
+			builder.put("index." + i, String.valueOf(i + 1));
+			builder.put("k" + i, "${k${index." + i + "}}${k${index." + i + "}}");
+		}
+		builder.put("k16", "end ${k0}");
+		Map<String, String> resolved = builder.build();
+
+		assertEquals("${k${index.0}}${k${index.0}}", resolved.get("k0"));
+		assertEquals(17, builder.getCycles().getCycle("k0").size());
+	}
+
+	@Test
+	public void verifyCyclesThroughDynamicKeysFoundOnceResolved()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		Map<String, String> entries = new HashMap<String, String>();
+		entries.put("name", "b");
+		entries.put("a", "${${name}}!");
+		entries.put("b", "${a}?");
+		variablesMap.putAll(entries);
+
+		assertEquals(keys("a", "b"), variablesMap.getCycles().getCycle("a"));
+		assertEquals("${a}?", variablesMap.get("b"));
+	}
+
+	@Test
+	public void verifyCycleKeptWhenAnotherOneIsFoundOnceResolved()
+	{
+		// k1 is found cyclic once resolved, marking k2 again must not forget the cycle of k0, k2 and k3
+		Map<String, String> entries = new HashMap<String, String>();
+		entries.put("i0", "1");
+		entries.put("k0", "${k3}");
+		entries.put("k1", "${k${i0}}");
+		entries.put("k2", "${k1}${k0|${k3}}");
+		entries.put("k3", "${k${k2|1}|d}");
+		VariablesMap.Builder builder = new VariablesMap.Builder();
+		builder.putAll(entries);
+		Map<String, String> resolved = builder.build();
+
+		assertEquals(keys("k0", "k2", "k3"), builder.getCycles().getCycle("k0"));
+		assertEquals("${k3}", resolved.get("k0"));
+		assertEquals("${k${i0}}${k0|${k3}}", resolved.get("k2"));
+	}
+
+	@Test(timeout = 30000)
+	public void verifyCyclesIndependentOfChangesOrder()
+	{
+		Random random = new Random(7);
+		for ( int run = 0; run < 500; run++ )
+		{
+			int count = 4 + random.nextInt(8);
+			Map<String, String> entries = new HashMap<String, String>();
+			for ( int i = 0; i < count; i++ )
+			{
+				entries.put("k" + i, randomValue(random, count));
+				entries.put("i" + i, String.valueOf(random.nextInt(count)));
+			}
+			VariablesMap.Builder builder = new VariablesMap.Builder();
+			builder.putAll(entries);
+			Map<String, String> built = builder.build();
+
+			// Same final values, reached through other values, in another order
+			List<String> keys = new ArrayList<String>(entries.keySet());
+			Collections.shuffle(keys, random);
+			VariablesMap variablesMap = new VariablesMap();
+			variablesMap.setLazy(run % 3 == 0);
+			for ( String key : keys )
+			{
+				if ( random.nextBoolean() )
+				{
+					variablesMap.put(key, randomValue(random, count));
+				}
+			}
+			variablesMap.put("k" + count, randomValue(random, count));
+			Collections.shuffle(keys, random);
+			for ( String key : keys )
+			{
+				variablesMap.put(key, entries.get(key));
+			}
+			variablesMap.remove("k" + count);
+
+			assertEquals(entries.toString(), new TreeMap<String, String>(built), new TreeMap<String, String>(variablesMap));
+			assertEquals(entries.toString(), cycles(builder.getCycles().getCycles()), cycles(variablesMap.getCycles().getCycles()));
+		}
+	}
+
+	@Test
+	public void verifyRocotoRejectsCycles()
+	{
+		try
+		{
+			Guice.createInjector(expandVariablesRejectingCycles(new AbstractModule()
+			{
+				@Override
+				protected void configure()
+				{
+					bindConstant().annotatedWith(named("ping")).to("${pong}");
+					bindConstant().annotatedWith(named("pong")).to("${ping}");
+					bindConstant().annotatedWith(named("fine")).to("fine");
+				}
+			}));
+			fail("Expected a CreationException for cyclic variables");
+		} catch (CreationException expected)
+		{
+			assertEquals(1, expected.getErrorMessages().size());
+		}
+	}
+
+}
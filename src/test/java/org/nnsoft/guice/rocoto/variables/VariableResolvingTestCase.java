@@ -16,13 +16,21 @@
 package org.nnsoft.guice.rocoto.variables;
 
 import static java.text.MessageFormat.format;
+import static java.util.Collections.unmodifiableMap;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -36,50 +44,79 @@ public class VariableResolvingTestCase
 	private VariablesMap variablesMap;
 
 	/**
-	 * Set up some variables use cases to test on
+	 * @return Parser to test
 	 */
-	@Before
-	public void setUp()
+	protected Parser newParser()
 	{
-		variablesMap = new VariablesMap(new AntStyleParser());
-
-		variablesMap.put("prop.1", "One");
-		variablesMap.put("prop.2", "Two");
-		variablesMap.put("prop.3", "Three");
-		variablesMap.put("found", "I'm here");
-		variablesMap.put("real", "delegated value");
-		variablesMap.put("dollarSymbol", "$");
-		variablesMap.put("dollarGod", "$$$ Prey the $ god! ${dollarSymbol}${dollarSymbol}${dollarSymbol}");
-		variablesMap.put("Three", "yeah");
-
-		variablesMap.put("simple", "${prop.1}, ${prop.2}, ${prop.3}");
-		variablesMap.put("delegate", "${real|fallback value}");
-		variablesMap.put("withDefault", "${not.found|default value}");
-		variablesMap.put("withEmptyDefault", "${not.found|}");
-
-		variablesMap.put("withVariableDefault", "${not.found|${found}}");
-		variablesMap.put("withDelegatedVariableDefault", "${not.found|${delegate}}");
-		variablesMap.put("withMixinDefault", "${not.found|${found}, and i'm hungry}");
-		variablesMap.put("withMixinDefault2", "${not.found|${prop.1} moment please, ok ${found}}");
-		variablesMap.put("withDefaultOfDefault", "${not.found|${not.found.again|Crap!}}");
-		variablesMap.put("withLotsOfDefault", "${not.found|${not.found.again|${found} to ${last.hope|${oh.really|kill}} it with fire!}}");
-
-		variablesMap.put("dynamicSimpleVariable", "${${prop.1}}");
-		variablesMap.put("dynamicDefaultVariable", "Property: ${prop.${number|1}}!");
-		variablesMap.put("dynamicDefaultVariableWithDefault", "${${prop.4|${prop.1}}|fallback}");
-		variablesMap.put("dynamicDefaultVariableWithDefaultDynamicVariable", "${${prop.4|${prop.1}}|${${fallback|${prop.3}}}}");
+		return new AntStyleParser();
+	}
 
-		variablesMap.put("hello.en", "Hi!");
-		variablesMap.put("hello.fr", "Salut !");
-		variablesMap.put("hello.i18n", "${hello.${locale|en}}");
+	/**
+	 * @return Map to test
+	 */
+	protected VariablesMap newVariablesMap()
+	{
+		return new VariablesMap(newParser());
+	}
 
-		variablesMap.put("trimKey", "${prop.1}");
-		variablesMap.put("notrimKey", "${     prop.1	 }");
-		variablesMap.put("trimDefault", "${not.found|default}");
-		variablesMap.put("notrimDefault", "${not.found|    default	  }");
-		variablesMap.put("trimDynamic", "${${prop.3}}");
-		variablesMap.put("notrimDynamic", "${   ${   prop.3		}	}");
+	/**
+	 * @return Some variables use cases to test on, in order
+	 */
+	static Map<String, String> fixture()
+	{
+		Map<String, String> fixture = new LinkedHashMap<String, String>();
+
+		fixture.put("prop.1", "One");
+		fixture.put("prop.2", "Two");
+		fixture.put("prop.3", "Three");
+		fixture.put("found", "I'm here");
+		fixture.put("real", "delegated value");
+		fixture.put("dollarSymbol", "$");
+		fixture.put("dollarGod", "$$$ Prey the $ god! ${dollarSymbol}${dollarSymbol}${dollarSymbol}");
+		fixture.put("Three", "yeah");
+
+		fixture.put("simple", "${prop.1}, ${prop.2}, ${prop.3}");
+		fixture.put("delegate", "${real|fallback value}");
+		fixture.put("withDefault", "${not.found|default value}");
+		fixture.put("withEmptyDefault", "${not.found|}");
+
+		fixture.put("withVariableDefault", "${not.found|${found}}");
+		fixture.put("withDelegatedVariableDefault", "${not.found|${delegate}}");
+		fixture.put("withMixinDefault", "${not.found|${found}, and i'm hungry}");
+		fixture.put("withMixinDefault2", "${not.found|${prop.1} moment please, ok ${found}}");
+		fixture.put("withDefaultOfDefault", "${not.found|${not.found.again|Crap!}}");
+		fixture.put("withLotsOfDefault", "${not.found|${not.found.again|${found} to ${last.hope|${oh.really|kill}} it with fire!}}");
+
+		fixture.put("dynamicSimpleVariable", "${${prop.1}}");
+		fixture.put("dynamicDefaultVariable", "Property: ${prop.${number|1}}!");
+		fixture.put("dynamicDefaultVariableWithDefault", "${${prop.4|${prop.1}}|fallback}");
+		fixture.put("dynamicDefaultVariableWithDefaultDynamicVariable", "${${prop.4|${prop.1}}|${${fallback|${prop.3}}}}");
+
+		fixture.put("hello.en", "Hi!");
+		fixture.put("hello.fr", "Salut !");
+		fixture.put("hello.i18n", "${hello.${locale|en}}");
+
+		fixture.put("trimKey", "${prop.1}");
+		fixture.put("notrimKey", "${     prop.1	 }");
+		fixture.put("trimDefault", "${not.found|default}");
+		fixture.put("notrimDefault", "${not.found|    default	  }");
+		fixture.put("trimDynamic", "${${prop.3}}");
+		fixture.put("notrimDynamic", "${   ${   prop.3		}	}");
+
+		return fixture;
+	}
 
+	/**
+	 * Set up some variables use cases to test on
+	 */
+	@Before
+	public void setUp()
+	{
+		variablesMap = newVariablesMap();
+		for ( Map.Entry<String, String> entry : fixture().entrySet() )
+		{
+			variablesMap.put(entry.getKey(), entry.getValue());
+		}
 	}
 
 	/**
@@ -296,9 +333,40 @@ public class VariableResolvingTestCase
 		assertEquals(6, variablesMap.size());
 	}
 
+	/**
+	 * Test bulk loading gives the same result as putting entries one by one.
+	 */
+	@Test
+	public void verifyBuilder()
+	{
+		VariablesMap.Builder builder = new VariablesMap.Builder();
+		builder.put("gg", "${h}${4|${${2g}2}}");
+		builder.put("h", "${${${g}4|${g}2}}");
+		builder.put("g", "2g").put("gg2", "2").put("2g", "gg").put("2g2", "4");
+		Map<String, String> built = builder.build();
+		assertEquals("42", built.get("gg"));
+		assertEquals(6, built.size());
+		try
+		{
+			built.put("g", "changed");
+			fail("Built variables map must be immutable");
+		} catch (UnsupportedOperationException expected)
+		{
+			// ok
+		}
+		try
+		{
+			builder.put("g", "changed");
+			fail("Builder must not be usable once built");
+		} catch (IllegalStateException expected)
+		{
+			// ok
+		}
+	}
+
 	/**
 	 * Check no infinite loop on direct recursion.<br>
-	 * Check recursive variable grow each time variables are resolved.<br>
+	 * Check recursive variable is not resolved again when an unrelated variable changes.<br>
 	 */
 	@Test
 	public void verifyVariablesWithNerdyStuffLikeRecursion()
@@ -314,7 +382,7 @@ public class VariableResolvingTestCase
 
 			String two = variablesMap.get("GNU");
 
-			assertTrue(one.length() < two.length());
+			assertEquals(one, two);
 		} catch (Error ouch)
 		{
 			fail(ouch.getMessage());
@@ -323,7 +391,7 @@ public class VariableResolvingTestCase
 
 	/**
 	 * Check no infinite loop on indirect recursion.<br>
-	 * Check recursive variable grow each time variables are resolved.<br>
+	 * Check recursive variable is not resolved again when an unrelated variable changes.<br>
 	 */
 	@Test
 	public void verifyVariablesWithNerdyStuffLikeIndirectRecursion()
@@ -339,7 +407,7 @@ public class VariableResolvingTestCase
 
 			String two = variablesMap.get("a");
 
-			assertTrue(one.length() < two.length());
+			assertEquals(one, two);
 		} catch (Error ouch)
 		{
 			fail(ouch.getMessage());
@@ -370,6 +438,21 @@ public class VariableResolvingTestCase
 		}
 	}
 
+	/**
+	 * Check variables referencing each other in a long chain, not resolved before.
+	 */
+	@Test
+	public void verifyChain()
+	{
+		Map<String, String> configuration = new HashMap<String, String>();
+		for ( int i = 0; i < 500; i++ )
+		{
+			configuration.put("chain." + i, "${chain." + (i + 1) + "}");
+		}
+		configuration.put("chain.500", "end of ${chain.0|chain}");
+		assertEquals("end of ${chain.0|chain}", newParser().parse("${chain.0}").resolve(configuration));
+	}
+
 	/**
 	 * Check we can use the dollar symbol alone in variable
 	 */
@@ -457,6 +540,47 @@ public class VariableResolvingTestCase
 		}
 	}
 
+	/**
+	 * Test resolving never modifies the configuration, so that several threads can share a read-only one
+	 */
+	@Test
+	public void verifySideEffectFree() throws Exception
+	{
+		Map<String, String> source = new HashMap<String, String>();
+		source.put("host", "${name}.${domain}");
+		source.put("name", "db");
+		source.put("domain", "${zone}.example.org");
+		source.put("zone", "eu");
+		source.put("url", "jdbc://${host}:${port|1527}/${host}");
+		source.put("loop", "${loop} again");
+		final Map<String, String> configuration = unmodifiableMap(source);
+		final Resolver resolver = newParser().parse("${url} ${loop}");
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for ( int i = 0; i < 100; i++ )
+			{
+				results.add(executor.submit(new Callable<String>()
+				{
+					public String call()
+					{
+						return resolver.resolve(configuration);
+					}
+				}));
+			}
+			for ( Future<String> result : results )
+			{
+				assertEquals("jdbc://db.eu.example.org:1527/db.eu.example.org ${loop} again", result.get());
+			}
+		} finally
+		{
+			executor.shutdownNow();
+		}
+		assertEquals("${name}.${domain}", configuration.get("host"));
+	}
+
 	/**
 	 * Test syntax check for incorrect variable value
 	 */
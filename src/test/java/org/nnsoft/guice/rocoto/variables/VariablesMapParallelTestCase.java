@@ -0,0 +1,209 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Check {@link VariablesMap} resolves the same values with or without an executor.
+ */
+public class VariablesMapParallelTestCase
+{
+	private static final int CLUSTERS = 1000;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp()
+	{
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Independent clusters of keys, plus a few keys crossing clusters through dynamic keys, cycles and missing keys.
+	 */
+	private static Map<String, String> configuration()
+	{
+		Map<String, String> configuration = new LinkedHashMap<String, String>();
+		configuration.put("shared.schema", "rocoto");
+		for ( int i = 0; i < CLUSTERS; i++ )
+		{
+			configuration.put("cluster." + i + ".url", "jdbc://${cluster." + i + ".host}:${cluster." + i + ".port|1527}/${shared.schema}");
+			configuration.put("cluster." + i + ".host", "host-${cluster." + i + ".index}");
+			configuration.put("cluster." + i + ".index", String.valueOf(i));
+			configuration.put("cluster." + i + ".missing", "${cluster." + i + ".nowhere}");
+			if ( i % 10 == 0 )
+			{
+				configuration.put("cluster." + i + ".port", "${cluster." + i + ".port.default}");
+				configuration.put("cluster." + i + ".port.default", "${cluster." + i + ".port}");
+			}
+			if ( i % 7 == 0 )
+			{
+				// dynamic key looking up another cluster
+				configuration.put("cluster." + i + ".next", "${cluster.${cluster." + (i + 1) % CLUSTERS + ".index}.url}");
+			}
+		}
+		// dynamic key looking up a cluster resolved by another thread
+		configuration.put("cluster.far", "${cluster.${cluster.1.index}.url}");
+		configuration.put("cluster.2.far", "${cluster.far}");
+		return configuration;
+	}
+
+	@Test
+	public void verifyBuilderSameAsSequential()
+	{
+		Map<String, String> sequential = new VariablesMap.Builder().putAll(configuration()).build();
+		Map<String, String> parallel = new VariablesMap.Builder().withExecutor(executor).putAll(configuration()).build();
+		assertEquals(sequential, parallel);
+		assertEquals("jdbc://host-1:1527/rocoto", parallel.get("cluster.0.next"));
+		assertEquals("jdbc://host-1:1527/rocoto", parallel.get("cluster.2.far"));
+		assertEquals("jdbc://host-10:${cluster.10.port.default}/rocoto", parallel.get("cluster.10.url"));
+	}
+
+	@Test
+	public void verifyCyclesSameAsSequential()
+	{
+		Map<String, String> configuration = configuration();
+		configuration.put("ping", "${pong}");
+		configuration.put("pong", "${cluster.3.host} ${ping}");
+		configuration.put("cluster.5.self", "${cluster.5.self}");
+		VariablesMap.Builder sequential = new VariablesMap.Builder().putAll(configuration);
+		VariablesMap.Builder parallel = new VariablesMap.Builder().withExecutor(executor).putAll(configuration);
+		assertEquals(sequential.build(), parallel.build());
+		assertEquals(sequential.getCycles().getKeys(), parallel.getCycles().getKeys());
+		assertEquals(3 + 2 * CLUSTERS / 10, parallel.getCycles().getKeys().size());
+	}
+
+	/**
+	 * Clusters of keys looking each other up at random, directly, through dynamic keys and default values, rarely
+	 * crossing clusters: many cycles, some only found once resolved.
+	 */
+	private static Map<String, String> randomConfiguration( Random random )
+	{
+		Map<String, String> configuration = new LinkedHashMap<String, String>();
+		int count = CLUSTERS + CLUSTERS / 5;
+		for ( int i = 0; i < count; i++ )
+		{
+			if ( random.nextInt(3) == 0 )
+			{
+				configuration.put("k" + i, "v" + i);
+				continue;
+			}
+			StringBuilder value = new StringBuilder();
+			// Two parts at most, values looking up many keys would grow exponentially
+			int parts = 1 + random.nextInt(2);
+			for ( int j = 0; j < parts; j++ )
+			{
+				int target = random.nextInt(100) < 2 ? random.nextInt(count) : i / 40 * 40 + random.nextInt(40);
+				switch (random.nextInt(5))
+				{
+					case 0:
+					case 1:
+						value.append("${k").append(target).append('}');
+						break;
+					case 2:
+						value.append("${k${idx").append(target % 40).append('|').append(target).append("}}");
+						break;
+					case 3:
+						value.append("${k").append(target + count).append("|${k").append(target).append("}}");
+						break;
+					default:
+						value.append('v');
+						break;
+				}
+			}
+			configuration.put("k" + i, value.toString());
+		}
+		for ( int i = 0; i < 40; i++ )
+		{
+			if ( random.nextBoolean() )
+			{
+				configuration.put("idx" + i, String.valueOf(random.nextInt(count)));
+			}
+		}
+		return configuration;
+	}
+
+	@Test
+	public void verifyRandomCyclesSameAsSequential()
+	{
+		Random random = new Random(11);
+		for ( int run = 0; run < 10; run++ )
+		{
+			Map<String, String> configuration = randomConfiguration(random);
+			VariablesMap.Builder sequential = new VariablesMap.Builder().putAll(configuration);
+			VariablesMap.Builder parallel = new VariablesMap.Builder().withExecutor(executor).putAll(configuration);
+			assertEquals(sequential.build(), parallel.build());
+			assertEquals(sequential.getCycles().getKeys(), parallel.getCycles().getKeys());
+
+			// Dynamic keys now looking up other keys, cycles found once resolved change
+			VariablesMap sequentialMap = new VariablesMap();
+			VariablesMap parallelMap = new VariablesMap();
+			parallelMap.setExecutor(executor);
+			sequentialMap.putAll(configuration);
+			parallelMap.putAll(configuration);
+			Map<String, String> indexes = new HashMap<String, String>();
+			for ( int i = 0; i < 40; i++ )
+			{
+				indexes.put("idx" + i, String.valueOf(random.nextInt(configuration.size())));
+			}
+			sequentialMap.putAll(indexes);
+			parallelMap.putAll(indexes);
+			assertEquals(new HashMap<String, String>(sequentialMap), new HashMap<String, String>(parallelMap));
+			assertEquals(sequentialMap.getCycles().getKeys(), parallelMap.getCycles().getKeys());
+		}
+	}
+
+	@Test
+	public void verifyUpdatesSameAsSequential()
+	{
+		VariablesMap sequential = new VariablesMap();
+		VariablesMap parallel = new VariablesMap();
+		parallel.setExecutor(executor);
+		sequential.putAll(configuration());
+		parallel.putAll(configuration());
+		assertEquals(new HashMap<String, String>(sequential), new HashMap<String, String>(parallel));
+
+		// invalidates every cluster at once
+		sequential.put("shared.schema", "${shared.prefix}rocoto");
+		parallel.put("shared.schema", "${shared.prefix}rocoto");
+		Map<String, String> prefix = new LinkedHashMap<String, String>();
+		prefix.put("shared.prefix", "guice/");
+		prefix.put("cluster.1.index", "${cluster.2.index}");
+		sequential.putAll(prefix);
+		parallel.putAll(prefix);
+		assertEquals(new HashMap<String, String>(sequential), new HashMap<String, String>(parallel));
+		assertEquals("jdbc://host-2:1527/guice/rocoto", parallel.get("cluster.0.next"));
+	}
+
+}
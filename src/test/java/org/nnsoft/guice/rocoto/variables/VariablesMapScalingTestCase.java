@@ -0,0 +1,65 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Check {@link VariablesMap} only re-resolves what is needed when variables are put one at a time.
+ */
+public class VariablesMapScalingTestCase
+{
+	private static final int SIZE = 30000;
+
+	/** Key look ups by a put: resolving a url looks three keys up */
+	private static final int STEPS_PER_PUT = 3;
+
+	@Test
+	public void verifyBoundedWorkPerPut()
+	{
+		// Each put runs a resolution pass: re-resolving more than the dependents of the key put exceeds the limit
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.setLimits(new ResolvingLimits(Integer.MAX_VALUE, Long.MAX_VALUE, STEPS_PER_PUT));
+
+		// Put clusters of keys one by one, some of them referencing a key which is put later
+		variablesMap.put("shared.schema", "rocoto");
+		for ( int i = 0; i < SIZE / 3; i++ )
+		{
+			variablesMap.put("cluster." + i + ".host", "host-" + i);
+			variablesMap.put("cluster." + i + ".url", "jdbc://${cluster." + i + ".host}:${cluster." + i + ".port|1527}/${shared.schema}");
+			variablesMap.put("cluster." + i + ".port", String.valueOf(i));
+		}
+
+		assertEquals("jdbc://host-0:0/rocoto", variablesMap.get("cluster.0.url"));
+		assertEquals(SIZE / 3 * 3 + 1, variablesMap.size());
+	}
+
+	@Test
+	public void verifyDependentsOnlyResolvedAgain()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.put("url", "${host|localhost}:${port}");
+		variablesMap.put("port", "8080");
+		assertEquals("localhost:8080", variablesMap.get("url"));
+		variablesMap.put("host", "example.org");
+		assertEquals("example.org:8080", variablesMap.get("url"));
+		variablesMap.remove("port");
+		assertEquals("example.org:${port}", variablesMap.get("url"));
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ *    Copyright 2009-2012 The 99 Software Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.nnsoft.guice.rocoto.variables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Check {@link VariablesSnapshot} behaves like an immutable map, and {@link VariablesMap} publishes consistent ones.
+ */
+public class VariablesSnapshotTestCase
+{
+	/** Keys of same length made of these blocks have the same hash code */
+	private static final String[] COLLIDING = { "Aa", "BB" };
+
+	private static String randomKey( Random random )
+	{
+		if ( random.nextInt(4) == 0 )
+		{
+			return COLLIDING[random.nextInt(2)] + COLLIDING[random.nextInt(2)] + COLLIDING[random.nextInt(2)];
+		}
+		return "key." + random.nextInt(2000);
+	}
+
+	@Test
+	public void verifySameAsHashMap()
+	{
+		Random random = new Random(42);
+		Map<String, String> expected = new HashMap<String, String>();
+		VariablesSnapshot snapshot = VariablesSnapshot.EMPTY;
+		for ( int i = 0; i < 20000; i++ )
+		{
+			String key = randomKey(random);
+			if ( random.nextInt(3) == 0 )
+			{
+				expected.remove(key);
+				snapshot = snapshot.without(key);
+			} else
+			{
+				String value = String.valueOf(random.nextInt(10));
+				expected.put(key, value);
+				snapshot = snapshot.with(key, value);
+			}
+			assertEquals(expected.get(key), snapshot.get(key));
+			assertEquals(expected.size(), snapshot.size());
+		}
+		assertEquals(expected, snapshot);
+		assertEquals(snapshot, expected);
+		assertEquals(expected.hashCode(), snapshot.hashCode());
+
+		for ( String key : expected.keySet() )
+		{
+			snapshot = snapshot.without(key);
+		}
+		assertTrue(snapshot.isEmpty());
+		assertSame(VariablesSnapshot.EMPTY, snapshot);
+	}
+
+	@Test
+	public void verifyStructuralSharing()
+	{
+		VariablesSnapshot before = VariablesSnapshot.EMPTY.with("a", "1").with("b", "2");
+		VariablesSnapshot after = before.with("a", "3").without("b").with("AaAa", "4").with("BBBB", "5");
+
+		assertEquals("1", before.get("a"));
+		assertEquals("2", before.get("b"));
+		assertNull(before.get("AaAa"));
+		assertEquals(2, before.size());
+
+		assertEquals("3", after.get("a"));
+		assertNull(after.get("b"));
+		assertEquals("4", after.get("AaAa"));
+		assertEquals("5", after.get("BBBB"));
+		assertEquals(3, after.size());
+
+		assertSame(after, after.with("a", "3"));
+		assertSame(after, after.without("missing"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void verifyImmutable()
+	{
+		VariablesSnapshot.EMPTY.with("a", "1").put("b", "2");
+	}
+
+	@Test
+	public void verifyPublishedAfterEachChange()
+	{
+		VariablesMap variablesMap = new VariablesMap();
+		variablesMap.put("host", "localhost");
+		variablesMap.put("url", "http://${host}/");
+		VariablesSnapshot first = variablesMap.getSnapshot();
+		assertEquals("http://localhost/", first.get("url"));
+
+		variablesMap.put("host", "example.org");
+		VariablesSnapshot second = variablesMap.getSnapshot();
+		assertEquals("http://localhost/", first.get("url"));
+		assertEquals("http://example.org/", second.get("url"));
+
+		variablesMap.remove("host");
+		assertEquals("http://${host}/", variablesMap.getSnapshot().get("url"));
+		assertEquals(new HashMap<String, String>(variablesMap), variablesMap.getSnapshot());
+
+		variablesMap.setLazy(true);
+		variablesMap.put("host", "rocoto.org");
+		assertEquals("http://rocoto.org/", variablesMap.getSnapshot().get("url"));
+	}
+
+	@Test
+	public void verifyConsistentReaders() throws Exception
+	{
+		final VariablesMap variablesMap = new VariablesMap();
+		variablesMap.put("version", "0");
+		for ( int i = 0; i < 100; i++ )
+		{
+			variablesMap.put("artifact." + i, "rocoto-${version}");
+		}
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> inconsistency = new AtomicReference<String>();
+		Thread[] readers = new Thread[4];
+		for ( int r = 0; r < readers.length; r++ )
+		{
+			readers[r] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					while (!done.get())
+					{
+						VariablesSnapshot snapshot = variablesMap.getSnapshot();
+						String expected = "rocoto-" + snapshot.get("version");
+						for ( int i = 0; i < 100; i++ )
+						{
+							if ( !expected.equals(snapshot.get("artifact." + i)) )
+							{
+								inconsistency.set(snapshot.get("artifact." + i) + " instead of " + expected);
+							}
+						}
+					}
+				}
+			};
+			readers[r].start();
+		}
+
+		for ( int v = 1; v <= 1000; v++ )
+		{
+			variablesMap.put("version", String.valueOf(v));
+		}
+		done.set(true);
+		for ( Thread reader : readers )
+		{
+			reader.join();
+		}
+		assertNull(inconsistency.get());
+		assertEquals("rocoto-1000", variablesMap.getSnapshot().get("artifact.99"));
+	}
+
+}